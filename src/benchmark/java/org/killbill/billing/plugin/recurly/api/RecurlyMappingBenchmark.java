@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.payment.api.PaymentMethodKVInfo;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Transaction;
+
+/**
+ * Object mapping hot paths (payment method reads and writes, payment and refund info, search).
+ * <p/>
+ * Run with: mvn -Pbenchmarks test-compile exec:exec (allocation rates are reported by the gc profiler).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecurlyMappingBenchmark {
+
+    private UUID kbAccountId;
+    private UUID kbPaymentId;
+    private UUID kbPaymentMethodId;
+    private BillingInfo billingInfo;
+    private RecurlyPaymentMethodPlugin paymentMethodPlugin;
+    private Transaction transaction;
+    private RecurlyPaymentInfoPlugin paymentInfoPlugin;
+    private RecurlyRefundInfoPlugin refundInfoPlugin;
+
+    @Setup
+    public void setUp() {
+        kbAccountId = UUID.randomUUID();
+        kbPaymentId = UUID.randomUUID();
+        kbPaymentMethodId = UUID.randomUUID();
+
+        final Account account = new Account();
+        account.setAccountCode(kbAccountId.toString());
+
+        billingInfo = new BillingInfo();
+        billingInfo.setAccount(account);
+        billingInfo.setAddress1("900 Larkin St.");
+        billingInfo.setAddress2("Suite 200");
+        billingInfo.setCardType("Visa");
+        billingInfo.setCity("San Francisco");
+        billingInfo.setCompany(kbPaymentMethodId.toString());
+        billingInfo.setCountry("US");
+        billingInfo.setFirstName("Jane");
+        billingInfo.setFirstSix("411111");
+        billingInfo.setIpAddress("127.0.0.1");
+        billingInfo.setIpAddressCountry("US");
+        billingInfo.setLastFour("1111");
+        billingInfo.setLastName("Doe");
+        billingInfo.setMonth(12);
+        billingInfo.setNumber("4111-1111-1111-1111");
+        billingInfo.setPhone("555-555-5555");
+        billingInfo.setState("CA");
+        billingInfo.setVatNumber("123");
+        billingInfo.setVerificationValue(123);
+        billingInfo.setYear(2020);
+        billingInfo.setZip("94109");
+        paymentMethodPlugin = new RecurlyPaymentMethodPlugin(billingInfo, kbPaymentMethodId);
+
+        final Invoice invoice = new Invoice();
+        invoice.setHref("https://api.recurly.com/v2/invoices/1000");
+
+        transaction = new Transaction();
+        transaction.setAccount(account);
+        transaction.setInvoice(invoice);
+        transaction.setUuid(UUID.randomUUID().toString().replace("-", ""));
+        transaction.setAction("purchase");
+        transaction.setAmountInCents(1000);
+        transaction.setCurrency("USD");
+        transaction.setStatus("success");
+        transaction.setDescription(kbPaymentId.toString());
+        transaction.setReference("12345");
+        transaction.setRefundable(true);
+        transaction.setVoidable(true);
+        transaction.setCreatedAt(new DateTime(DateTimeZone.UTC));
+        paymentInfoPlugin = new RecurlyPaymentInfoPlugin(kbPaymentId, transaction);
+        refundInfoPlugin = new RecurlyRefundInfoPlugin(transaction, BigDecimal.TEN);
+    }
+
+    @Benchmark
+    public RecurlyPaymentMethodPlugin newPaymentMethodPlugin() {
+        return new RecurlyPaymentMethodPlugin(billingInfo, kbPaymentMethodId);
+    }
+
+    @Benchmark
+    public List<PaymentMethodKVInfo> paymentMethodPluginProperties() {
+        return paymentMethodPlugin.getProperties();
+    }
+
+    @Benchmark
+    public List<PaymentMethodKVInfo> newPaymentMethodPluginProperties() {
+        // First access, when the properties are built
+        return new RecurlyPaymentMethodPlugin(billingInfo, kbPaymentMethodId).getProperties();
+    }
+
+    @Benchmark
+    public Object paymentMethodPluginPropertyValue() {
+        return paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.VERIFICATION_VALUE);
+    }
+
+    @Benchmark
+    public BillingInfo createBillingInfoFromKillbill() {
+        return RecurlyObjectFactory.createBillingInfoFromKillbill(kbAccountId, kbPaymentMethodId, paymentMethodPlugin);
+    }
+
+    @Benchmark
+    public RecurlyPaymentInfoPlugin newPaymentInfoPlugin() {
+        return new RecurlyPaymentInfoPlugin(kbPaymentId, transaction);
+    }
+
+    @Benchmark
+    public boolean paymentInfoPluginEquals() {
+        return paymentInfoPlugin.equals(new RecurlyPaymentInfoPlugin(kbPaymentId, transaction));
+    }
+
+    @Benchmark
+    public RecurlyRefundInfoPlugin newRefundInfoPlugin() {
+        return new RecurlyRefundInfoPlugin(transaction, BigDecimal.TEN);
+    }
+
+    @Benchmark
+    public boolean refundInfoPluginEquals() {
+        return refundInfoPlugin.equals(new RecurlyRefundInfoPlugin(transaction, BigDecimal.TEN));
+    }
+
+    @Benchmark
+    public void searchMatches(final Blackhole blackhole) {
+        // Best case (first field) and worst case (no match)
+        blackhole.consume(RecurlyPagination.matches(billingInfo, "Jane"));
+        blackhole.consume(RecurlyPagination.matches(billingInfo, "Nobody"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.RecurlyObject;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Parsing of a page of invoices (as walked when looking up a payment in Recurly): full object mapping vs. streaming projection.
+ * <p/>
+ * Run with: mvn -Pbenchmarks test-compile exec:exec -Djmh.args="-prof gc RecurlyXmlParserBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecurlyXmlParserBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+    private final RecurlyXmlParser xmlParser = new RecurlyXmlParser();
+
+    private byte[] invoicesPage;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder page = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><invoices type=\"array\">");
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            final String uuid = UUID.randomUUID().toString().replace("-", "");
+            page.append("<invoice href=\"https://api.recurly.com/v2/invoices/").append(1000 + i).append("\">")
+                .append("<account href=\"https://api.recurly.com/v2/accounts/1\"/>")
+                .append("<uuid>").append(uuid).append("</uuid>")
+                .append("<state>collected</state>")
+                .append("<invoice_number type=\"integer\">").append(1000 + i).append("</invoice_number>")
+                .append("<subtotal_in_cents type=\"integer\">1000</subtotal_in_cents>")
+                .append("<total_in_cents type=\"integer\">1000</total_in_cents>")
+                .append("<currency>USD</currency>")
+                .append("<created_at type=\"datetime\">2014-06-02T10:00:00Z</created_at>")
+                .append("<line_items type=\"array\">");
+            for (int j = 0; j < 3; j++) {
+                page.append("<adjustment href=\"https://api.recurly.com/v2/adjustments/").append(uuid).append(j).append("\" type=\"charge\">")
+                    .append("<account href=\"https://api.recurly.com/v2/accounts/1\"/>")
+                    .append("<uuid>").append(uuid).append(j).append("</uuid>")
+                    .append("<description>").append(UUID.randomUUID()).append("</description>")
+                    .append("<unit_amount_in_cents type=\"integer\">1000</unit_amount_in_cents>")
+                    .append("<quantity type=\"integer\">1</quantity>")
+                    .append("<total_in_cents type=\"integer\">1000</total_in_cents>")
+                    .append("<currency>USD</currency>")
+                    .append("<created_at type=\"datetime\">2014-06-02T10:00:00Z</created_at>")
+                    .append("</adjustment>");
+            }
+            page.append("</line_items>")
+                .append("<transactions type=\"array\">")
+                .append("<transaction href=\"https://api.recurly.com/v2/transactions/").append(uuid).append("\" type=\"credit_card\">")
+                .append("<account href=\"https://api.recurly.com/v2/accounts/1\"/>")
+                .append("<invoice href=\"https://api.recurly.com/v2/invoices/").append(1000 + i).append("\"/>")
+                .append("<uuid>").append(uuid).append("</uuid>")
+                .append("<action>purchase</action>")
+                .append("<amount_in_cents type=\"integer\">1000</amount_in_cents>")
+                .append("<currency>USD</currency>")
+                .append("<status>success</status>")
+                .append("<test type=\"boolean\">true</test>")
+                .append("<voidable type=\"boolean\">true</voidable>")
+                .append("<refundable type=\"boolean\">true</refundable>")
+                .append("<created_at type=\"datetime\">2014-06-02T10:00:00Z</created_at>")
+                .append("</transaction>")
+                .append("</transactions>")
+                .append("</invoice>");
+        }
+        page.append("</invoices>");
+        invoicesPage = page.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    @Benchmark
+    public Invoices mapInvoices() throws Exception {
+        return xmlMapper.readValue(new ByteArrayInputStream(invoicesPage), Invoices.class);
+    }
+
+    @Benchmark
+    public Invoices parseInvoices() throws Exception {
+        return xmlParser.parseInvoices(new ByteArrayInputStream(invoicesPage));
+    }
+}
@@ -19,22 +19,54 @@ package org.killbill.billing.plugin.recurly;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
-import org.killbill.billing.plugin.recurly.api.RecurlyPaymentPluginApi;
+import org.killbill.billing.plugin.recurly.api.RecurlyTenantPaymentPluginApi;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.core.RecurlyNotificationParser;
 import org.killbill.killbill.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ManagedService;
 import org.slf4j.impl.StaticLoggerBinder;
 
-import com.ning.billing.recurly.RecurlyClient;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class RecurlyActivator extends KillbillActivatorBase {
 
     public static final String PLUGIN_NAME = "recurly";
+    public static final String JMX_DOMAIN = "org.killbill.billing.plugin.recurly";
 
-    private RecurlyClient recurlyClient;
+    private RecurlySite defaultSite;
+    private RecurlyClientRegistry clientRegistry;
+    private RecurlyConfigListener configListener;
+    private ScheduledExecutorService synchronizationExecutor;
+    private ScheduledExecutorService transactionSynchronizationExecutor;
+    private ScheduledExecutorService reconciliationExecutor;
+    private ScheduledExecutorService httpClientCloseExecutor;
+    private ScheduledExecutorService siteCleanupExecutor;
+    private ExecutorService notificationExecutor;
+    private ExecutorService cacheWarmingExecutor;
+    private OSGIKillbillEventHandler eventHandler;
+    private JmxReporter jmxReporter;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -43,23 +75,211 @@ public class RecurlyActivator extends KillbillActivatorBase {
         // Configure slf4j for libraries
         StaticLoggerBinder.getSingleton().setLogService(logService);
 
-        recurlyClient = new RecurlyClient(System.getProperty("killbill.payment.recurly.apiKey"));
-        final RecurlyPaymentPluginApi recurlyPaymentPluginApi = new RecurlyPaymentPluginApi(recurlyClient);
+        final RecurlyConfig config = RecurlyConfig.fromSystemProperties();
+
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        jmxReporter = JmxReporter.forRegistry(metrics.getRegistry())
+                                 .inDomain(JMX_DOMAIN)
+                                 .convertDurationsTo(TimeUnit.MILLISECONDS)
+                                 .build();
+        jmxReporter.start();
+
+        // Warm the local state of the accounts about to be charged (shared by all sites)
+        if (config.isCacheWarmingEnabled()) {
+            cacheWarmingExecutor = new ThreadPoolExecutor(1,
+                                                          1,
+                                                          0L,
+                                                          TimeUnit.MILLISECONDS,
+                                                          new ArrayBlockingQueue<Runnable>(config.getCacheWarmingQueueSize()),
+                                                          new ThreadFactoryBuilder().setNameFormat("recurly-warming-%d")
+                                                                                    .setDaemon(true)
+                                                                                    .build());
+        }
+
+        // One push notification processor per site with webhook credentials
+        notificationExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("recurly-notifications-%d")
+                                                                                       .setDaemon(true)
+                                                                                       .build());
+
+        // Site of the JVM-wide configuration, used by tenants without their own Recurly configuration
+        defaultSite = new RecurlySite(PLUGIN_NAME, config, dataSource.getDataSource(), metrics, cacheWarmingExecutor, notificationExecutor);
+        final RecurlyBillingInfoCache billingInfoCache = defaultSite.getBillingInfoCache();
+        metrics.registerBillingInfoCache(billingInfoCache);
+        metrics.registerRateLimiter(defaultSite.getRateLimiter());
+        metrics.registerCallGuard(defaultSite.getCallGuard());
+
+        // Tenants with their own Recurly site get their own clients
+        clientRegistry = new RecurlyClientRegistry(config, defaultSite, dataSource.getDataSource(), metrics, cacheWarmingExecutor, notificationExecutor);
+        metrics.getRegistry().register(MetricRegistry.name("tenants", "sites"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return clientRegistry.getNbTenantSites();
+            }
+        });
+        final RecurlyTenantPaymentPluginApi tenantPaymentPluginApi = new RecurlyTenantPaymentPluginApi(new Function<UUID, PaymentPluginApi>() {
+            @Override
+            public PaymentPluginApi apply(final UUID tenantId) {
+                return clientRegistry.getSite(tenantId).getPaymentPluginApi();
+            }
+        });
+
+        registerPaymentPluginApi(context, metrics.instrument(PaymentPluginApi.class, tenantPaymentPluginApi));
+
+        // Close the clients of idle tenants (not held up by the synchronizations)
+        siteCleanupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("recurly-site-cleanup-%d")
+                                                                                                   .setDaemon(true)
+                                                                                                   .build());
+        siteCleanupExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                       @Override
+                                                       public void run() {
+                                                           clientRegistry.cleanUp();
+                                                       }
+                                                   },
+                                                   60,
+                                                   60,
+                                                   TimeUnit.SECONDS);
+
+        synchronizationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("recurly-sync-%d")
+                                                                                                       .setDaemon(true)
+                                                                                                       .build());
+
+        // Keep the local copy of the billing information (used for search) of each site in sync with Recurly
+        if (config.getBillingInfoSyncIntervalSeconds() > 0) {
+            synchronizationExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                               @Override
+                                                               public void run() {
+                                                                   // Tenant sites closed since are synchronized again once used
+                                                                   for (final RecurlySite site : clientRegistry.getOpenSites()) {
+                                                                       if (site.getBillingInfoSynchronizer() != null) {
+                                                                           site.getBillingInfoSynchronizer().run();
+                                                                       }
+                                                                   }
+                                                               }
+                                                           },
+                                                           0,
+                                                           config.getBillingInfoSyncIntervalSeconds(),
+                                                           TimeUnit.SECONDS);
+        }
+
+        // Keep the local copy of the transactions (used for lookups and search) of each site in sync with Recurly
+        if (config.getTransactionSyncIntervalSeconds() > 0) {
+            // Not held up by a full billing information synchronization
+            transactionSynchronizationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("recurly-transaction-sync-%d")
+                                                                                                                      .setDaemon(true)
+                                                                                                                      .build());
+            transactionSynchronizationExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                                          @Override
+                                                                          public void run() {
+                                                                              for (final RecurlySite site : clientRegistry.getOpenSites()) {
+                                                                                  if (site.getTransactionSynchronizer() != null) {
+                                                                                      site.getTransactionSynchronizer().run();
+                                                                                  }
+                                                                              }
+                                                                          }
+                                                                      },
+                                                                      0,
+                                                                      config.getTransactionSyncIntervalSeconds(),
+                                                                      TimeUnit.SECONDS);
+        }
+
+        // Find out what happened to payments with an unknown outcome (e.g. timeouts), on the site they were made on
+        if (config.getPaymentReconciliationIntervalSeconds() > 0) {
+            // Pending payments must not wait for the (possibly hours long) synchronizations
+            reconciliationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("recurly-reconciler-%d")
+                                                                                                          .setDaemon(true)
+                                                                                                          .build());
+            reconciliationExecutor.scheduleWithFixedDelay(new Runnable() {
+                                                              @Override
+                                                              public void run() {
+                                                                  // Payments of closed tenant sites are reconciled once the site is used again
+                                                                  for (final RecurlySite site : clientRegistry.getOpenSites()) {
+                                                                      if (site.getPaymentReconciler() != null) {
+                                                                          site.getPaymentReconciler().run();
+                                                                      }
+                                                                  }
+                                                              }
+                                                          },
+                                                          config.getPaymentReconciliationIntervalSeconds(),
+                                                          config.getPaymentReconciliationIntervalSeconds(),
+                                                          TimeUnit.SECONDS);
+        }
+
+        // Apply the Recurly push notifications to the local copy of each site as they come in (sites without credentials reject them)
+        registerServlet(context, new RecurlyWebhookServlet(new RecurlyNotificationParser(), clientRegistry, metrics));
+
+        // Warm the local state of the accounts about to be charged, on the site of their tenant
+        if (cacheWarmingExecutor != null) {
+            eventHandler = new OSGIKillbillEventHandler() {
+                @Override
+                public void handleKillbillEvent(final ExtBusEvent event) {
+                    clientRegistry.getSite(event.getTenantId()).getEventHandler().handleKillbillEvent(event);
+                }
+            };
+            // Not available yet when the base activator looked for it
+            dispatcher.registerEventHandler(eventHandler);
+        }
 
-        registerPaymentPluginApi(context, recurlyPaymentPluginApi);
+        // HTTP settings can be updated at runtime: the previous clients must be closed on time, not after the (possibly hours long) synchronizations
+        httpClientCloseExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("recurly-http-close-%d")
+                                                                                                       .setDaemon(true)
+                                                                                                       .build());
+        configListener = new RecurlyConfigListener(config, clientRegistry, httpClientCloseExecutor);
+        registerConfigListener(context, configListener);
     }
 
     @Override
     public void stop(final BundleContext context) throws Exception {
-        if (recurlyClient != null) {
-            recurlyClient.close();
+        if (synchronizationExecutor != null) {
+            synchronizationExecutor.shutdownNow();
+        }
+        if (transactionSynchronizationExecutor != null) {
+            transactionSynchronizationExecutor.shutdownNow();
+        }
+        if (reconciliationExecutor != null) {
+            reconciliationExecutor.shutdownNow();
+        }
+        if (siteCleanupExecutor != null) {
+            siteCleanupExecutor.shutdownNow();
+        }
+        if (httpClientCloseExecutor != null) {
+            httpClientCloseExecutor.shutdownNow();
+        }
+        if (notificationExecutor != null) {
+            notificationExecutor.shutdownNow();
+        }
+        if (cacheWarmingExecutor != null) {
+            cacheWarmingExecutor.shutdownNow();
+        }
+        if (clientRegistry != null) {
+            clientRegistry.close();
+        }
+        if (defaultSite != null) {
+            defaultSite.close();
+        }
+        if (configListener != null) {
+            configListener.close();
+        }
+        if (jmxReporter != null) {
+            jmxReporter.stop();
         }
         super.stop(context);
     }
 
     @Override
     public OSGIKillbillEventHandler getOSGIKillbillEventHandler() {
-        return null;
+        return eventHandler;
+    }
+
+    private void registerConfigListener(final BundleContext context, final ManagedService configListener) {
+        final Dictionary props = new Hashtable();
+        props.put(Constants.SERVICE_PID, RecurlyConfigListener.PID);
+        registrar.registerService(context, ManagedService.class, configListener, props);
+    }
+
+    private void registerServlet(final BundleContext context, final HttpServlet servlet) {
+        final Dictionary props = new Hashtable();
+        props.put(OSGIPluginProperties.PLUGIN_NAME_PROP, PLUGIN_NAME);
+        registrar.registerService(context, Servlet.class, servlet, props);
     }
 
     private void registerPaymentPluginApi(final BundleContext context, final PaymentPluginApi api) {
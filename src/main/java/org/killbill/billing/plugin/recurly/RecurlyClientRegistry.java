@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncHttpClient;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Recurly site of each Kill Bill tenant. Tenants with their own Recurly configuration
+ * (killbill.payment.recurly.tenants.&lt;tenantId&gt;.* properties, see RecurlyConfig) get their own site, created on first use,
+ * so that a busy tenant never takes up the connections or the rate limit of the others. Other tenants share the default site.
+ * <p/>
+ * Sites not used for a while are closed (see cleanUp), and re-created when needed again.
+ */
+public class RecurlyClientRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyClientRegistry.class);
+
+    private final RecurlySite defaultSite;
+    private final LoadingCache<UUID, RecurlySite> tenantSites;
+    // Updated at runtime (see RecurlyConfigListener): the sites created from now on use the latest settings
+    private volatile RecurlyConfig config;
+
+    /**
+     * @param defaultConfig        JVM-wide configuration
+     * @param defaultSite          site of the tenants without their own Recurly configuration
+     * @param dataSource           local store, null if not available
+     * @param metrics              plugin metrics, shared by all sites
+     * @param cacheWarmingExecutor shared by all sites, null if cache warming is disabled
+     * @param notificationExecutor runs the push notification processor of each site, null if push notifications are disabled
+     */
+    public RecurlyClientRegistry(final RecurlyConfig defaultConfig, final RecurlySite defaultSite, final DataSource dataSource, final RecurlyMetrics metrics,
+                                 final ExecutorService cacheWarmingExecutor, final ExecutorService notificationExecutor) {
+        this(defaultConfig, defaultSite, dataSource, metrics, cacheWarmingExecutor, notificationExecutor, Ticker.systemTicker());
+    }
+
+    RecurlyClientRegistry(final RecurlyConfig defaultConfig, final RecurlySite defaultSite, final DataSource dataSource, final RecurlyMetrics metrics,
+                          final ExecutorService cacheWarmingExecutor, final ExecutorService notificationExecutor, final Ticker ticker) {
+        this.config = defaultConfig;
+        this.defaultSite = defaultSite;
+        this.tenantSites = CacheBuilder.newBuilder()
+                                       .expireAfterAccess(defaultConfig.getTenantIdleSeconds(), TimeUnit.SECONDS)
+                                       .ticker(ticker)
+                                       .removalListener(new RemovalListener<UUID, RecurlySite>() {
+                                           @Override
+                                           public void onRemoval(final RemovalNotification<UUID, RecurlySite> notification) {
+                                               // Idle for longer than any call can take: nothing is in flight anymore
+                                               notification.getValue().close();
+                                               log.info("Closed Recurly clients of tenant " + notification.getKey());
+                                           }
+                                       })
+                                       .build(new CacheLoader<UUID, RecurlySite>() {
+                                           @Override
+                                           public RecurlySite load(final UUID tenantId) {
+                                               log.info("Creating Recurly clients of tenant " + tenantId);
+                                               return new RecurlySite(RecurlyActivator.PLUGIN_NAME + "-" + tenantId, config.forTenant(tenantId), dataSource, metrics, cacheWarmingExecutor, notificationExecutor);
+                                           }
+                                       });
+    }
+
+    // Site of the tenant, the default one if the tenant doesn't have its own Recurly configuration
+    public RecurlySite getSite(final UUID tenantId) {
+        if (!hasOwnSite(tenantId)) {
+            return defaultSite;
+        }
+        return tenantSites.getUnchecked(tenantId);
+    }
+
+    public boolean hasOwnSite(final UUID tenantId) {
+        return tenantId != null && config.hasTenantConfig(tenantId);
+    }
+
+    // Configuration of the site of the tenant, without opening it (e.g. to authenticate a request first)
+    public RecurlyConfig getSiteConfig(final UUID tenantId) {
+        if (!hasOwnSite(tenantId)) {
+            return config;
+        }
+        return config.forTenant(tenantId);
+    }
+
+    public RecurlySite getDefaultSite() {
+        return defaultSite;
+    }
+
+    // Default site first, then the tenant sites currently open (listing them doesn't keep them open)
+    public List<RecurlySite> getOpenSites() {
+        return ImmutableList.<RecurlySite>builder()
+                            .add(defaultSite)
+                            .addAll(tenantSites.asMap().values())
+                            .build();
+    }
+
+    /**
+     * Apply updated HTTP settings to every open site, and to the sites created from now on.
+     *
+     * @param updatedConfig default configuration, with the updated settings
+     * @return the previous HTTP clients, which the caller is responsible for closing
+     */
+    public List<AsyncHttpClient> reconfigure(final RecurlyConfig updatedConfig) {
+        config = updatedConfig;
+
+        final ImmutableList.Builder<AsyncHttpClient> previousHttpClients = ImmutableList.<AsyncHttpClient>builder();
+        previousHttpClients.add(defaultSite.reconfigure(updatedConfig));
+        for (final Map.Entry<UUID, RecurlySite> tenantSite : tenantSites.asMap().entrySet()) {
+            // Tenant settings still take precedence
+            previousHttpClients.add(tenantSite.getValue().reconfigure(updatedConfig.forTenant(tenantSite.getKey())));
+        }
+        return previousHttpClients.build();
+    }
+
+    // Number of tenant sites currently open
+    public long getNbTenantSites() {
+        return tenantSites.size();
+    }
+
+    // Close the idle sites (the cache only evicts on access otherwise)
+    public void cleanUp() {
+        tenantSites.cleanUp();
+    }
+
+    public void close() {
+        tenantSites.invalidateAll();
+        tenantSites.cleanUp();
+    }
+}
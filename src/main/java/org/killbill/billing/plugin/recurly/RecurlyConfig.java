@@ -0,0 +1,329 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyCallGuard;
+import org.killbill.billing.plugin.recurly.client.RecurlyCircuitBreaker;
+
+import com.ning.http.client.AsyncHttpClientConfig;
+
+import com.google.common.base.Strings;
+
+/**
+ * Plugin configuration. All properties are prefixed by killbill.payment.recurly. and default to the
+ * JVM system properties, overridden by the OSGI configuration (see RecurlyConfigListener).
+ */
+public class RecurlyConfig {
+
+    public static final String PROPERTY_PREFIX = "killbill.payment.recurly.";
+    // Per-tenant properties, e.g. killbill.payment.recurly.tenants.<tenantId>.apiKey
+    public static final String TENANTS_PREFIX = PROPERTY_PREFIX + "tenants.";
+
+    private final Properties properties;
+
+    public RecurlyConfig(final Properties properties) {
+        this.properties = properties;
+    }
+
+    public static RecurlyConfig fromSystemProperties() {
+        return new RecurlyConfig(System.getProperties());
+    }
+
+    public RecurlyConfig withOverrides(final Dictionary<String, ?> overrides) {
+        final Properties merged = new Properties();
+        merged.putAll(properties);
+        if (overrides != null) {
+            final Enumeration<String> keys = overrides.keys();
+            while (keys.hasMoreElements()) {
+                final String key = keys.nextElement();
+                merged.put(key, String.valueOf(overrides.get(key)));
+            }
+        }
+        return new RecurlyConfig(merged);
+    }
+
+    // Configuration of the tenant: its own properties override the defaults
+    public RecurlyConfig forTenant(final UUID tenantId) {
+        final String tenantPrefix = TENANTS_PREFIX + tenantId + ".";
+        final Properties merged = new Properties();
+        merged.putAll(properties);
+        // Never inherited: the tenant would see the rows of the default site otherwise
+        merged.remove(PROPERTY_PREFIX + "siteId");
+        // Never inherited either: knowing the credentials of a site must not be enough to push notifications to another one
+        merged.remove(PROPERTY_PREFIX + "webhook.username");
+        merged.remove(PROPERTY_PREFIX + "webhook.password");
+        for (final String key : properties.stringPropertyNames()) {
+            if (key.startsWith(tenantPrefix)) {
+                merged.put(PROPERTY_PREFIX + key.substring(tenantPrefix.length()), properties.getProperty(key));
+            }
+        }
+        return new RecurlyConfig(merged);
+    }
+
+    // Whether the tenant has its own Recurly site
+    public boolean hasTenantConfig(final UUID tenantId) {
+        return properties.getProperty(TENANTS_PREFIX + tenantId + ".apiKey") != null;
+    }
+
+    // Clients of tenants not seen for that long are closed
+    public long getTenantIdleSeconds() {
+        return getLong("tenants.idleSeconds", 3600);
+    }
+
+    public String getApiKey() {
+        return getString("apiKey", null);
+    }
+
+    // Identifies the Recurly site in the local store (required): never derived from the API key, so that rotating it keeps the existing rows
+    public String getSiteId() {
+        final String siteId = getString("siteId", null);
+        if (Strings.isNullOrEmpty(siteId)) {
+            throw new IllegalStateException("Missing " + PROPERTY_PREFIX + "siteId (or " + TENANTS_PREFIX + "<tenantId>.siteId for a tenant with its own apiKey)");
+        }
+        return siteId;
+    }
+
+    public String getBaseUrl() {
+        return getString("baseUrl", RecurlyAsyncClient.DEFAULT_BASE_URL);
+    }
+
+    public int getPageSize() {
+        return getInt("pageSize", 50);
+    }
+
+    // Pages of list calls requested ahead while the current one is being processed
+    public int getNbPagesToPrefetch() {
+        return getInt("prefetchPages", RecurlyAsyncClient.DEFAULT_NB_PAGES_TO_PREFETCH);
+    }
+
+    public int getSearchParallelism() {
+        return getInt("search.parallelism", 4);
+    }
+
+    // Recurly allows 2,000 calls per 5 minutes in production
+    public double getRateLimitPermitsPerSecond() {
+        return getDouble("rateLimit.permitsPerSecond", 6.5);
+    }
+
+    public double getRateLimitBurst() {
+        return getDouble("rateLimit.burst", 20);
+    }
+
+    // Rate of failed calls (5xx, timeouts, ...) among the last calls opening the circuit breaker
+    public double getCircuitBreakerFailureRateThreshold() {
+        return getDouble("circuitBreaker.failureRateThreshold", RecurlyCircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD);
+    }
+
+    // Rate of slow calls among the last calls opening the circuit breaker
+    public double getCircuitBreakerSlowCallRateThreshold() {
+        return getDouble("circuitBreaker.slowCallRateThreshold", RecurlyCircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD);
+    }
+
+    public long getCircuitBreakerSlowCallDurationMs() {
+        return getLong("circuitBreaker.slowCallDurationMs", RecurlyCircuitBreaker.DEFAULT_SLOW_CALL_DURATION_MS);
+    }
+
+    // Number of calls the rates are computed over
+    public int getCircuitBreakerWindowSize() {
+        return getInt("circuitBreaker.windowSize", RecurlyCircuitBreaker.DEFAULT_WINDOW_SIZE);
+    }
+
+    public int getCircuitBreakerMinNbCalls() {
+        return getInt("circuitBreaker.minNbCalls", RecurlyCircuitBreaker.DEFAULT_MIN_NB_CALLS);
+    }
+
+    // Calls are rejected for this long once the circuit breaker opens, before probing Recurly again
+    public long getCircuitBreakerOpenDurationSeconds() {
+        return getLong("circuitBreaker.openDurationSeconds", RecurlyCircuitBreaker.DEFAULT_OPEN_DURATION_SECONDS);
+    }
+
+    public int getCircuitBreakerHalfOpenCalls() {
+        return getInt("circuitBreaker.halfOpenCalls", RecurlyCircuitBreaker.DEFAULT_NB_HALF_OPEN_CALLS);
+    }
+
+    // Maximum number of Recurly calls in flight for payments and refunds
+    public int getBulkheadMaxPaymentCalls() {
+        return getInt("bulkhead.payments", RecurlyCallGuard.DEFAULT_MAX_PAYMENT_CALLS);
+    }
+
+    // Maximum number of other Recurly calls in flight on behalf of Kill Bill
+    public int getBulkheadMaxReadCalls() {
+        return getInt("bulkhead.reads", RecurlyCallGuard.DEFAULT_MAX_READ_CALLS);
+    }
+
+    // Maximum number of Recurly calls in flight for searches and background synchronization
+    public int getBulkheadMaxSearchCalls() {
+        return getInt("bulkhead.searches", RecurlyCallGuard.DEFAULT_MAX_SEARCH_CALLS);
+    }
+
+    // Calls waiting longer than this for room in their bulkhead are rejected
+    public long getBulkheadMaxWaitMs() {
+        return getLong("bulkhead.maxWaitMs", RecurlyCallGuard.DEFAULT_MAX_WAIT_MS);
+    }
+
+    // The push notifications endpoint is only exposed once its credentials are configured
+    public boolean isWebhookEnabled() {
+        return !Strings.isNullOrEmpty(getWebhookUsername()) && !Strings.isNullOrEmpty(getWebhookPassword());
+    }
+
+    // HTTP basic authentication credentials expected on the push notifications (none by default)
+    public String getWebhookUsername() {
+        return getString("webhook.username", null);
+    }
+
+    public String getWebhookPassword() {
+        return getString("webhook.password", null);
+    }
+
+    // Maximum number of push notifications waiting to be applied (Recurly retries the ones rejected)
+    public int getWebhookQueueSize() {
+        return getInt("webhook.queueSize", 10000);
+    }
+
+    // Maximum number of push notifications applied at once
+    public int getWebhookBatchSize() {
+        return getInt("webhook.batchSize", 100);
+    }
+
+    // Warm the billing information and transactions of the accounts being invoiced by Kill Bill
+    public boolean isCacheWarmingEnabled() {
+        return getBoolean("cacheWarming.enabled", true);
+    }
+
+    // Maximum number of accounts waiting to be warmed (further Kill Bill events are ignored)
+    public int getCacheWarmingQueueSize() {
+        return getInt("cacheWarming.queueSize", 1000);
+    }
+
+    public long getBillingInfoSyncIntervalSeconds() {
+        return getLong("billingInfo.syncIntervalSeconds", 86400);
+    }
+
+    public long getTransactionSyncIntervalSeconds() {
+        return getLong("transactions.syncIntervalSeconds", 300);
+    }
+
+    // How far back each run goes before the high-water mark of the previous one (transactions updated within the same second, clock skew)
+    public long getTransactionSyncOverlapSeconds() {
+        return getLong("transactions.syncOverlapSeconds", 3600);
+    }
+
+    public long getBillingInfoCacheMaxSize() {
+        return getLong("billingInfo.cacheMaxSize", 10000);
+    }
+
+    public long getBillingInfoCacheTtlSeconds() {
+        return getLong("billingInfo.cacheTtlSeconds", 300);
+    }
+
+    // Payments with an unknown outcome (e.g. timeout) are looked up in Recurly at this interval
+    public long getPaymentReconciliationIntervalSeconds() {
+        return getLong("payment.reconciliationIntervalSeconds", 60);
+    }
+
+    // Payments still pending after this delay either reached Recurly or never will (must exceed the HTTP request timeout)
+    public long getPaymentPendingTimeoutSeconds() {
+        return getLong("payment.pendingTimeoutSeconds", 300);
+    }
+
+    public int getMaxConnectionsTotal() {
+        return getInt("http.maxConnectionsTotal", 100);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return getInt("http.maxConnectionsPerHost", 50);
+    }
+
+    // Pool (keep-alive) connections to Recurly, to avoid a TLS handshake per call
+    public boolean isKeepAlive() {
+        return getBoolean("http.keepAlive", true);
+    }
+
+    // Pooled connections idle for longer than this are closed
+    public int getIdleConnectionInPoolTimeoutMs() {
+        return getInt("http.idleConnectionInPoolTimeoutMs", 60000);
+    }
+
+    // Pooled connections are recycled after this delay (-1 for never), e.g. to follow DNS changes
+    public int getMaxConnectionLifeTimeMs() {
+        return getInt("http.maxConnectionLifeTimeMs", -1);
+    }
+
+    public int getConnectTimeoutMs() {
+        return getInt("http.connectTimeoutMs", 5000);
+    }
+
+    // Maximum time without receiving any data on an open connection
+    public int getReadTimeoutMs() {
+        return getInt("http.readTimeoutMs", 30000);
+    }
+
+    // Maximum time for the whole call
+    public int getRequestTimeoutMs() {
+        return getInt("http.requestTimeoutMs", 60000);
+    }
+
+    public boolean isCompressionEnabled() {
+        return getBoolean("http.compressionEnabled", true);
+    }
+
+    public AsyncHttpClientConfig getAsyncHttpClientConfig() {
+        return new AsyncHttpClientConfig.Builder().setMaximumConnectionsTotal(getMaxConnectionsTotal())
+                                                  .setMaximumConnectionsPerHost(getMaxConnectionsPerHost())
+                                                  .setAllowPoolingConnection(isKeepAlive())
+                                                  .setAllowSslConnectionPool(isKeepAlive())
+                                                  .setKeepAlive(isKeepAlive())
+                                                  .setIdleConnectionInPoolTimeoutInMs(getIdleConnectionInPoolTimeoutMs())
+                                                  .setMaxConnectionLifeTimeInMs(getMaxConnectionLifeTimeMs())
+                                                  .setConnectionTimeoutInMs(getConnectTimeoutMs())
+                                                  .setIdleConnectionTimeoutInMs(getReadTimeoutMs())
+                                                  .setRequestTimeoutInMs(getRequestTimeoutMs())
+                                                  .setCompressionEnabled(isCompressionEnabled())
+                                                  .build();
+    }
+
+    private String getString(final String key, final String defaultValue) {
+        return properties.getProperty(PROPERTY_PREFIX + key, defaultValue);
+    }
+
+    private int getInt(final String key, final int defaultValue) {
+        final String value = getString(key, null);
+        return value == null ? defaultValue : Integer.valueOf(value.trim());
+    }
+
+    private long getLong(final String key, final long defaultValue) {
+        final String value = getString(key, null);
+        return value == null ? defaultValue : Long.valueOf(value.trim());
+    }
+
+    private double getDouble(final String key, final double defaultValue) {
+        final String value = getString(key, null);
+        return value == null ? defaultValue : Double.valueOf(value.trim());
+    }
+
+    private boolean getBoolean(final String key, final boolean defaultValue) {
+        final String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.valueOf(value.trim());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncHttpClient;
+
+/**
+ * Apply the HTTP settings updated via the OSGI configuration admin, without restarting the bundle:
+ * a new HTTP client is swapped in on every open site (and used by the sites opened later on), the previous ones
+ * are closed once their in-flight calls have timed out.
+ */
+public class RecurlyConfigListener implements ManagedService {
+
+    public static final String PID = "org.killbill.billing.plugin.recurly";
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyConfigListener.class);
+
+    private final RecurlyConfig defaultConfig;
+    private final RecurlyClientRegistry clientRegistry;
+    // Closes the previous HTTP clients: must not be shared with long running tasks, or they would stay open well past their timeout
+    private final ScheduledExecutorService executor;
+    private final Set<AsyncHttpClient> previousHttpClients = Collections.newSetFromMap(new ConcurrentHashMap<AsyncHttpClient, Boolean>());
+
+    public RecurlyConfigListener(final RecurlyConfig defaultConfig, final RecurlyClientRegistry clientRegistry, final ScheduledExecutorService executor) {
+        this.defaultConfig = defaultConfig;
+        this.clientRegistry = clientRegistry;
+        this.executor = executor;
+    }
+
+    @Override
+    public void updated(final Dictionary<String, ?> properties) throws ConfigurationException {
+        if (properties == null) {
+            // Initial callback when no configuration has been created yet
+            return;
+        }
+
+        final RecurlyConfig config;
+        try {
+            config = defaultConfig.withOverrides(properties);
+            // Validate the HTTP settings before touching any site
+            config.getAsyncHttpClientConfig();
+        } catch (final NumberFormatException e) {
+            throw new ConfigurationException(null, "Invalid Recurly plugin configuration", e);
+        }
+
+        final List<AsyncHttpClient> reconfiguredHttpClients = clientRegistry.reconfigure(config);
+        previousHttpClients.addAll(reconfiguredHttpClients);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (final AsyncHttpClient previousHttpClient : reconfiguredHttpClients) {
+                    if (previousHttpClients.remove(previousHttpClient)) {
+                        previousHttpClient.close();
+                    }
+                }
+            }
+        }, config.getRequestTimeoutMs(), TimeUnit.MILLISECONDS);
+
+        log.info("Recurly HTTP clients of " + reconfiguredHttpClients.size() + " site(s) reconfigured");
+    }
+
+    // Close the clients which haven't been closed yet (e.g. bundle stopped right after a reconfiguration)
+    public void close() {
+        for (final AsyncHttpClient previousHttpClient : previousHttpClients) {
+            if (previousHttpClients.remove(previousHttpClient)) {
+                previousHttpClient.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.recurly.api.RecurlyPaymentPluginApi;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyCallGuard;
+import org.killbill.billing.plugin.recurly.client.RecurlyCircuitBreaker;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.core.RecurlyBillingInfoSynchronizer;
+import org.killbill.billing.plugin.recurly.core.RecurlyEventHandler;
+import org.killbill.billing.plugin.recurly.core.RecurlyNotificationProcessor;
+import org.killbill.billing.plugin.recurly.core.RecurlyPaymentReconciler;
+import org.killbill.billing.plugin.recurly.core.RecurlyTransactionSynchronizer;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+
+import com.ning.http.client.AsyncHttpClient;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Clients of a Recurly site, and the plugin API on top of them. Each site has its own connection pool, rate limiter,
+ * circuit breaker and bulkheads, billing information cache and search threads (see RecurlyClientRegistry).
+ * <p/>
+ * The local store is scoped to the site (see RecurlyConfig#getSiteId): sites never see each other's payments,
+ * transactions or billing information. Each site has its own synchronizers, event handler and push notification processor
+ * to populate it (see RecurlyActivator and RecurlyWebhookServlet).
+ */
+public class RecurlySite {
+
+    private final RecurlyConfig config;
+    private final RecurlyDao dao;
+    private final RecurlyRateLimiter rateLimiter;
+    private final RecurlyCallGuard callGuard;
+    // Used for all the Recurly calls of the site, so that they all honor the HTTP settings
+    private final RecurlyAsyncClient recurlyAsyncClient;
+    private final ExecutorService searchExecutor;
+    private final RecurlyBillingInfoCache billingInfoCache;
+    private final RecurlyPaymentPluginApi paymentPluginApi;
+    private final RecurlyPaymentReconciler paymentReconciler;
+    private final RecurlyBillingInfoSynchronizer billingInfoSynchronizer;
+    private final RecurlyTransactionSynchronizer transactionSynchronizer;
+    private final RecurlyEventHandler eventHandler;
+    private final RecurlyNotificationProcessor notificationProcessor;
+    private final Future<?> notificationProcessing;
+
+    public RecurlySite(final String name, final RecurlyConfig config, final DataSource dataSource, final RecurlyMetrics metrics) {
+        this(name, config, dataSource, metrics, null, null);
+    }
+
+    /**
+     * @param name                 used in the thread names (e.g. recurly)
+     * @param config               configuration of the site
+     * @param dataSource           local store, null if not available
+     * @param metrics              plugin metrics, shared by all sites
+     * @param cacheWarmingExecutor shared by all sites, null if cache warming is disabled
+     * @param notificationExecutor runs the push notification processor of each site, null if push notifications are disabled
+     */
+    public RecurlySite(final String name, final RecurlyConfig config, final DataSource dataSource, final RecurlyMetrics metrics,
+                       final ExecutorService cacheWarmingExecutor, final ExecutorService notificationExecutor) {
+        this.config = config;
+        this.dao = dataSource == null ? null : new RecurlyDao(dataSource, config.getSiteId());
+
+        // Shared by all Recurly calls, payments having priority over searches and synchronization
+        this.rateLimiter = new RecurlyRateLimiter(config.getRateLimitPermitsPerSecond(), config.getRateLimitBurst());
+        // Fail fast when Recurly degrades, and keep searches from taking up the capacity needed by payments
+        final Supplier<RecurlyCircuitBreaker> circuitBreakerFactory = new Supplier<RecurlyCircuitBreaker>() {
+            @Override
+            public RecurlyCircuitBreaker get() {
+                return new RecurlyCircuitBreaker(config.getCircuitBreakerFailureRateThreshold(),
+                                                 config.getCircuitBreakerSlowCallRateThreshold(),
+                                                 config.getCircuitBreakerSlowCallDurationMs(),
+                                                 config.getCircuitBreakerWindowSize(),
+                                                 config.getCircuitBreakerMinNbCalls(),
+                                                 config.getCircuitBreakerOpenDurationSeconds(),
+                                                 config.getCircuitBreakerHalfOpenCalls());
+            }
+        };
+        this.callGuard = new RecurlyCallGuard(rateLimiter,
+                                              metrics,
+                                              circuitBreakerFactory,
+                                              config.getBulkheadMaxPaymentCalls(),
+                                              config.getBulkheadMaxReadCalls(),
+                                              config.getBulkheadMaxSearchCalls(),
+                                              config.getBulkheadMaxWaitMs());
+
+        this.recurlyAsyncClient = new RecurlyAsyncClient(config.getApiKey(), config.getBaseUrl(), config.getPageSize(), config.getNbPagesToPrefetch(), new AsyncHttpClient(config.getAsyncHttpClientConfig()), callGuard, metrics);
+
+        // Number of concurrent Recurly calls per search (stay under the Recurly rate limit)
+        this.searchExecutor = Executors.newFixedThreadPool(config.getSearchParallelism(), new ThreadFactoryBuilder().setNameFormat(name + "-search-%d")
+                                                                                                                    .setDaemon(true)
+                                                                                                                    .build());
+        this.billingInfoCache = new RecurlyBillingInfoCache(recurlyAsyncClient,
+                                                            config.getBillingInfoCacheMaxSize(),
+                                                            config.getBillingInfoCacheTtlSeconds());
+        this.paymentPluginApi = new RecurlyPaymentPluginApi(recurlyAsyncClient,
+                                                            dao,
+                                                            searchExecutor,
+                                                            billingInfoCache,
+                                                            config.getPaymentPendingTimeoutSeconds());
+        this.paymentReconciler = dao == null ? null : new RecurlyPaymentReconciler(paymentPluginApi, dao, config.getPaymentPendingTimeoutSeconds());
+        this.billingInfoSynchronizer = dao == null ? null : new RecurlyBillingInfoSynchronizer(recurlyAsyncClient, billingInfoCache, metrics, dao);
+        this.transactionSynchronizer = dao == null ? null : new RecurlyTransactionSynchronizer(recurlyAsyncClient, dao, metrics, config.getTransactionSyncOverlapSeconds());
+        this.eventHandler = cacheWarmingExecutor == null ? null : new RecurlyEventHandler(billingInfoCache, recurlyAsyncClient, dao, metrics, cacheWarmingExecutor);
+
+        // Only once the site has its own webhook credentials
+        if (dao == null || notificationExecutor == null || !config.isWebhookEnabled()) {
+            this.notificationProcessor = null;
+            this.notificationProcessing = null;
+        } else {
+            this.notificationProcessor = new RecurlyNotificationProcessor(dao, billingInfoCache, metrics, config.getWebhookQueueSize(), config.getWebhookBatchSize());
+            this.notificationProcessing = notificationExecutor.submit(notificationProcessor);
+        }
+    }
+
+    public RecurlyConfig getConfig() {
+        return config;
+    }
+
+    // Local store of the site, null if not available
+    public RecurlyDao getDao() {
+        return dao;
+    }
+
+    public RecurlyRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public RecurlyCallGuard getCallGuard() {
+        return callGuard;
+    }
+
+    public RecurlyAsyncClient getRecurlyAsyncClient() {
+        return recurlyAsyncClient;
+    }
+
+    public RecurlyBillingInfoCache getBillingInfoCache() {
+        return billingInfoCache;
+    }
+
+    public RecurlyPaymentPluginApi getPaymentPluginApi() {
+        return paymentPluginApi;
+    }
+
+    // Null if the local store isn't available
+    public RecurlyPaymentReconciler getPaymentReconciler() {
+        return paymentReconciler;
+    }
+
+    // Null if the local store isn't available
+    public RecurlyBillingInfoSynchronizer getBillingInfoSynchronizer() {
+        return billingInfoSynchronizer;
+    }
+
+    // Null if the local store isn't available
+    public RecurlyTransactionSynchronizer getTransactionSynchronizer() {
+        return transactionSynchronizer;
+    }
+
+    // Null if cache warming is disabled
+    public RecurlyEventHandler getEventHandler() {
+        return eventHandler;
+    }
+
+    // Null if push notifications aren't configured for the site (or the local store isn't available)
+    public RecurlyNotificationProcessor getNotificationProcessor() {
+        return notificationProcessor;
+    }
+
+    // Swap in an HTTP client with the updated settings: returns the previous one, which the caller is responsible for closing
+    public AsyncHttpClient reconfigure(final RecurlyConfig updatedConfig) {
+        return recurlyAsyncClient.setHttpClient(new AsyncHttpClient(updatedConfig.getAsyncHttpClientConfig()));
+    }
+
+    public void close() {
+        if (notificationProcessing != null) {
+            // Notifications still queued are picked up by the next synchronization
+            notificationProcessing.cancel(true);
+        }
+        searchExecutor.shutdownNow();
+        recurlyAsyncClient.close();
+    }
+}
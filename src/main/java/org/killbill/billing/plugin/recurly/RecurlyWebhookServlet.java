@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.core.RecurlyNotification;
+import org.killbill.billing.plugin.recurly.core.RecurlyNotificationParser;
+import org.killbill.billing.plugin.recurly.core.RecurlyNotificationProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Endpoint for the Recurly push notifications (webhooks), served by Kill Bill under /plugins/recurly/ for the default site,
+ * and under /plugins/recurly/tenants/&lt;tenantId&gt; for the tenants with their own site. Each site expects its own credentials
+ * (webhook.username and webhook.password, never inherited from the default site).
+ * <p/>
+ * Notifications are parsed right away and queued for the RecurlyNotificationProcessor of the site, so that Recurly gets its answer
+ * without waiting for the database. Recurly retries the notifications we couldn't queue (non-2xx responses).
+ */
+public class RecurlyWebhookServlet extends HttpServlet {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyWebhookServlet.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern TENANT_PATH = Pattern.compile("/tenants/([^/]+)/?");
+
+    private final RecurlyNotificationParser parser;
+    private final RecurlyClientRegistry clientRegistry;
+    private final RecurlyMetrics metrics;
+
+    public RecurlyWebhookServlet(final RecurlyNotificationParser parser, final RecurlyClientRegistry clientRegistry, final RecurlyMetrics metrics) {
+        this.parser = parser;
+        this.clientRegistry = clientRegistry;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final UUID tenantId;
+        try {
+            tenantId = getTenantId(request);
+        } catch (final IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (tenantId != null && !clientRegistry.hasOwnSite(tenantId)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // Authenticated before the site is opened
+        if (!isAuthorized(request, clientRegistry.getSiteConfig(tenantId))) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"" + RecurlyActivator.PLUGIN_NAME + "\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        final RecurlyNotificationProcessor processor = clientRegistry.getSite(tenantId).getNotificationProcessor();
+        if (processor == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final RecurlyNotification notification;
+        try {
+            notification = parser.parse(request.getInputStream());
+        } catch (final XMLStreamException e) {
+            log.warn("Invalid Recurly notification received from " + request.getRemoteAddr(), e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        metrics.recurlyNotification(notification.getName());
+        if (!processor.submit(notification)) {
+            log.warn("Too many Recurly notifications pending, rejecting " + notification);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    // Null for the default site
+    private UUID getTenantId(final HttpServletRequest request) {
+        final String pathInfo = request.getPathInfo();
+        if (pathInfo == null || "/".equals(pathInfo)) {
+            return null;
+        }
+
+        final Matcher matcher = TENANT_PATH.matcher(pathInfo);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unknown path " + pathInfo);
+        }
+        return UUID.fromString(matcher.group(1));
+    }
+
+    private boolean isAuthorized(final HttpServletRequest request, final RecurlyConfig siteConfig) {
+        if (!siteConfig.isWebhookEnabled()) {
+            // Never open to anyone
+            return false;
+        }
+        final byte[] authorization = ("Basic " + BaseEncoding.base64().encode((siteConfig.getWebhookUsername() + ":" + siteConfig.getWebhookPassword()).getBytes(UTF_8))).getBytes(UTF_8);
+        final String header = request.getHeader("Authorization");
+        // Constant time comparison
+        return header != null && MessageDigest.isEqual(authorization, header.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyApiException;
+
+import com.ning.billing.recurly.model.Transaction;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Submit payments with at most maxConcurrency of them in flight, and return the results as they complete.
+ * <p/>
+ * Requests are submitted from the consumer thread (e.g. after being recorded in the ledger, see RecurlyPaymentPluginApi#processPayments):
+ * a new request is only submitted once a result has been consumed, so a slow consumer doesn't pile up results in memory. Not thread safe.
+ */
+public class RecurlyBulkPaymentIterator implements Iterator<RecurlyPaymentResult> {
+
+    private final BlockingQueue<RecurlyPaymentResult> results = new LinkedBlockingQueue<RecurlyPaymentResult>();
+
+    private final Iterator<RecurlyPaymentRequest> requests;
+    // Submits a payment, returning the Recurly transaction
+    private final Function<RecurlyPaymentRequest, ListenableFuture<Transaction>> submitter;
+    private final int maxConcurrency;
+
+    // Submitted but not consumed yet
+    private int nbPending = 0;
+
+    public RecurlyBulkPaymentIterator(final Iterator<RecurlyPaymentRequest> requests, final Function<RecurlyPaymentRequest, ListenableFuture<Transaction>> submitter,
+                                      final int maxConcurrency) {
+        this.requests = requests;
+        this.submitter = submitter;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        submit();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nbPending > 0;
+    }
+
+    @Override
+    public RecurlyPaymentResult next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        final RecurlyPaymentResult result = Uninterruptibles.takeUninterruptibly(results);
+        nbPending--;
+        submit();
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void submit() {
+        while (nbPending < maxConcurrency && requests.hasNext()) {
+            submit(requests.next());
+            nbPending++;
+        }
+    }
+
+    private void submit(final RecurlyPaymentRequest request) {
+        Futures.addCallback(submitter.apply(request), new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(final Transaction createdTransaction) {
+                results.add(new RecurlyPaymentResult(request, createdTransaction, null));
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                // Declined transactions are returned along with the errors
+                Transaction failedTransaction = null;
+                if (t instanceof RecurlyApiException && ((RecurlyApiException) t).getErrors() != null) {
+                    failedTransaction = ((RecurlyApiException) t).getErrors().getTransaction();
+                }
+                results.add(new RecurlyPaymentResult(request, failedTransaction, t));
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.killbill.billing.util.entity.Pagination;
+
+import com.google.common.collect.ImmutableList;
+
+// Page of results served from the local tables
+public class RecurlyLocalPagination<T> implements Pagination<T> {
+
+    private final Long offset;
+    private final Long maxNbRecords;
+    private final Long totalNbRecords;
+    private final List<T> results;
+
+    public RecurlyLocalPagination(final Long offset, final Long maxNbRecords, final Long totalNbRecords, final List<T> results) {
+        this.offset = offset;
+        this.maxNbRecords = maxNbRecords;
+        this.totalNbRecords = totalNbRecords;
+        this.results = ImmutableList.<T>copyOf(results);
+    }
+
+    @Override
+    public Long getCurrentOffset() {
+        return offset;
+    }
+
+    @Override
+    public Long getNextOffset() {
+        final long nextOffset = offset + results.size();
+        return nextOffset < totalNbRecords ? nextOffset : null;
+    }
+
+    @Override
+    public Long getMaxNbRecords() {
+        return maxNbRecords;
+    }
+
+    @Override
+    public Long getTotalNbRecords() {
+        return totalNbRecords;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return results.iterator();
+    }
+}
@@ -17,15 +17,24 @@
 
 package org.killbill.billing.plugin.recurly.api;
 
+import java.io.Closeable;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyFutures;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
 import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+import org.killbill.billing.plugin.recurly.client.RecurlyPageIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
 import org.killbill.billing.util.entity.Pagination;
 
-import com.ning.billing.recurly.RecurlyClient;
 import com.ning.billing.recurly.model.Account;
 import com.ning.billing.recurly.model.Accounts;
 import com.ning.billing.recurly.model.BillingInfo;
@@ -36,13 +45,18 @@ public class RecurlyPagination implements Pagination<PaymentMethodPlugin> {
     private final Long offset;
     private final Long limit;
 
-    private final RecurlyClient recurlyClient;
+    private final RecurlyAsyncClient asyncClient;
+    private final RecurlyBillingInfoCache billingInfoCache;
+    private final ExecutorService executor;
 
-    public RecurlyPagination(final String searchKey, final Long offset, final Long limit, final RecurlyClient recurlyClient) {
+    public RecurlyPagination(final String searchKey, final Long offset, final Long limit, final RecurlyAsyncClient asyncClient,
+                             final RecurlyBillingInfoCache billingInfoCache, final ExecutorService executor) {
         this.searchKey = searchKey;
         this.offset = offset;
         this.limit = limit;
-        this.recurlyClient = recurlyClient;
+        this.asyncClient = asyncClient;
+        this.billingInfoCache = billingInfoCache;
+        this.executor = executor;
     }
 
     @Override
@@ -67,39 +81,66 @@ public class RecurlyPagination implements Pagination<PaymentMethodPlugin> {
 
     @Override
     public Iterator<PaymentMethodPlugin> iterator() {
-        return new RecurlyPaymentMethodPluginIterator(searchKey, offset, limit, recurlyClient.getAccounts(), recurlyClient);
+        // Searches must never get in the way of payments
+        return new RecurlyPaymentMethodPluginIterator(searchKey, offset, limit, asyncClient.iterateAccounts(Priority.LOW), billingInfoCache, executor,
+                                                      asyncClient.getMetrics());
     }
 
-    public static final class RecurlyPaymentMethodPluginIterator implements Iterator<PaymentMethodPlugin> {
-
-        private final Deque<Account> stack = new ArrayDeque<Account>();
+    // Visible for benchmarks
+    static boolean matches(final BillingInfo billingInfo, final String searchKey) {
+        return (billingInfo.getFirstName() != null && billingInfo.getFirstName().contains(searchKey)) ||
+               (billingInfo.getLastName() != null && billingInfo.getLastName().contains(searchKey)) ||
+               (billingInfo.getAddress1() != null && billingInfo.getAddress1().contains(searchKey)) ||
+               (billingInfo.getAddress2() != null && billingInfo.getAddress2().contains(searchKey)) ||
+               (billingInfo.getCardType() != null && billingInfo.getCardType().equals(searchKey)) ||
+               (billingInfo.getCity() != null && billingInfo.getCity().equals(searchKey)) ||
+               (billingInfo.getCountry() != null && billingInfo.getCountry().equals(searchKey)) ||
+               (billingInfo.getLastFour() != null && billingInfo.getLastFour().equals(searchKey)) ||
+               (billingInfo.getMonth() != null && billingInfo.getMonth().toString().equals(searchKey)) ||
+               (billingInfo.getYear() != null && billingInfo.getYear().toString().equals(searchKey));
+    }
 
-        private final RecurlyClient recurlyClient;
+    /**
+     * Billing information of a page of accounts is fetched concurrently on the executor (which bounds the number
+     * of concurrent requests to Recurly) while the next pages of accounts are being retrieved. Results are returned
+     * in the accounts order.
+     * <p/>
+     * Callers stopping before the end must close the iterator, to cancel the pending lookups and the pages of accounts
+     * fetched ahead (this is done automatically once the limit is reached, or if a lookup fails).
+     */
+    public static final class RecurlyPaymentMethodPluginIterator implements Iterator<PaymentMethodPlugin>, Closeable {
+
+        private final Deque<Future<BillingInfo>> billingInfos = new ArrayDeque<Future<BillingInfo>>();
+
+        private final RecurlyPageIterator<Accounts> accountsPages;
+        private final RecurlyBillingInfoCache billingInfoCache;
+        private final ExecutorService executor;
+        private final RecurlyMetrics metrics;
         private final String searchKey;
         private final Long offset;
         private final Long limit;
 
-        private Accounts currentAccounts;
         private Long currentOffset = 0L;
         private Long foundAccounts = 0L;
         private PaymentMethodPlugin nextPaymentMethodPlugin;
 
         public RecurlyPaymentMethodPluginIterator(final String searchKey, final Long offset, final Long limit,
-                                                  final Accounts accounts, final RecurlyClient recurlyClient) {
+                                                  final RecurlyPageIterator<Accounts> accountsPages, final RecurlyBillingInfoCache billingInfoCache,
+                                                  final ExecutorService executor, final RecurlyMetrics metrics) {
             this.searchKey = searchKey;
             this.offset = offset;
             this.limit = limit;
-            this.recurlyClient = recurlyClient;
+            this.accountsPages = accountsPages;
+            this.billingInfoCache = billingInfoCache;
+            this.executor = executor;
+            this.metrics = metrics;
 
-            this.currentAccounts = accounts;
-            // Initialize the stack
-            stack.addAll(accounts);
             findNext();
         }
 
         @Override
         public boolean hasNext() {
-            return !(currentOffset < offset || foundAccounts >= limit || nextPaymentMethodPlugin == null);
+            return nextPaymentMethodPlugin != null;
         }
 
         @Override
@@ -114,53 +155,81 @@ public class RecurlyPagination implements Pagination<PaymentMethodPlugin> {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public void close() {
+            nextPaymentMethodPlugin = null;
+            cancelPrefetch();
+        }
+
         private void findNext() {
-            while (!stack.isEmpty()) {
-                final Account account = stack.pop();
+            nextPaymentMethodPlugin = null;
+            try {
+                doFindNext();
+            } catch (final RuntimeException e) {
+                // Don't leave the lookups of the following accounts running
+                cancelPrefetch();
+                throw e;
+            }
+        }
+
+        private void doFindNext() {
+            while (foundAccounts < limit) {
+                if (billingInfos.isEmpty()) {
+                    if (!accountsPages.hasNext()) {
+                        // No more
+                        return;
+                    }
+                    // More Recurly accounts
+                    prefetch(accountsPages.next());
+                    continue;
+                }
 
-                final PaymentMethodPlugin paymentMethodPlugin = getPaymentMethodPluginFromAccount(account);
+                final PaymentMethodPlugin paymentMethodPlugin = getPaymentMethodPluginFromBillingInfo(RecurlyFutures.get(billingInfos.pop()));
                 if (paymentMethodPlugin != null) {
                     currentOffset += 1;
-                    if (currentOffset >= offset) {
+                    if (currentOffset > offset) {
                         foundAccounts += 1;
                         nextPaymentMethodPlugin = paymentMethodPlugin;
-                        return;
+                        break;
                     }
                 }
-
-                if (stack.isEmpty()) {
-                    populateStack();
-                }
             }
 
-            // No more
-            nextPaymentMethodPlugin = null;
+            if (foundAccounts >= limit) {
+                // We're done, don't waste any more calls
+                cancelPrefetch();
+            }
         }
 
-        private PaymentMethodPlugin getPaymentMethodPluginFromAccount(final Account account) {
-            final BillingInfo billingInfo = recurlyClient.getBillingInfo(account.getAccountCode());
-            if ((billingInfo.getFirstName() != null && billingInfo.getFirstName().contains(searchKey)) ||
-                (billingInfo.getLastName() != null && billingInfo.getLastName().contains(searchKey)) ||
-                (billingInfo.getAddress1() != null && billingInfo.getAddress1().contains(searchKey)) ||
-                (billingInfo.getAddress2() != null && billingInfo.getAddress2().contains(searchKey)) ||
-                (billingInfo.getCardType() != null && billingInfo.getCardType().equals(searchKey)) ||
-                (billingInfo.getCity() != null && billingInfo.getCity().equals(searchKey)) ||
-                (billingInfo.getCountry() != null && billingInfo.getCountry().equals(searchKey)) ||
-                (billingInfo.getLastFour() != null && billingInfo.getLastFour().equals(searchKey)) ||
-                (billingInfo.getMonth() != null && billingInfo.getMonth().toString().equals(searchKey)) ||
-                (billingInfo.getYear() != null && billingInfo.getYear().toString().equals(searchKey))) {
+        private PaymentMethodPlugin getPaymentMethodPluginFromBillingInfo(final BillingInfo billingInfo) {
+            if (billingInfo == null) {
+                return null;
+            }
+
+            if (matches(billingInfo, searchKey)) {
                 return new RecurlyPaymentMethodPlugin(billingInfo, RecurlyObjectFactory.kbPaymentMethodIdFromBillingInfo(billingInfo));
             } else {
                 return null;
             }
         }
 
-        private void populateStack() {
-            currentAccounts = currentAccounts.getNext();
-            if (currentAccounts != null) {
-                // More Recurly accounts?
-                stack.addAll(currentAccounts);
+        private void prefetch(final Accounts accounts) {
+            for (final Account account : accounts) {
+                // Looked up on behalf of the caller
+                billingInfos.add(executor.submit(metrics.inCurrentOperation(new Callable<BillingInfo>() {
+                    @Override
+                    public BillingInfo call() throws Exception {
+                        return billingInfoCache.getBillingInfo(account.getAccountCode(), Priority.LOW);
+                    }
+                })));
+            }
+        }
+
+        private void cancelPrefetch() {
+            while (!billingInfos.isEmpty()) {
+                billingInfos.pop().cancel(true);
             }
+            accountsPages.close();
         }
     }
 }
@@ -24,6 +24,7 @@ import org.joda.time.DateTime;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
 
 import com.ning.billing.recurly.model.Transaction;
 
@@ -44,8 +45,7 @@ public class RecurlyPaymentInfoPlugin implements PaymentInfoPlugin {
 
     @Override
     public BigDecimal getAmount() {
-        final Integer amount = transaction.getAmountInCents() / 100;
-        return new BigDecimal(amount.toString());
+        return RecurlyObjectFactory.fromAmountInCents(transaction.getAmountInCents());
     }
 
     @Override
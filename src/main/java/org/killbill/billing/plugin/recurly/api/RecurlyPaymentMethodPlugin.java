@@ -17,7 +17,6 @@
 
 package org.killbill.billing.plugin.recurly.api;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -28,6 +27,7 @@ import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import com.ning.billing.recurly.model.BillingInfo;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 public class RecurlyPaymentMethodPlugin implements PaymentMethodPlugin {
 
@@ -52,35 +52,30 @@ public class RecurlyPaymentMethodPlugin implements PaymentMethodPlugin {
     public static final String YEAR = "year";
     public static final String ZIP = "zip";
 
+    // Fixed schema, in the order of getProperties()
+    private static final List<String> PROPERTY_KEYS = ImmutableList.<String>of(ADDRESS_1, ADDRESS_2, CARD_TYPE, CITY, COMPANY, COUNTRY, FIRST_NAME, FIRST_SIX,
+                                                                             IP_ADDRESS, IP_ADDRESS_COUNTRY, LAST_FOUR, LAST_NAME, MONTH, NUMBER, PHONE, STATE,
+                                                                             VAT_NUMBER, VERIFICATION_VALUE, YEAR, ZIP);
+    private static final Map<String, Integer> PROPERTY_INDEXES;
+
+    static {
+        final ImmutableMap.Builder<String, Integer> builder = ImmutableMap.<String, Integer>builder();
+        for (int i = 0; i < PROPERTY_KEYS.size(); i++) {
+            builder.put(PROPERTY_KEYS.get(i), i);
+        }
+        PROPERTY_INDEXES = builder.build();
+    }
+
     // A single unique payment method is stored in Recurly
     private final boolean isDefaultPaymentMethod = true;
     private final UUID kbPaymentMethodId;
     private final BillingInfo recurlyBillingInfo;
-    private final Map<String, PaymentMethodKVInfo> properties = new HashMap<String, PaymentMethodKVInfo>();
+    // Built on first use: most callers only need the typed getters
+    private volatile List<PaymentMethodKVInfo> properties;
 
     public RecurlyPaymentMethodPlugin(final BillingInfo recurlyBillingInfo, final UUID kbPaymentMethodId) {
         this.recurlyBillingInfo = recurlyBillingInfo;
         this.kbPaymentMethodId = kbPaymentMethodId;
-        properties.put(ADDRESS_1, new PaymentMethodKVInfo(ADDRESS_1, recurlyBillingInfo.getAddress1(), true));
-        properties.put(ADDRESS_2, new PaymentMethodKVInfo(ADDRESS_2, recurlyBillingInfo.getAddress2(), true));
-        properties.put(CARD_TYPE, new PaymentMethodKVInfo(CARD_TYPE, recurlyBillingInfo.getCardType(), true));
-        properties.put(CITY, new PaymentMethodKVInfo(CITY, recurlyBillingInfo.getCity(), true));
-        properties.put(COMPANY, new PaymentMethodKVInfo(COMPANY, recurlyBillingInfo.getCompany(), true));
-        properties.put(COUNTRY, new PaymentMethodKVInfo(COUNTRY, recurlyBillingInfo.getCountry(), true));
-        properties.put(FIRST_NAME, new PaymentMethodKVInfo(FIRST_NAME, recurlyBillingInfo.getFirstName(), true));
-        properties.put(FIRST_SIX, new PaymentMethodKVInfo(FIRST_SIX, recurlyBillingInfo.getFirstSix(), true));
-        properties.put(IP_ADDRESS, new PaymentMethodKVInfo(IP_ADDRESS, recurlyBillingInfo.getIpAddress(), true));
-        properties.put(IP_ADDRESS_COUNTRY, new PaymentMethodKVInfo(IP_ADDRESS_COUNTRY, recurlyBillingInfo.getIpAddressCountry(), true));
-        properties.put(LAST_FOUR, new PaymentMethodKVInfo(LAST_FOUR, recurlyBillingInfo.getLastFour(), true));
-        properties.put(LAST_NAME, new PaymentMethodKVInfo(LAST_NAME, recurlyBillingInfo.getLastName(), true));
-        properties.put(MONTH, new PaymentMethodKVInfo(MONTH, recurlyBillingInfo.getMonth(), true));
-        properties.put(NUMBER, new PaymentMethodKVInfo(NUMBER, recurlyBillingInfo.getNumber(), true));
-        properties.put(PHONE, new PaymentMethodKVInfo(PHONE, recurlyBillingInfo.getPhone(), true));
-        properties.put(STATE, new PaymentMethodKVInfo(STATE, recurlyBillingInfo.getState(), true));
-        properties.put(VAT_NUMBER, new PaymentMethodKVInfo(VAT_NUMBER, recurlyBillingInfo.getVatNumber(), true));
-        properties.put(VERIFICATION_VALUE, new PaymentMethodKVInfo(VERIFICATION_VALUE, recurlyBillingInfo.getVerificationValue(), true));
-        properties.put(YEAR, new PaymentMethodKVInfo(YEAR, recurlyBillingInfo.getYear(), true));
-        properties.put(ZIP, new PaymentMethodKVInfo(ZIP, recurlyBillingInfo.getZip(), true));
     }
 
     @Override
@@ -101,7 +96,70 @@ public class RecurlyPaymentMethodPlugin implements PaymentMethodPlugin {
 
     @Override
     public List<PaymentMethodKVInfo> getProperties() {
-        return ImmutableList.<PaymentMethodKVInfo>copyOf(properties.values());
+        // Racy single-check: at worst, concurrent callers build identical lists
+        List<PaymentMethodKVInfo> result = properties;
+        if (result == null) {
+            final PaymentMethodKVInfo[] kvInfos = new PaymentMethodKVInfo[PROPERTY_KEYS.size()];
+            for (int i = 0; i < kvInfos.length; i++) {
+                kvInfos[i] = new PaymentMethodKVInfo(PROPERTY_KEYS.get(i), getPropertyValue(i), true);
+            }
+            result = ImmutableList.<PaymentMethodKVInfo>copyOf(kvInfos);
+            properties = result;
+        }
+        return result;
+    }
+
+    // Value of the property, read straight from the billing information (null for unknown keys)
+    public Object getPropertyValue(final String key) {
+        final Integer index = PROPERTY_INDEXES.get(key);
+        return index == null ? null : getPropertyValue(index);
+    }
+
+    private Object getPropertyValue(final int index) {
+        switch (index) {
+            case 0:
+                return recurlyBillingInfo.getAddress1();
+            case 1:
+                return recurlyBillingInfo.getAddress2();
+            case 2:
+                return recurlyBillingInfo.getCardType();
+            case 3:
+                return recurlyBillingInfo.getCity();
+            case 4:
+                return recurlyBillingInfo.getCompany();
+            case 5:
+                return recurlyBillingInfo.getCountry();
+            case 6:
+                return recurlyBillingInfo.getFirstName();
+            case 7:
+                return recurlyBillingInfo.getFirstSix();
+            case 8:
+                return recurlyBillingInfo.getIpAddress();
+            case 9:
+                return recurlyBillingInfo.getIpAddressCountry();
+            case 10:
+                return recurlyBillingInfo.getLastFour();
+            case 11:
+                return recurlyBillingInfo.getLastName();
+            case 12:
+                return recurlyBillingInfo.getMonth();
+            case 13:
+                return recurlyBillingInfo.getNumber();
+            case 14:
+                return recurlyBillingInfo.getPhone();
+            case 15:
+                return recurlyBillingInfo.getState();
+            case 16:
+                return recurlyBillingInfo.getVatNumber();
+            case 17:
+                return recurlyBillingInfo.getVerificationValue();
+            case 18:
+                return recurlyBillingInfo.getYear();
+            case 19:
+                return recurlyBillingInfo.getZip();
+            default:
+                throw new IllegalArgumentException("Unknown property index " + index);
+        }
     }
 
     @Override
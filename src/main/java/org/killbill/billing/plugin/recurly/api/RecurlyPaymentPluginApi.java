@@ -18,9 +18,20 @@
 package org.killbill.billing.plugin.recurly.api;
 
 import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
@@ -28,55 +39,202 @@ import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
 import org.killbill.billing.payment.plugin.api.RefundInfoPlugin;
+import org.killbill.billing.plugin.recurly.client.RecurlyApiException;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyFutures;
 import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+import org.killbill.billing.plugin.recurly.client.RecurlyPageIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.client.RecurlyUnavailableException;
+import org.killbill.billing.plugin.recurly.core.RecurlyBillingInfoSynchronizer;
+import org.killbill.billing.plugin.recurly.core.RecurlyTransactionSynchronizer;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.killbill.billing.plugin.recurly.dao.RecurlyPaymentRecord;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.entity.Pagination;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ning.billing.recurly.RecurlyClient;
 import com.ning.billing.recurly.TransactionErrorException;
 import com.ning.billing.recurly.model.Adjustment;
 import com.ning.billing.recurly.model.BillingInfo;
 import com.ning.billing.recurly.model.Invoice;
 import com.ning.billing.recurly.model.Invoices;
 import com.ning.billing.recurly.model.Transaction;
-import com.ning.billing.recurly.model.Transactions;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class RecurlyPaymentPluginApi implements PaymentPluginApi {
 
     private static final Logger log = LoggerFactory.getLogger(RecurlyPaymentPluginApi.class);
 
-    private final RecurlyClient client;
+    // Leeway when looking up a payment by date, as the Kill Bill and Recurly clocks may differ
+    private static final int CLOCK_SKEW_SECONDS = 900;
+    // Kill Bill fetches the pages of a search one by one: how long the counts computed for the first page are reused
+    private static final int SEARCH_COUNTS_TTL_SECONDS = 60;
 
-    public RecurlyPaymentPluginApi(final RecurlyClient client) {
-        this.client = client;
+    // All Recurly calls go through its HTTP client (see RecurlyConfig#getAsyncHttpClientConfig), bulkheads, circuit breaker and rate limiter
+    private final RecurlyAsyncClient asyncClient;
+    // Local index of payments, null when no data source is available (lookups then always go to Recurly)
+    private final RecurlyDao dao;
+    // Bounds the number of concurrent Recurly calls issued by searches
+    private final ExecutorService searchExecutor;
+    private final RecurlyBillingInfoCache billingInfoCache;
+    // Pending payments older than this have either reached Recurly already or never will
+    private final long pendingPaymentTimeoutSeconds;
+    // Payments being submitted by this node, so that concurrent duplicates share the outcome of a single Recurly call
+    private final ConcurrentMap<UUID, SettableFuture<Transaction>> paymentsInFlight = new ConcurrentHashMap<UUID, SettableFuture<Transaction>>();
+    // Counts of the local copy, computed once per search rather than once per page
+    private final Cache<String, Long> searchCounts = CacheBuilder.newBuilder()
+                                                                 .maximumSize(1000)
+                                                                 .expireAfterWrite(SEARCH_COUNTS_TTL_SECONDS, TimeUnit.SECONDS)
+                                                                 .build();
+
+    public RecurlyPaymentPluginApi(final RecurlyAsyncClient asyncClient, final RecurlyDao dao, final ExecutorService searchExecutor,
+                                   final RecurlyBillingInfoCache billingInfoCache, final long pendingPaymentTimeoutSeconds) {
+        this.asyncClient = asyncClient;
+        this.dao = dao;
+        this.searchExecutor = searchExecutor;
+        this.billingInfoCache = billingInfoCache;
+        this.pendingPaymentTimeoutSeconds = pendingPaymentTimeoutSeconds;
     }
 
     @Override
     public PaymentInfoPlugin processPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
-        final Transaction transaction = new Transaction();
-        transaction.setAmountInCents(100 * amount.intValue());
-        transaction.setCurrency(currency.toString());
+        checkAmount(amount);
+        if (dao == null) {
+            try {
+                return new RecurlyPaymentInfoPlugin(kbPaymentId, submitPayment(kbAccountId, kbPaymentId, amount, currency));
+            } catch (final RecurlyUnavailableException e) {
+                throw toPaymentPluginApiException(e);
+            }
+        }
 
-        // Magic description to retrieve the payment info
-        transaction.setDescription(kbPaymentId);
+        final SettableFuture<Transaction> payment = SettableFuture.create();
+        final SettableFuture<Transaction> paymentInFlight = paymentsInFlight.putIfAbsent(kbPaymentId, payment);
+        if (paymentInFlight != null) {
+            // Duplicate submission: wait for the outcome of the first one
+            return new RecurlyPaymentInfoPlugin(kbPaymentId, waitForPayment(kbPaymentId, paymentInFlight));
+        }
 
-        // Assume the account already exists
-        final com.ning.billing.recurly.model.Account account = new com.ning.billing.recurly.model.Account();
-        account.setAccountCode(RecurlyObjectFactory.createAccountCode(kbAccountId));
-        transaction.setAccount(account);
+        try {
+            final Transaction transaction = processPaymentWithLedger(kbAccountId, kbPaymentId, amount, currency);
+            payment.set(transaction);
+            return new RecurlyPaymentInfoPlugin(kbPaymentId, transaction);
+        } catch (final PaymentPluginApiException e) {
+            payment.setException(e);
+            throw e;
+        } catch (final RecurlyUnavailableException e) {
+            final PaymentPluginApiException unavailable = toPaymentPluginApiException(e);
+            payment.setException(unavailable);
+            throw unavailable;
+        } catch (final RuntimeException e) {
+            payment.setException(e);
+            throw e;
+        } finally {
+            paymentsInFlight.remove(kbPaymentId, payment);
+        }
+    }
 
-        final Transaction createdTransaction = client.createTransaction(transaction);
-        return new RecurlyPaymentInfoPlugin(kbPaymentId, createdTransaction);
+    /**
+     * Submit payments in bulk (e.g. for a billing run), with at most maxConcurrency transactions in flight.
+     * <p/>
+     * Results are returned as they complete (not in the requests order), and the next requests are submitted as results
+     * are consumed. Bulk payments go through the NORMAL lane of the rate limiter, so that individual payments are never delayed.
+     * Like individual payments, each payment is recorded as pending in the ledger before being submitted: payments already
+     * processed are answered from the ledger, and payments being processed elsewhere are not submitted again
+     * (their result carries a PaymentPluginApiException).
+     *
+     * @param requests       payments to process
+     * @param maxConcurrency maximum number of transactions in flight
+     * @return the results, as they complete
+     */
+    public Iterator<RecurlyPaymentResult> processPayments(final Iterable<RecurlyPaymentRequest> requests, final int maxConcurrency) {
+        final Function<RecurlyPaymentRequest, ListenableFuture<Transaction>> submitter = new Function<RecurlyPaymentRequest, ListenableFuture<Transaction>>() {
+            @Override
+            public ListenableFuture<Transaction> apply(final RecurlyPaymentRequest request) {
+                try {
+                    checkAmount(request.getAmount());
+                    return startPayment(request.getKbAccountId(), request.getKbPaymentId(), request.getAmount(), request.getCurrency(), Priority.NORMAL);
+                } catch (final PaymentPluginApiException e) {
+                    return Futures.immediateFailedFuture(e);
+                } catch (final RecurlyUnavailableException e) {
+                    return Futures.immediateFailedFuture(toPaymentPluginApiException(e));
+                }
+            }
+        };
+        return Iterators.transform(new RecurlyBulkPaymentIterator(requests.iterator(), submitter, maxConcurrency),
+                                   new Function<RecurlyPaymentResult, RecurlyPaymentResult>() {
+                                       @Override
+                                       public RecurlyPaymentResult apply(final RecurlyPaymentResult result) {
+                                           // Recorded from the consumer thread, not from the HTTP client I/O threads
+                                           if (!(result.getError() instanceof PaymentPluginApiException)) {
+                                               completePayment(result.getRequest().getKbAccountId(), result.getRequest().getKbPaymentId(), result.getTransaction(), result.getError());
+                                           }
+                                           return result;
+                                       }
+                                   });
+    }
+
+    /**
+     * Find out what happened to a payment whose outcome is unknown (e.g. timeout), and update the ledger accordingly.
+     * <p/>
+     * If the payment cannot be found in Recurly and is older than the pending timeout, it never reached Recurly:
+     * it is removed from the ledger, so that it can be submitted again.
+     *
+     * @param paymentRecord pending payment
+     * @param priority      rate limiter lane to use for the lookup
+     * @return the Recurly transaction, null if not found
+     */
+    public Transaction reconcilePendingPayment(final RecurlyPaymentRecord paymentRecord, final Priority priority) {
+        final Transaction transaction = scanTransactionForKbPaymentId(paymentRecord.getKbAccountId(), paymentRecord.getKbPaymentId(), paymentRecord, priority);
+        if (transaction != null) {
+            recordPayment(paymentRecord.getKbAccountId(), paymentRecord.getKbPaymentId(), transaction);
+        } else if (isPendingPaymentExpired(paymentRecord)) {
+            try {
+                if (dao.deletePendingPayment(paymentRecord.getKbPaymentId(), paymentRecord.getUpdatedDate())) {
+                    log.info("Payment " + paymentRecord.getKbPaymentId() + " never reached Recurly, removed from the ledger");
+                }
+            } catch (final SQLException e) {
+                log.warn("Unable to remove pending payment " + paymentRecord.getKbPaymentId() + " from the ledger", e);
+            }
+        }
+        return transaction;
     }
 
     @Override
     public PaymentInfoPlugin getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final TenantContext context) throws PaymentPluginApiException {
-        final Transaction transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId);
+        final Transaction syncedTransaction = getSyncedTransactionForKbPaymentId(kbPaymentId);
+        if (syncedTransaction != null) {
+            return new RecurlyPaymentInfoPlugin(kbPaymentId, syncedTransaction);
+        }
+
+        final RecurlyPaymentRecord paymentRecord = getPaymentRecord(kbPaymentId);
+        final Transaction transactionForPayment;
+        try {
+            if (paymentRecord == null) {
+                transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId, Priority.NORMAL);
+            } else if (paymentRecord.getStatus() == RecurlyPaymentRecord.Status.PENDING) {
+                transactionForPayment = reconcilePendingPayment(paymentRecord, Priority.NORMAL);
+            } else {
+                // Outcome of the latest attempt
+                transactionForPayment = RecurlyObjectFactory.createTransactionFromPaymentRecord(paymentRecord);
+            }
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        }
+
         if (transactionForPayment == null) {
             return null;
         } else {
@@ -86,25 +244,75 @@ public class RecurlyPaymentPluginApi implements PaymentPluginApi {
 
     @Override
     public Pagination<PaymentInfoPlugin> searchPayments(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
-        throw new UnsupportedOperationException();
+        if (dao == null) {
+            // Payments can only be searched in the local copy (see RecurlyTransactionSynchronizer)
+            throw new UnsupportedOperationException();
+        }
+
+        final Long maxNbRecords;
+        final Long totalNbRecords;
+        final List<Transaction> transactions;
+        try {
+            checkTransactionsSynchronized();
+            maxNbRecords = getTransactionsCount(null, false);
+            totalNbRecords = getTransactionsCount(searchKey, false);
+            // Don't bother retrieving anything past the last match
+            transactions = offset >= totalNbRecords ? ImmutableList.<Transaction>of() : dao.searchTransactions(searchKey, false, offset, limit);
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("Unable to search payments for searchKey " + searchKey, e);
+        }
+
+        final List<PaymentInfoPlugin> paymentInfoPlugins = new LinkedList<PaymentInfoPlugin>();
+        for (final Transaction transaction : transactions) {
+            // The kb payment id is unknown for transactions not made by the plugin
+            final UUID kbPaymentId = transaction.getDescription() == null ? null : UUID.fromString(transaction.getDescription());
+            paymentInfoPlugins.add(new RecurlyPaymentInfoPlugin(kbPaymentId, transaction));
+        }
+        return new RecurlyLocalPagination<PaymentInfoPlugin>(offset, maxNbRecords, totalNbRecords, paymentInfoPlugins);
     }
 
     @Override
     public RefundInfoPlugin processRefund(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal refundAmount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
-        final Transaction transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId);
-        if (transactionForPayment == null) {
-            return null;
-        } else if (!transactionForPayment.getRefundable()) {
-            throw new PaymentPluginApiException("REFUND", "Payment " + kbPaymentId + " is not refundable");
-        } else {
-            client.refundTransaction(transactionForPayment.getUuid(), refundAmount);
-            return new RecurlyRefundInfoPlugin(client.getTransaction(transactionForPayment.getUuid()), refundAmount);
+        if (refundAmount != null) {
+            checkAmount(refundAmount);
+        }
+        try {
+            final Transaction transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId, Priority.HIGH);
+            if (transactionForPayment == null) {
+                return null;
+            } else if (!transactionForPayment.getRefundable()) {
+                throw new PaymentPluginApiException("REFUND", "Payment " + kbPaymentId + " is not refundable");
+            } else {
+                RecurlyFutures.get(asyncClient.refundTransaction(Priority.HIGH, transactionForPayment.getUuid(), refundAmount));
+                // Must not join a lookup issued before the refund
+                final Transaction refundedTransaction = RecurlyFutures.get(asyncClient.getFreshTransaction(Priority.HIGH, transactionForPayment.getUuid()));
+                // Don't wait for the next synchronization to reflect the refund
+                recordSyncedTransaction(kbAccountId, refundedTransaction);
+                return new RecurlyRefundInfoPlugin(refundedTransaction, refundAmount);
+            }
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
         }
     }
 
     @Override
     public List<RefundInfoPlugin> getRefundInfo(final UUID kbAccountId, final UUID kbPaymentId, final TenantContext context) throws PaymentPluginApiException {
-        final Transaction transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId);
+        final List<RefundInfoPlugin> refundInfoPlugins = new LinkedList<RefundInfoPlugin>();
+        for (final Transaction transaction : getSyncedTransactions(kbPaymentId)) {
+            if ("refund".equals(transaction.getAction())) {
+                refundInfoPlugins.add(new RecurlyRefundInfoPlugin(transaction));
+            }
+        }
+        if (!refundInfoPlugins.isEmpty()) {
+            return refundInfoPlugins;
+        }
+
+        final Transaction transactionForPayment;
+        try {
+            transactionForPayment = findTransactionForKbPaymentId(kbAccountId, kbPaymentId, Priority.NORMAL);
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        }
         if (transactionForPayment == null) {
             return null;
         } else {
@@ -114,26 +322,81 @@ public class RecurlyPaymentPluginApi implements PaymentPluginApi {
 
     @Override
     public Pagination<RefundInfoPlugin> searchRefunds(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
-        throw new UnsupportedOperationException();
+        if (dao == null) {
+            // Refunds can only be searched in the local copy (see RecurlyTransactionSynchronizer)
+            throw new UnsupportedOperationException();
+        }
+
+        final Long maxNbRecords;
+        final Long totalNbRecords;
+        try {
+            checkTransactionsSynchronized();
+            maxNbRecords = getTransactionsCount(null, true);
+            totalNbRecords = getTransactionsCount(searchKey, true);
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("Unable to search refunds for searchKey " + searchKey, e);
+        }
+
+        // Matching refunds are only retrieved as the page is iterated
+        return new RecurlyStreamingLocalPagination<RefundInfoPlugin>(offset, limit, maxNbRecords, totalNbRecords) {
+            @Override
+            protected List<RefundInfoPlugin> fetch(final long chunkOffset, final long chunkLimit) throws SQLException {
+                final List<RefundInfoPlugin> refundInfoPlugins = new LinkedList<RefundInfoPlugin>();
+                for (final Transaction transaction : dao.searchTransactions(searchKey, true, chunkOffset, chunkLimit)) {
+                    refundInfoPlugins.add(new RecurlyRefundInfoPlugin(transaction));
+                }
+                return refundInfoPlugins;
+            }
+        };
     }
 
     @Override
     public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final CallContext context) throws PaymentPluginApiException {
+        final BillingInfo billingInfo = RecurlyObjectFactory.createBillingInfoFromKillbill(kbAccountId, kbPaymentMethodId, paymentMethodProps);
+        final String accountCode = RecurlyObjectFactory.createAccountCode(kbAccountId);
+        final BillingInfo createdBillingInfo;
         try {
-            client.createOrUpdateBillingInfo(RecurlyObjectFactory.createBillingInfoFromKillbill(kbAccountId, kbPaymentMethodId, paymentMethodProps));
+            createdBillingInfo = get(asyncClient.createOrUpdateBillingInfo(Priority.NORMAL, billingInfo));
         } catch (final TransactionErrorException e) {
             throw new PaymentPluginApiException("Unable to add a payment method for account id " + kbAccountId, e);
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        } finally {
+            billingInfoCache.invalidate(accountCode);
         }
+
+        recordBillingInfo(accountCode, createdBillingInfo == null ? billingInfo : createdBillingInfo);
     }
 
     @Override
     public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final CallContext context) throws PaymentPluginApiException {
-        client.clearBillingInfo(RecurlyObjectFactory.createAccountCode(kbAccountId));
+        final String accountCode = RecurlyObjectFactory.createAccountCode(kbAccountId);
+        try {
+            RecurlyFutures.get(asyncClient.clearBillingInfo(Priority.NORMAL, accountCode));
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        } finally {
+            billingInfoCache.invalidate(accountCode);
+        }
+
+        if (dao != null) {
+            try {
+                dao.deleteBillingInfo(accountCode);
+            } catch (final SQLException e) {
+                // The background synchronization will eventually remove it
+                log.warn("Unable to remove the local copy of the billing info for account " + accountCode, e);
+            }
+        }
     }
 
     @Override
     public PaymentMethodPlugin getPaymentMethodDetail(final UUID kbAccountId, final UUID kbPaymentMethodId, final TenantContext context) throws PaymentPluginApiException {
-        final BillingInfo billingInfo = client.getBillingInfo(RecurlyObjectFactory.createAccountCode(kbAccountId));
+        final BillingInfo billingInfo;
+        try {
+            billingInfo = billingInfoCache.getBillingInfo(RecurlyObjectFactory.createAccountCode(kbAccountId), Priority.NORMAL);
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        }
         if (billingInfo == null) {
             return null;
         } else {
@@ -148,15 +411,44 @@ public class RecurlyPaymentPluginApi implements PaymentPluginApi {
 
     @Override
     public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway, final CallContext context) throws PaymentPluginApiException {
-        final BillingInfo billingInfo = client.getBillingInfo(RecurlyObjectFactory.createAccountCode(kbAccountId));
+        final String accountCode = RecurlyObjectFactory.createAccountCode(kbAccountId);
+        final BillingInfo billingInfo;
+        try {
+            billingInfo = refreshFromGateway ? billingInfoCache.refreshBillingInfo(accountCode, Priority.NORMAL) : billingInfoCache.getBillingInfo(accountCode, Priority.NORMAL);
+        } catch (final RecurlyUnavailableException e) {
+            throw toPaymentPluginApiException(e);
+        }
+        if (billingInfo == null) {
+            return ImmutableList.<PaymentMethodInfoPlugin>of();
+        }
         return ImmutableList.<PaymentMethodInfoPlugin>of(new RecurlyPaymentMethodInfoPlugin(billingInfo,
                                                                                             RecurlyObjectFactory.kbPaymentMethodIdFromBillingInfo(billingInfo)));
     }
 
     @Override
     public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
-        // TODO Really slow... We might have to store a local copy just to support search
-        return new RecurlyPagination(searchKey, offset, limit, client);
+        if (dao == null || !isBillingInfosSynchronized()) {
+            // Really slow... Walks all accounts in Recurly
+            return new RecurlyPagination(searchKey, offset, limit, asyncClient, billingInfoCache, searchExecutor);
+        }
+
+        final Long maxNbRecords;
+        final Long totalNbRecords;
+        final List<BillingInfo> billingInfos;
+        try {
+            maxNbRecords = getBillingInfosCount(null);
+            totalNbRecords = getBillingInfosCount(searchKey);
+            // Don't bother retrieving anything past the last match
+            billingInfos = offset >= totalNbRecords ? ImmutableList.<BillingInfo>of() : dao.searchBillingInfos(searchKey, offset, limit);
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("Unable to search payment methods for searchKey " + searchKey, e);
+        }
+
+        final List<PaymentMethodPlugin> paymentMethodPlugins = new LinkedList<PaymentMethodPlugin>();
+        for (final BillingInfo billingInfo : billingInfos) {
+            paymentMethodPlugins.add(new RecurlyPaymentMethodPlugin(billingInfo, RecurlyObjectFactory.kbPaymentMethodIdFromBillingInfo(billingInfo)));
+        }
+        return new RecurlyLocalPagination<PaymentMethodPlugin>(offset, maxNbRecords, totalNbRecords, paymentMethodPlugins);
     }
 
     @Override
@@ -164,39 +456,396 @@ public class RecurlyPaymentPluginApi implements PaymentPluginApi {
         // No-op (one payment method only)
     }
 
-    private Transaction findTransactionForKbPaymentId(final UUID kbAccountId, final UUID kbPaymentId) {
-        // We need to find the invoice first, not the transaction, because the description field is added to the invoice
-        Invoice invoiceForPayment = null;
-        Invoices invoices = client.getAccountInvoices(RecurlyObjectFactory.createAccountCode(kbAccountId));
-        while (invoiceForPayment == null && invoices != null) {
-            for (final Invoice invoice : invoices) {
-                for (final Adjustment charge : invoice.getLineItems()) {
-                    if (kbPaymentId.toString().equals(charge.getDescription())) {
-                        invoiceForPayment = invoice;
-                        break;
-                    }
-                }
+    private Transaction processPaymentWithLedger(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency) throws PaymentPluginApiException {
+        return completePayment(kbAccountId, kbPaymentId, startPayment(kbAccountId, kbPaymentId, amount, currency, Priority.HIGH));
+    }
+
+    // Ledger state machine: returns the outcome if already known, otherwise submits the payment once recorded as pending
+    private ListenableFuture<Transaction> startPayment(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency,
+                                                       final Priority priority) throws PaymentPluginApiException {
+        if (dao == null) {
+            return createTransaction(kbAccountId, kbPaymentId, amount, currency, priority);
+        }
+
+        RecurlyPaymentRecord paymentRecord = getPaymentRecord(kbPaymentId);
+        if (paymentRecord == null) {
+            if (recordPendingPayment(kbAccountId, kbPaymentId, amount, currency)) {
+                return createTransaction(kbAccountId, kbPaymentId, amount, currency, priority);
+            }
+            // Submitted concurrently by another node
+            paymentRecord = getPaymentRecord(kbPaymentId);
+            if (paymentRecord == null) {
+                throw new PaymentPluginApiException("PENDING", "Payment " + kbPaymentId + " is being processed");
+            }
+        }
+
+        if (paymentRecord.getStatus() == RecurlyPaymentRecord.Status.PROCESSED) {
+            // Retry of a successful payment
+            return Futures.immediateFuture(RecurlyObjectFactory.createTransactionFromPaymentRecord(paymentRecord));
+        } else if (paymentRecord.getStatus() == RecurlyPaymentRecord.Status.ERROR) {
+            // Retry of a failed payment (e.g. declined): give it another chance
+            if (recordPaymentRetry(paymentRecord, amount, currency)) {
+                return createTransaction(kbAccountId, kbPaymentId, amount, currency, priority);
+            }
+            // Retried concurrently by another node
+            throw new PaymentPluginApiException("PENDING", "Payment " + kbPaymentId + " is being processed");
+        }
+
+        // Outcome unknown (e.g. timeout): find out before submitting it again
+        final Transaction transaction = reconcilePendingPayment(paymentRecord, priority);
+        if (transaction != null) {
+            return Futures.immediateFuture(transaction);
+        } else if (isPendingPaymentExpired(paymentRecord) && recordPendingPayment(kbAccountId, kbPaymentId, amount, currency)) {
+            // Never reached Recurly (and removed from the ledger by the reconciliation above)
+            return createTransaction(kbAccountId, kbPaymentId, amount, currency, priority);
+        } else {
+            throw new PaymentPluginApiException("PENDING", "Payment " + kbPaymentId + " is being processed");
+        }
+    }
+
+    private ListenableFuture<Transaction> createTransaction(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency,
+                                                           final Priority priority) {
+        return asyncClient.createTransaction(priority, RecurlyObjectFactory.createTransactionFromKillbill(kbAccountId, kbPaymentId, amount, currency));
+    }
+
+    private Transaction submitPayment(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency) {
+        return completePayment(kbAccountId, kbPaymentId, createTransaction(kbAccountId, kbPaymentId, amount, currency, Priority.HIGH));
+    }
+
+    // Wait for the outcome of a payment, and record it in the ledger
+    private Transaction completePayment(final UUID kbAccountId, final UUID kbPaymentId, final ListenableFuture<Transaction> payment) {
+        final Transaction transaction;
+        try {
+            transaction = get(payment);
+        } catch (final RuntimeException e) {
+            completePayment(kbAccountId, kbPaymentId, null, e);
+            throw e;
+        }
+        completePayment(kbAccountId, kbPaymentId, transaction, null);
+        return transaction;
+    }
+
+    private void completePayment(final UUID kbAccountId, final UUID kbPaymentId, final Transaction transaction, final Throwable error) {
+        if (transaction != null) {
+            // Successful, or declined (the outcome is known)
+            recordPayment(kbAccountId, kbPaymentId, transaction);
+        } else if (error instanceof TransactionErrorException) {
+            recordFailedPayment(kbAccountId, kbPaymentId, (TransactionErrorException) error);
+        } else if (error instanceof RecurlyApiException && isDeclined((RecurlyApiException) error)) {
+            recordFailedPayment(kbAccountId, kbPaymentId, new TransactionErrorException(((RecurlyApiException) error).getErrors()));
+        } else if (error instanceof RecurlyUnavailableException) {
+            // Rejected before reaching Recurly: the payment may be retried
+            removePayment(kbPaymentId);
+        }
+        // Any other failure leaves the payment pending, for the reconciler to figure out
+    }
+
+    private Transaction waitForPayment(final UUID kbPaymentId, final ListenableFuture<Transaction> payment) throws PaymentPluginApiException {
+        try {
+            return Uninterruptibles.getUninterruptibly(payment);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof PaymentPluginApiException) {
+                throw (PaymentPluginApiException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new PaymentPluginApiException("Unable to process payment " + kbPaymentId, e.getCause());
+            }
+        }
+    }
+
+    private boolean isPendingPaymentExpired(final RecurlyPaymentRecord paymentRecord) {
+        return paymentRecord.getUpdatedDate().plusSeconds((int) pendingPaymentTimeoutSeconds).isBefore(new DateTime(DateTimeZone.UTC));
+    }
+
+    private Transaction findTransactionForKbPaymentId(final UUID kbAccountId, final UUID kbPaymentId, final Priority priority) {
+        final Transaction syncedTransaction = getSyncedTransactionForKbPaymentId(kbPaymentId);
+        if (syncedTransaction != null) {
+            return syncedTransaction;
+        }
+
+        final RecurlyPaymentRecord paymentRecord = getPaymentRecord(kbPaymentId);
+        if (paymentRecord != null && paymentRecord.getRecurlyTransactionUuid() != null) {
+            // Concurrent lookups of the same transaction share a single call
+            return RecurlyFutures.get(asyncClient.getTransaction(priority, paymentRecord.getRecurlyTransactionUuid()));
+        }
+
+        // Not indexed (e.g. payment created before the index existed, or outcome unknown): look it up in Recurly and backfill the index
+        final Transaction transactionForPayment = scanTransactionForKbPaymentId(kbAccountId, kbPaymentId, paymentRecord, priority);
+        if (transactionForPayment != null) {
+            recordPayment(kbAccountId, kbPaymentId, transactionForPayment);
+        }
+        return transactionForPayment;
+    }
+
+    // Local copy of the payment transaction maintained by RecurlyTransactionSynchronizer, null if not synchronized (yet)
+    private Transaction getSyncedTransactionForKbPaymentId(final UUID kbPaymentId) {
+        Transaction syncedTransaction = null;
+        for (final Transaction transaction : getSyncedTransactions(kbPaymentId)) {
+            if ("refund".equals(transaction.getAction())) {
+                continue;
+            }
+            // Failed payments may be retried: prefer the successful attempt, or else the latest one
+            if (syncedTransaction == null || !"success".equals(syncedTransaction.getStatus())) {
+                syncedTransaction = transaction;
+            }
+        }
+        return syncedTransaction;
+    }
+
+    // Payment and refund transactions maintained by RecurlyTransactionSynchronizer, oldest first
+    private List<Transaction> getSyncedTransactions(final UUID kbPaymentId) {
+        if (dao == null) {
+            return ImmutableList.<Transaction>of();
+        }
+
+        try {
+            return dao.getTransactions(kbPaymentId);
+        } catch (final SQLException e) {
+            log.warn("Unable to retrieve the synchronized Recurly transactions for payment " + kbPaymentId, e);
+            return ImmutableList.<Transaction>of();
+        }
+    }
+
+    // Number of payments (or refunds) matching the search key, or of all of them if null
+    private Long getTransactionsCount(final String searchKey, final boolean refunds) throws SQLException {
+        return getSearchCount((refunds ? "refunds" : "payments") + (searchKey == null ? "" : ":" + searchKey), new Callable<Long>() {
+            @Override
+            public Long call() throws SQLException {
+                return searchKey == null ? dao.getTransactionsCount(refunds) : dao.getTransactionsCount(searchKey, refunds);
+            }
+        });
+    }
+
+    // Number of billing information matching the search key, or of all of them if null
+    private Long getBillingInfosCount(final String searchKey) throws SQLException {
+        return getSearchCount("billingInfos" + (searchKey == null ? "" : ":" + searchKey), new Callable<Long>() {
+            @Override
+            public Long call() throws SQLException {
+                return searchKey == null ? dao.getBillingInfosCount() : dao.getBillingInfosCount(searchKey);
+            }
+        });
+    }
+
+    private Long getSearchCount(final String key, final Callable<Long> count) throws SQLException {
+        try {
+            return searchCounts.get(key, count);
+        } catch (final ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    // Searching a local copy which has never been synchronized would silently return nothing
+    private void checkTransactionsSynchronized() throws SQLException, PaymentPluginApiException {
+        if (dao.getSyncCheckpoint(RecurlyTransactionSynchronizer.CHECKPOINT) == null) {
+            throw new PaymentPluginApiException("UNAVAILABLE", "The Recurly transactions of site " + dao.getSite() + " haven't been synchronized yet");
+        }
+    }
+
+    // False until the first full synchronization of the billing information has completed
+    private boolean isBillingInfosSynchronized() {
+        try {
+            return dao.getSyncCheckpoint(RecurlyBillingInfoSynchronizer.CHECKPOINT) != null;
+        } catch (final SQLException e) {
+            log.warn("Unable to retrieve the synchronization state of the billing information of site " + dao.getSite(), e);
+            return false;
+        }
+    }
+
+    private void recordSyncedTransaction(final UUID kbAccountId, final Transaction transaction) {
+        if (dao == null || transaction == null || transaction.getUuid() == null || transaction.getCreatedAt() == null) {
+            return;
+        }
+
+        try {
+            dao.addTransaction(RecurlyObjectFactory.createAccountCode(kbAccountId), transaction);
+        } catch (final SQLException e) {
+            // The next synchronization will pick it up
+            log.warn("Unable to update the local copy of Recurly transaction " + transaction.getUuid(), e);
+        }
+    }
+
+    // Wait for a Recurly call, declines being reported as by the Recurly client (TransactionErrorException)
+    private static <T> T get(final ListenableFuture<T> future) {
+        try {
+            return RecurlyFutures.get(future);
+        } catch (final RecurlyApiException e) {
+            if (isDeclined(e)) {
+                throw new TransactionErrorException(e.getErrors());
             }
-            invoices = invoices.getNext();
+            throw e;
+        }
+    }
+
+    private static boolean isDeclined(final RecurlyApiException e) {
+        return e.getErrors() != null && (e.getErrors().getTransactionError() != null || e.getErrors().getTransaction() != null);
+    }
+
+    // Rejected before anything is recorded or submitted
+    private static void checkAmount(final BigDecimal amount) throws PaymentPluginApiException {
+        try {
+            RecurlyObjectFactory.toAmountInCents(amount);
+        } catch (final IllegalArgumentException e) {
+            throw new PaymentPluginApiException("INVALID_AMOUNT", e.getMessage());
+        }
+    }
+
+    // Recurly wasn't called: Kill Bill may retry later
+    private PaymentPluginApiException toPaymentPluginApiException(final RecurlyUnavailableException e) {
+        return new PaymentPluginApiException("UNAVAILABLE", e.getMessage());
+    }
+
+    private void recordBillingInfo(final String accountCode, final BillingInfo billingInfo) {
+        if (dao == null) {
+            return;
+        }
+
+        try {
+            dao.addBillingInfo(accountCode, billingInfo);
+        } catch (final SQLException e) {
+            // The background synchronization will eventually pick it up
+            log.warn("Unable to update the local copy of the billing info for account " + accountCode, e);
         }
-        if (invoiceForPayment == null) {
+    }
+
+    private RecurlyPaymentRecord getPaymentRecord(final UUID kbPaymentId) {
+        if (dao == null) {
             return null;
         }
 
-        // Find the associated transaction
-        Transaction transactionForPayment = null;
-        Transactions transactions = client.getAccountTransactions(RecurlyObjectFactory.createAccountCode(kbAccountId));
-        while (transactionForPayment == null && transactions != null) {
-            for (final Transaction transaction : transactions) {
-                if (invoiceForPayment.getHref().equals(transaction.getInvoice().getHref())) {
-                    transactionForPayment = transaction;
-                    // Assume no partial payment
-                    break;
+        try {
+            return dao.getPayment(kbPaymentId);
+        } catch (final SQLException e) {
+            log.warn("Unable to retrieve the Recurly transaction for payment " + kbPaymentId + " from the local index", e);
+            return null;
+        }
+    }
+
+    // Returns false if the payment is already in the ledger
+    private boolean recordPendingPayment(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency) {
+        try {
+            return dao.addPendingPayment(kbAccountId, kbPaymentId, RecurlyObjectFactory.toAmountInCents(amount), currency.toString());
+        } catch (final SQLException e) {
+            // Don't block payments when the database is unavailable (the outcome will be looked up in Recurly)
+            log.warn("Unable to record payment " + kbPaymentId + " in the ledger", e);
+            return true;
+        }
+    }
+
+    // Returns false if the payment has been retried concurrently
+    private boolean recordPaymentRetry(final RecurlyPaymentRecord paymentRecord, final BigDecimal amount, final Currency currency) {
+        try {
+            return dao.retryFailedPayment(paymentRecord.getKbPaymentId(), paymentRecord.getUpdatedDate(), RecurlyObjectFactory.toAmountInCents(amount), currency.toString());
+        } catch (final SQLException e) {
+            // Don't block payments when the database is unavailable (the outcome will be looked up in Recurly)
+            log.warn("Unable to record the retry of payment " + paymentRecord.getKbPaymentId() + " in the ledger", e);
+            return true;
+        }
+    }
+
+    private void recordPayment(final UUID kbAccountId, final UUID kbPaymentId, final Transaction transaction) {
+        if (dao == null || transaction == null || transaction.getUuid() == null) {
+            return;
+        }
+
+        final RecurlyPaymentRecord.Status status = "success".equals(transaction.getStatus()) ? RecurlyPaymentRecord.Status.PROCESSED : RecurlyPaymentRecord.Status.ERROR;
+        try {
+            dao.addPayment(kbAccountId, kbPaymentId, status, transaction);
+        } catch (final SQLException e) {
+            // Not fatal: the payment will be looked up in Recurly (and the index backfilled) next time
+            log.warn("Unable to index Recurly transaction " + transaction.getUuid() + " for payment " + kbPaymentId, e);
+        }
+        // Searchable right away, without waiting for the next synchronization
+        recordSyncedTransaction(kbAccountId, transaction);
+    }
+
+    private void recordFailedPayment(final UUID kbAccountId, final UUID kbPaymentId, final TransactionErrorException e) {
+        final Transaction failedTransaction = e.getErrors() == null ? null : e.getErrors().getTransaction();
+        if (failedTransaction != null) {
+            recordPayment(kbAccountId, kbPaymentId, failedTransaction);
+            return;
+        }
+
+        // Rejected before any transaction was created: nothing to remember, the payment may be retried
+        removePayment(kbPaymentId);
+    }
+
+    private void removePayment(final UUID kbPaymentId) {
+        if (dao == null) {
+            return;
+        }
+        try {
+            dao.deletePayment(kbPaymentId);
+        } catch (final SQLException e) {
+            // The reconciler will eventually remove it
+            log.warn("Unable to remove failed payment " + kbPaymentId + " from the ledger", e);
+        }
+    }
+
+    // Walk the invoices of the account newest first (recent payments are found on the first page), within the ledger window if any
+    private Transaction scanTransactionForKbPaymentId(final UUID kbAccountId, final UUID kbPaymentId, final RecurlyPaymentRecord paymentRecord, final Priority priority) {
+        final String accountCode = RecurlyObjectFactory.createAccountCode(kbAccountId);
+
+        // The payment can only have reached Recurly while it was being submitted
+        final RecurlyPageIterator<Invoices> invoicesPages;
+        if (paymentRecord == null) {
+            invoicesPages = asyncClient.iterateAccountInvoices(priority, accountCode);
+        } else {
+            invoicesPages = asyncClient.iterateAccountInvoices(priority,
+                                                               accountCode,
+                                                               paymentRecord.getCreatedDate().minusSeconds(CLOCK_SKEW_SECONDS),
+                                                               paymentRecord.getUpdatedDate().plusSeconds((int) pendingPaymentTimeoutSeconds + CLOCK_SKEW_SECONDS));
+        }
+
+        try {
+            while (invoicesPages.hasNext()) {
+                for (final Invoice invoice : invoicesPages.next()) {
+                    // We need to find the invoice first, not the transaction, because the description field is added to the invoice
+                    if (isInvoiceForKbPaymentId(invoice, kbPaymentId)) {
+                        return getTransactionForInvoice(invoice);
+                    }
                 }
             }
-            transactions = transactions.getNext();
+            return null;
+        } finally {
+            // Don't keep fetching pages we won't look at
+            invoicesPages.close();
         }
+    }
 
-        return transactionForPayment;
+    private boolean isInvoiceForKbPaymentId(final Invoice invoice, final UUID kbPaymentId) {
+        if (invoice.getLineItems() == null) {
+            return false;
+        }
+        for (final Adjustment charge : invoice.getLineItems()) {
+            if (kbPaymentId.toString().equals(charge.getDescription())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Invoices embed their transactions: no need to walk the transactions of the account
+    private Transaction getTransactionForInvoice(final Invoice invoice) {
+        if (invoice.getTransactions() == null) {
+            return null;
+        }
+
+        Transaction transactionForInvoice = null;
+        for (final Transaction transaction : invoice.getTransactions()) {
+            if ("refund".equals(transaction.getAction())) {
+                continue;
+            }
+            // Assume no partial payment, but prefer the successful attempt
+            if (transactionForInvoice == null || "success".equals(transaction.getStatus())) {
+                transactionForInvoice = transaction;
+            }
+        }
+        if (transactionForInvoice != null && transactionForInvoice.getInvoice() == null) {
+            // Not linked back when embedded
+            transactionForInvoice.setInvoice(invoice);
+        }
+        return transactionForInvoice;
     }
 }
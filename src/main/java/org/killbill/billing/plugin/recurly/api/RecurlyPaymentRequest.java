@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+
+public class RecurlyPaymentRequest {
+
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final BigDecimal amount;
+    private final Currency currency;
+
+    public RecurlyPaymentRequest(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency) {
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.amount = amount;
+        this.currency = currency;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RecurlyPaymentRequest{");
+        sb.append("kbAccountId=").append(kbAccountId);
+        sb.append(", kbPaymentId=").append(kbPaymentId);
+        sb.append(", amount=").append(amount);
+        sb.append(", currency=").append(currency);
+        sb.append('}');
+        return sb.toString();
+    }
+}
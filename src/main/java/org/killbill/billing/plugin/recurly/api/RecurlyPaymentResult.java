@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
+
+import com.ning.billing.recurly.model.Transaction;
+
+public class RecurlyPaymentResult {
+
+    private final RecurlyPaymentRequest request;
+    // Null if Recurly didn't create a transaction
+    private final Transaction transaction;
+    // Null if the transaction was successfully submitted
+    private final Throwable error;
+
+    public RecurlyPaymentResult(final RecurlyPaymentRequest request, final Transaction transaction, final Throwable error) {
+        this.request = request;
+        this.transaction = transaction;
+        this.error = error;
+    }
+
+    public RecurlyPaymentRequest getRequest() {
+        return request;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    // Null if Recurly didn't create a transaction (e.g. unknown account)
+    public PaymentInfoPlugin getPaymentInfo() {
+        return transaction == null ? null : new RecurlyPaymentInfoPlugin(request.getKbPaymentId(), transaction);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RecurlyPaymentResult{");
+        sb.append("request=").append(request);
+        sb.append(", transactionUuid=").append(transaction == null ? null : transaction.getUuid());
+        sb.append(", error=").append(error);
+        sb.append('}');
+        return sb.toString();
+    }
+}
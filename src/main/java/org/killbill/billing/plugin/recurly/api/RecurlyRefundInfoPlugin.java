@@ -24,6 +24,7 @@ import org.joda.time.DateTime;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.plugin.api.RefundInfoPlugin;
 import org.killbill.billing.payment.plugin.api.RefundPluginStatus;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
 
 import com.ning.billing.recurly.model.Transaction;
 
@@ -39,13 +40,20 @@ public class RecurlyRefundInfoPlugin implements RefundInfoPlugin {
 
     public RecurlyRefundInfoPlugin(final Transaction transaction) {
         // TODO Wrong in case of partial refunds
-        this(transaction, new BigDecimal(((Integer) (transaction.getAmountInCents() / 100)).toString()));
+        this(transaction, RecurlyObjectFactory.fromAmountInCents(transaction.getAmountInCents()));
     }
 
     @Override
     public UUID getKbPaymentId() {
-        // TODO
-        return null;
+        // Only set on the local copy of the transactions (see RecurlyDao), unknown for refunds not made by the plugin
+        if (transaction.getDescription() == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(transaction.getDescription());
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
     }
 
     @Override
@@ -71,6 +79,10 @@ public class RecurlyRefundInfoPlugin implements RefundInfoPlugin {
 
     @Override
     public RefundPluginStatus getStatus() {
+        if ("refund".equals(transaction.getAction())) {
+            // Refund transaction (see RecurlyTransactionSynchronizer)
+            return "success".equals(transaction.getStatus()) ? RefundPluginStatus.PROCESSED : RefundPluginStatus.ERROR;
+        }
         // TODO Is void returned for partial refunds?
         return "void".equals(transaction.getStatus()) ? RefundPluginStatus.PROCESSED : RefundPluginStatus.ERROR;
     }
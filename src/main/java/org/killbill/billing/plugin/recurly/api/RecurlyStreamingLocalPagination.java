@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.killbill.billing.util.entity.Pagination;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+// Page of results streamed from the local tables: results are fetched in chunks while iterating, so the page is never fully loaded in memory
+public abstract class RecurlyStreamingLocalPagination<T> implements Pagination<T> {
+
+    private static final long DEFAULT_CHUNK_SIZE = 100;
+
+    private final Long offset;
+    private final Long limit;
+    private final Long maxNbRecords;
+    private final Long totalNbRecords;
+    private final long chunkSize;
+
+    public RecurlyStreamingLocalPagination(final Long offset, final Long limit, final Long maxNbRecords, final Long totalNbRecords) {
+        this(offset, limit, maxNbRecords, totalNbRecords, DEFAULT_CHUNK_SIZE);
+    }
+
+    RecurlyStreamingLocalPagination(final Long offset, final Long limit, final Long maxNbRecords, final Long totalNbRecords, final long chunkSize) {
+        this.offset = offset;
+        this.limit = limit;
+        this.maxNbRecords = maxNbRecords;
+        this.totalNbRecords = totalNbRecords;
+        this.chunkSize = chunkSize;
+    }
+
+    // Retrieve the results [chunkOffset, chunkOffset + chunkLimit)
+    protected abstract List<T> fetch(long chunkOffset, long chunkLimit) throws SQLException;
+
+    @Override
+    public Long getCurrentOffset() {
+        return offset;
+    }
+
+    @Override
+    public Long getNextOffset() {
+        final long nextOffset = getEndOffset();
+        return nextOffset < totalNbRecords ? nextOffset : null;
+    }
+
+    @Override
+    public Long getMaxNbRecords() {
+        return maxNbRecords;
+    }
+
+    @Override
+    public Long getTotalNbRecords() {
+        return totalNbRecords;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new AbstractIterator<T>() {
+
+            private final long endOffset = getEndOffset();
+            private long chunkOffset = offset;
+            private Iterator<T> chunk = Iterators.emptyIterator();
+
+            @Override
+            protected T computeNext() {
+                if (!chunk.hasNext()) {
+                    if (chunkOffset >= endOffset) {
+                        return endOfData();
+                    }
+
+                    final List<T> results;
+                    try {
+                        results = fetch(chunkOffset, Math.min(chunkSize, endOffset - chunkOffset));
+                    } catch (final SQLException e) {
+                        throw Throwables.propagate(e);
+                    }
+                    if (results.isEmpty()) {
+                        // Rows deleted in the meantime
+                        return endOfData();
+                    }
+                    chunkOffset += results.size();
+                    chunk = results.iterator();
+                }
+                return chunk.next();
+            }
+        };
+    }
+
+    private long getEndOffset() {
+        return Math.max(offset, Math.min(offset + limit, totalNbRecords));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.RefundInfoPlugin;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.entity.Pagination;
+
+import com.google.common.base.Function;
+
+/**
+ * Route each call to the plugin API of the Recurly site of the tenant of the call context.
+ * resetPaymentMethods doesn't have a context and always goes to the default site.
+ */
+public class RecurlyTenantPaymentPluginApi implements PaymentPluginApi {
+
+    // Plugin API of the tenant (null for the default site)
+    private final Function<UUID, ? extends PaymentPluginApi> apiForTenant;
+
+    public RecurlyTenantPaymentPluginApi(final Function<UUID, ? extends PaymentPluginApi> apiForTenant) {
+        this.apiForTenant = apiForTenant;
+    }
+
+    @Override
+    public PaymentInfoPlugin processPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+        return getApi(context).processPayment(kbAccountId, kbPaymentId, kbPaymentMethodId, amount, currency, context);
+    }
+
+    @Override
+    public PaymentInfoPlugin getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).getPaymentInfo(kbAccountId, kbPaymentId, context);
+    }
+
+    @Override
+    public Pagination<PaymentInfoPlugin> searchPayments(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).searchPayments(searchKey, offset, limit, context);
+    }
+
+    @Override
+    public RefundInfoPlugin processRefund(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal refundAmount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+        return getApi(context).processRefund(kbAccountId, kbPaymentId, refundAmount, currency, context);
+    }
+
+    @Override
+    public List<RefundInfoPlugin> getRefundInfo(final UUID kbAccountId, final UUID kbPaymentId, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).getRefundInfo(kbAccountId, kbPaymentId, context);
+    }
+
+    @Override
+    public Pagination<RefundInfoPlugin> searchRefunds(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).searchRefunds(searchKey, offset, limit, context);
+    }
+
+    @Override
+    public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final CallContext context) throws PaymentPluginApiException {
+        getApi(context).addPaymentMethod(kbAccountId, kbPaymentMethodId, paymentMethodProps, setDefault, context);
+    }
+
+    @Override
+    public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final CallContext context) throws PaymentPluginApiException {
+        getApi(context).deletePaymentMethod(kbAccountId, kbPaymentMethodId, context);
+    }
+
+    @Override
+    public PaymentMethodPlugin getPaymentMethodDetail(final UUID kbAccountId, final UUID kbPaymentMethodId, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).getPaymentMethodDetail(kbAccountId, kbPaymentMethodId, context);
+    }
+
+    @Override
+    public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final CallContext context) throws PaymentPluginApiException {
+        getApi(context).setDefaultPaymentMethod(kbAccountId, kbPaymentMethodId, context);
+    }
+
+    @Override
+    public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway, final CallContext context) throws PaymentPluginApiException {
+        return getApi(context).getPaymentMethods(kbAccountId, refreshFromGateway, context);
+    }
+
+    @Override
+    public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final TenantContext context) throws PaymentPluginApiException {
+        return getApi(context).searchPaymentMethods(searchKey, offset, limit, context);
+    }
+
+    @Override
+    public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods) throws PaymentPluginApiException {
+        apiForTenant.apply(null).resetPaymentMethods(kbAccountId, paymentMethods);
+    }
+
+    private PaymentPluginApi getApi(final TenantContext context) {
+        return apiForTenant.apply(context == null ? null : context.getTenantId());
+    }
+}
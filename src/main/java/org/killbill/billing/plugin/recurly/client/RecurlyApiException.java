@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import com.ning.billing.recurly.model.Errors;
+
+public class RecurlyApiException extends RuntimeException {
+
+    private final int statusCode;
+    private final Errors errors;
+
+    public RecurlyApiException(final int statusCode, final String message, final Errors errors) {
+        super("Recurly call failed with status " + statusCode + ": " + message);
+        this.statusCode = statusCode;
+        this.errors = errors;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // Parsed error payload, if any
+    public Errors getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Errors;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.Response;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Non-blocking variant of the RecurlyClient calls used by the plugin: results are delivered through
+ * futures completed by the async-http-client I/O threads, so several requests can be in flight at once.
+ * Issuing a call may block until it is admitted by the RecurlyCallGuard: never issue one from a callback
+ * of another call, as it would hold up an I/O thread.
+ * <p/>
+ * Pages of list calls are parsed with RecurlyXmlParser: only the fields used by the plugin are populated.
+ */
+public class RecurlyAsyncClient {
+
+    public static final String DEFAULT_BASE_URL = "https://api.recurly.com/v2";
+    public static final int DEFAULT_NB_PAGES_TO_PREFETCH = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern NEXT_LINK_PATTERN = Pattern.compile("<([^>]+)>;\\s*rel=\"next\"");
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+    // List responses are only projected on the fields used by the plugin
+    private final RecurlyXmlParser xmlParser = new RecurlyXmlParser();
+    private final String authorization;
+    private final String baseUrl;
+    private final int pageSize;
+    private final int nbPagesToPrefetch;
+    private final RecurlyRateLimiter rateLimiter;
+    // Bulkheads, circuit breaker and rate limiter
+    private final RecurlyCallGuard callGuard;
+    // Concurrent identical reads share a single call
+    private final RecurlySingleFlight singleFlight;
+    // Issues the requests for the pages fetched ahead (see RecurlyPageIterator), which may wait for admission:
+    // unbounded, as each iterator has at most one page request being issued at a time
+    private final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("recurly-prefetch-%d")
+                                                                                                         .setDaemon(true)
+                                                                                                         .build());
+    // Swapped when the HTTP settings are reconfigured
+    private volatile AsyncHttpClient httpClient;
+
+    public RecurlyAsyncClient(final String apiKey, final String baseUrl, final int pageSize, final AsyncHttpClient httpClient,
+                              final RecurlyRateLimiter rateLimiter, final RecurlyMetrics metrics) {
+        this(apiKey, baseUrl, pageSize, DEFAULT_NB_PAGES_TO_PREFETCH, httpClient, new RecurlyCallGuard(rateLimiter, metrics), metrics);
+    }
+
+    public RecurlyAsyncClient(final String apiKey, final String baseUrl, final int pageSize, final int nbPagesToPrefetch, final AsyncHttpClient httpClient,
+                              final RecurlyCallGuard callGuard, final RecurlyMetrics metrics) {
+        this.authorization = "Basic " + BaseEncoding.base64().encode(apiKey.getBytes(UTF_8));
+        this.baseUrl = baseUrl;
+        this.pageSize = pageSize;
+        this.nbPagesToPrefetch = nbPagesToPrefetch;
+        this.httpClient = httpClient;
+        this.rateLimiter = callGuard.getRateLimiter();
+        this.callGuard = callGuard;
+        this.singleFlight = new RecurlySingleFlight(metrics);
+    }
+
+    // Returns the previous client, which the caller is responsible for closing
+    public AsyncHttpClient setHttpClient(final AsyncHttpClient httpClient) {
+        final AsyncHttpClient previousHttpClient = this.httpClient;
+        this.httpClient = httpClient;
+        return previousHttpClient;
+    }
+
+    public RecurlyMetrics getMetrics() {
+        return callGuard.getMetrics();
+    }
+
+    public void close() {
+        prefetchExecutor.shutdownNow();
+        httpClient.close();
+    }
+
+    public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+        final String body;
+        try {
+            body = xmlMapper.writeValueAsString(transaction);
+        } catch (final IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return execute(priority, "createTransaction", prepare(httpClient.preparePost(baseUrl + "/transactions")).setBody(body), Transaction.class, false);
+    }
+
+    // Concurrent lookups of the same transaction share a single call: the result may predate the request (see RecurlySingleFlight)
+    public ListenableFuture<Transaction> getTransaction(final Priority priority, final String transactionUuid) {
+        return singleFlight.executeAsync(priority, "getTransaction", transactionUuid, new Callable<ListenableFuture<Transaction>>() {
+            @Override
+            public ListenableFuture<Transaction> call() {
+                return getFreshTransaction(priority, transactionUuid);
+            }
+        });
+    }
+
+    // Never shared with a call already in flight: reflects the writes completed before the request (e.g. read after a refund)
+    public ListenableFuture<Transaction> getFreshTransaction(final Priority priority, final String transactionUuid) {
+        return execute(priority, "getTransaction", prepare(httpClient.prepareGet(baseUrl + "/transactions/" + transactionUuid)), Transaction.class, false);
+    }
+
+    public ListenableFuture<Void> refundTransaction(final Priority priority, final String transactionUuid, final BigDecimal amount) {
+        final BoundRequestBuilder builder = prepare(httpClient.prepareDelete(baseUrl + "/transactions/" + transactionUuid));
+        if (amount != null) {
+            builder.addQueryParameter("amount_in_cents", String.valueOf(RecurlyObjectFactory.toAmountInCents(amount)));
+        }
+        return execute(priority, "refundTransaction", builder, Void.class, false);
+    }
+
+    // Completes with null if the account doesn't have any billing information
+    public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String accountCode) {
+        return singleFlight.executeAsync(priority, "getBillingInfo", accountCode, new Callable<ListenableFuture<BillingInfo>>() {
+            @Override
+            public ListenableFuture<BillingInfo> call() {
+                return execute(priority, "getBillingInfo", prepare(httpClient.prepareGet(baseUrl + "/accounts/" + accountCode + "/billing_info")), BillingInfo.class, true);
+            }
+        });
+    }
+
+    public ListenableFuture<BillingInfo> createOrUpdateBillingInfo(final Priority priority, final BillingInfo billingInfo) {
+        final String body;
+        try {
+            body = xmlMapper.writeValueAsString(billingInfo);
+        } catch (final IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final String accountCode = billingInfo.getAccount().getAccountCode();
+        return execute(priority, "createOrUpdateBillingInfo", prepare(httpClient.preparePut(baseUrl + "/accounts/" + accountCode + "/billing_info")).setBody(body), BillingInfo.class, false);
+    }
+
+    public ListenableFuture<Void> clearBillingInfo(final Priority priority, final String accountCode) {
+        return execute(priority, "clearBillingInfo", prepare(httpClient.prepareDelete(baseUrl + "/accounts/" + accountCode + "/billing_info")), Void.class, false);
+    }
+
+    public ListenableFuture<RecurlyPage<Accounts>> getAccounts(final Priority priority) {
+        return getPage(priority, "getAccounts", baseUrl + "/accounts?per_page=" + pageSize, Accounts.class);
+    }
+
+    public ListenableFuture<RecurlyPage<Invoices>> getAccountInvoices(final Priority priority, final String accountCode) {
+        return getAccountInvoices(priority, accountCode, null, null);
+    }
+
+    // Invoices of the account created between beginTime and endTime (null for no bound), newest first
+    public ListenableFuture<RecurlyPage<Invoices>> getAccountInvoices(final Priority priority, final String accountCode, final DateTime beginTime, final DateTime endTime) {
+        final StringBuilder url = new StringBuilder(baseUrl).append("/accounts/").append(accountCode).append("/invoices?per_page=").append(pageSize)
+                                                            .append("&sort=created_at&order=desc");
+        appendTime(url, "begin_time", beginTime);
+        appendTime(url, "end_time", endTime);
+        return getPage(priority, "getAccountInvoices", url.toString(), Invoices.class);
+    }
+
+    // Most recently created first (requested explicitly, rather than relying on the Recurly default)
+    public ListenableFuture<RecurlyPage<Transactions>> getAccountTransactions(final Priority priority, final String accountCode) {
+        final StringBuilder url = new StringBuilder(baseUrl).append("/accounts/").append(accountCode).append("/transactions?per_page=").append(pageSize)
+                                                            .append("&sort=created_at&order=desc");
+        return getPage(priority, "getAccountTransactions", url.toString(), Transactions.class);
+    }
+
+    // All transactions of the site updated (created, refunded, voided...) since beginTime (null for all), least recently updated first
+    public ListenableFuture<RecurlyPage<Transactions>> getTransactions(final Priority priority, final DateTime beginTime) {
+        // begin_time applies to the sort field
+        final StringBuilder url = new StringBuilder(baseUrl).append("/transactions?per_page=").append(pageSize)
+                                                            .append("&state=all&type=all&sort=updated_at&order=asc");
+        appendTime(url, "begin_time", beginTime);
+        return getPage(priority, "getTransactions", url.toString(), Transactions.class);
+    }
+
+    public RecurlyPageIterator<Accounts> iterateAccounts(final Priority priority) {
+        return iterate(priority, Accounts.class, getAccounts(priority));
+    }
+
+    public RecurlyPageIterator<Invoices> iterateAccountInvoices(final Priority priority, final String accountCode) {
+        return iterate(priority, Invoices.class, getAccountInvoices(priority, accountCode));
+    }
+
+    public RecurlyPageIterator<Invoices> iterateAccountInvoices(final Priority priority, final String accountCode, final DateTime beginTime, final DateTime endTime) {
+        return iterate(priority, Invoices.class, getAccountInvoices(priority, accountCode, beginTime, endTime));
+    }
+
+    public RecurlyPageIterator<Transactions> iterateAccountTransactions(final Priority priority, final String accountCode) {
+        return iterate(priority, Transactions.class, getAccountTransactions(priority, accountCode));
+    }
+
+    public RecurlyPageIterator<Transactions> iterateTransactions(final Priority priority, final DateTime beginTime) {
+        return iterate(priority, Transactions.class, getTransactions(priority, beginTime));
+    }
+
+    // Completes with null if this is the last page (clazz is the type of the objects of the page, e.g. Accounts)
+    public <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getNextPage(final Priority priority, final RecurlyPage<T> page, final Class<T> clazz) {
+        if (page == null || !page.hasNext()) {
+            return Futures.<RecurlyPage<T>>immediateFuture(null);
+        }
+        return getPage(priority, "getNextPage", page.getNextUrl(), clazz);
+    }
+
+    private <T extends RecurlyObjects> RecurlyPageIterator<T> iterate(final Priority priority, final Class<T> clazz, final ListenableFuture<RecurlyPage<T>> firstPage) {
+        // The pages fetched ahead are requested on behalf of the caller
+        return new RecurlyPageIterator<T>(this, priority, clazz, firstPage, nbPagesToPrefetch, getMetrics().inCurrentOperation(prefetchExecutor));
+    }
+
+    private <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getPage(final Priority priority, final String call, final String url, final Class<T> clazz) {
+        return singleFlight.executeAsync(priority, call, url, new Callable<ListenableFuture<RecurlyPage<T>>>() {
+            @Override
+            public ListenableFuture<RecurlyPage<T>> call() {
+                return fetchPage(priority, call, url, clazz);
+            }
+        });
+    }
+
+    private <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> fetchPage(final Priority priority, final String call, final String url, final Class<T> clazz) {
+        return callGuard.callAsync(priority, call, new Callable<ListenableFuture<RecurlyPage<T>>>() {
+            @Override
+            public ListenableFuture<RecurlyPage<T>> call() {
+                return doFetchPage(url, clazz);
+            }
+        });
+    }
+
+    private <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> doFetchPage(final String url, final Class<T> clazz) {
+        final SettableFuture<RecurlyPage<T>> future = SettableFuture.<RecurlyPage<T>>create();
+        try {
+            final Future<RecurlyPage<T>> request = prepare(httpClient.prepareGet(url)).execute(new RecurlyCompletionHandler<RecurlyPage<T>>(future) {
+                @Override
+                protected RecurlyPage<T> parse(final Response response) throws IOException {
+                    try {
+                        return new RecurlyPage<T>(xmlParser.parsePage(response.getResponseBodyAsStream(), clazz), getNextUrl(response));
+                    } catch (final XMLStreamException e) {
+                        throw new IOException("Unable to parse Recurly response for " + url, e);
+                    }
+                }
+            });
+            abortWhenCancelled(future, request);
+        } catch (final IOException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    private <T> ListenableFuture<T> execute(final Priority priority, final String call, final BoundRequestBuilder builder, final Class<T> clazz, final boolean nullIfNotFound) {
+        return callGuard.callAsync(priority, call, new Callable<ListenableFuture<T>>() {
+            @Override
+            public ListenableFuture<T> call() {
+                return doExecute(builder, clazz, nullIfNotFound);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> doExecute(final BoundRequestBuilder builder, final Class<T> clazz, final boolean nullIfNotFound) {
+        final SettableFuture<T> future = SettableFuture.<T>create();
+        try {
+            final Future<T> request = builder.execute(new RecurlyCompletionHandler<T>(future) {
+                @Override
+                protected T parse(final Response response) throws IOException {
+                    if ((nullIfNotFound && response.getStatusCode() == 404) || clazz == Void.class || !response.hasResponseBody()) {
+                        return null;
+                    }
+                    return xmlMapper.readValue(response.getResponseBodyAsStream(), clazz);
+                }
+
+                @Override
+                protected boolean isSuccess(final Response response) {
+                    return super.isSuccess(response) || (nullIfNotFound && response.getStatusCode() == 404);
+                }
+            });
+            abortWhenCancelled(future, request);
+        } catch (final IOException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    // Cancelling the future (e.g. pages fetched ahead of a closed iterator) aborts the HTTP request
+    private static void abortWhenCancelled(final ListenableFuture<?> future, final Future<?> request) {
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    request.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private BoundRequestBuilder prepare(final BoundRequestBuilder builder) {
+        return builder.addHeader("Authorization", authorization)
+                      .addHeader("Accept", "application/xml")
+                      .addHeader("Content-Type", "application/xml; charset=utf-8");
+    }
+
+    // Let Recurly's view of the remaining quota drive the client-side rate
+    private void updateRateLimiter(final Response response) {
+        final Long reset = parseLong(response.getHeader("X-RateLimit-Reset"));
+        final Long secondsUntilReset = reset == null ? null : Math.max(0, reset - System.currentTimeMillis() / 1000);
+        if (response.getStatusCode() == 429) {
+            rateLimiter.onRateLimited(secondsUntilReset);
+            return;
+        }
+
+        final Long limit = parseLong(response.getHeader("X-RateLimit-Limit"));
+        final Long remaining = parseLong(response.getHeader("X-RateLimit-Remaining"));
+        if (limit != null && remaining != null && secondsUntilReset != null) {
+            rateLimiter.update(limit.intValue(), remaining.intValue(), secondsUntilReset);
+        }
+    }
+
+    private static void appendTime(final StringBuilder url, final String parameter, final DateTime time) {
+        if (time != null) {
+            url.append('&').append(parameter).append('=').append(time.toDateTime(DateTimeZone.UTC).toString(ISODateTimeFormat.dateTimeNoMillis()));
+        }
+    }
+
+    private static Long parseLong(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getNextUrl(final Response response) {
+        final String linkHeader = response.getHeader("Link");
+        if (linkHeader == null) {
+            return null;
+        }
+        final Matcher matcher = NEXT_LINK_PATTERN.matcher(linkHeader);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private abstract class RecurlyCompletionHandler<T> extends AsyncCompletionHandler<T> {
+
+        private final SettableFuture<T> future;
+
+        RecurlyCompletionHandler(final SettableFuture<T> future) {
+            this.future = future;
+        }
+
+        protected abstract T parse(Response response) throws IOException;
+
+        protected boolean isSuccess(final Response response) {
+            return response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+        }
+
+        @Override
+        public T onCompleted(final Response response) throws Exception {
+            updateRateLimiter(response);
+            if (!isSuccess(response)) {
+                future.setException(toException(response));
+                return null;
+            }
+
+            try {
+                final T result = parse(response);
+                future.set(result);
+                return result;
+            } catch (final IOException e) {
+                future.setException(e);
+                return null;
+            }
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            future.setException(t);
+        }
+
+        private RecurlyApiException toException(final Response response) throws IOException {
+            final String body = response.getResponseBody();
+            Errors errors = null;
+            if (body != null && !body.isEmpty()) {
+                try {
+                    errors = xmlMapper.readValue(body, Errors.class);
+                } catch (final IOException ignored) {
+                    // Not a Recurly error payload
+                }
+            }
+            return new RecurlyApiException(response.getStatusCode(), response.getStatusText(), errors);
+        }
+    }
+}
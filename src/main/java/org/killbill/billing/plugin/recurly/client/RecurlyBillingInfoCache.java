@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.ning.billing.recurly.model.BillingInfo;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Read-through cache of the Recurly billing information, keyed by account code. Entries are evicted
+ * after the TTL or when the cache is full, and must be invalidated whenever the billing information is modified.
+ * <p/>
+ * An invalidation wins over the fetches in flight when it happens: their results, which may predate
+ * the modification, are not cached.
+ */
+public class RecurlyBillingInfoCache {
+
+    // Power of two
+    private static final int NB_STAMPS = 1024;
+
+    // Concurrent refreshes of the same account share a single call (see RecurlyAsyncClient#getBillingInfo)
+    private final RecurlyAsyncClient asyncClient;
+    // Accounts without billing information are cached as well
+    private final Cache<String, Optional<BillingInfo>> cache;
+    // Bumped on each invalidation of the accounts hashing to the slot (a collision only costs a cache miss)
+    private final AtomicLongArray stamps = new AtomicLongArray(NB_STAMPS);
+
+    public RecurlyBillingInfoCache(final RecurlyAsyncClient asyncClient, final long maxSize, final long ttlSeconds) {
+        this.asyncClient = asyncClient;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maxSize)
+                                 .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                 .recordStats()
+                                 .build();
+    }
+
+    public BillingInfo getBillingInfo(final String accountCode, final Priority priority) {
+        final Optional<BillingInfo> cachedBillingInfo = cache.getIfPresent(accountCode);
+        if (cachedBillingInfo != null) {
+            return cachedBillingInfo.orNull();
+        }
+        return refreshBillingInfo(accountCode, priority);
+    }
+
+    // Bypass the cache, and refresh it with the billing information retrieved from Recurly
+    public BillingInfo refreshBillingInfo(final String accountCode, final Priority priority) {
+        final int slot = getSlot(accountCode);
+        final long stamp = stamps.get(slot);
+        final BillingInfo billingInfo = fetchBillingInfo(accountCode, priority);
+        cache.put(accountCode, Optional.<BillingInfo>fromNullable(billingInfo));
+        if (stamps.get(slot) != stamp) {
+            // Invalidated while being fetched: the invalidation may have missed the entry we just put
+            cache.invalidate(accountCode);
+        }
+        return billingInfo;
+    }
+
+    public void invalidate(final String accountCode) {
+        // Bump the stamp first, so that a concurrent refresh either sees it or is invalidated below
+        stamps.incrementAndGet(getSlot(accountCode));
+        cache.invalidate(accountCode);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private BillingInfo fetchBillingInfo(final String accountCode, final Priority priority) {
+        return RecurlyFutures.get(asyncClient.getBillingInfo(priority, accountCode));
+    }
+
+    private static int getSlot(final String accountCode) {
+        return accountCode.hashCode() & (NB_STAMPS - 1);
+    }
+}
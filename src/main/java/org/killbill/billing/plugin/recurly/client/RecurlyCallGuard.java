@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Admission control in front of every Recurly call: bulkhead of the lane, circuit breaker, then rate limiter.
+ * <p/>
+ * Each rate limiter lane (payments, other reads, searches and synchronization) has its own bulkhead, i.e. a bounded
+ * number of calls in flight, so that slow searches can never take up the threads and connections needed by payments.
+ * Calls which cannot be admitted fail fast with a RecurlyUnavailableException, and never reach Recurly.
+ * <p/>
+ * Each lane also has its own circuit breaker: slow or failing searches and synchronization calls must not open the
+ * circuit in front of payments (and vice versa, a lane only probes Recurly on its own behalf).
+ * <p/>
+ * Admission blocks the calling thread, for both blocking and non-blocking calls: up to maxWaitMs for room in the
+ * bulkhead, then for as long as the rate limiter requires (e.g. until the Recurly quota is reset). Calls must therefore
+ * never be issued from the completion of another call (i.e. on an async-http-client I/O thread), but from a thread
+ * which may wait: the caller's own, or an executor sized for it (see RecurlyPageIterator). The number of threads waiting
+ * in a lane is bounded by the pool issuing its calls (e.g. search.parallelism for searches), not by the guard.
+ */
+public class RecurlyCallGuard {
+
+    public static final int DEFAULT_MAX_PAYMENT_CALLS = 30;
+    public static final int DEFAULT_MAX_READ_CALLS = 15;
+    public static final int DEFAULT_MAX_SEARCH_CALLS = 5;
+    public static final long DEFAULT_MAX_WAIT_MS = 5000;
+
+    private final RecurlyRateLimiter rateLimiter;
+    private final RecurlyMetrics metrics;
+    private final Map<Priority, RecurlyCircuitBreaker> circuitBreakers = new EnumMap<Priority, RecurlyCircuitBreaker>(Priority.class);
+    private final Map<Priority, Semaphore> bulkheads = new EnumMap<Priority, Semaphore>(Priority.class);
+    // Maximum time to wait for room in a bulkhead
+    private final long maxWaitMs;
+    private final Ticker ticker;
+
+    public RecurlyCallGuard(final RecurlyRateLimiter rateLimiter, final RecurlyMetrics metrics) {
+        this(rateLimiter,
+             metrics,
+             new Supplier<RecurlyCircuitBreaker>() {
+                 @Override
+                 public RecurlyCircuitBreaker get() {
+                     return new RecurlyCircuitBreaker();
+                 }
+             },
+             DEFAULT_MAX_PAYMENT_CALLS, DEFAULT_MAX_READ_CALLS, DEFAULT_MAX_SEARCH_CALLS, DEFAULT_MAX_WAIT_MS);
+    }
+
+    /**
+     * @param circuitBreakerFactory creates the circuit breaker of each lane
+     */
+    public RecurlyCallGuard(final RecurlyRateLimiter rateLimiter, final RecurlyMetrics metrics, final Supplier<RecurlyCircuitBreaker> circuitBreakerFactory,
+                            final int maxPaymentCalls, final int maxReadCalls, final int maxSearchCalls, final long maxWaitMs) {
+        this(rateLimiter, metrics, circuitBreakerFactory, maxPaymentCalls, maxReadCalls, maxSearchCalls, maxWaitMs, Ticker.systemTicker());
+    }
+
+    RecurlyCallGuard(final RecurlyRateLimiter rateLimiter, final RecurlyMetrics metrics, final Supplier<RecurlyCircuitBreaker> circuitBreakerFactory,
+                     final int maxPaymentCalls, final int maxReadCalls, final int maxSearchCalls, final long maxWaitMs, final Ticker ticker) {
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.maxWaitMs = maxWaitMs;
+        this.ticker = ticker;
+        bulkheads.put(Priority.HIGH, new Semaphore(maxPaymentCalls));
+        bulkheads.put(Priority.NORMAL, new Semaphore(maxReadCalls));
+        bulkheads.put(Priority.LOW, new Semaphore(maxSearchCalls));
+        for (final Priority priority : Priority.values()) {
+            circuitBreakers.put(priority, circuitBreakerFactory.get());
+        }
+    }
+
+    /**
+     * Issue a blocking call on the calling thread.
+     *
+     * @param priority rate limiter lane of the caller
+     * @param call     Recurly call name (e.g. createTransaction)
+     * @param callable issues the Recurly call
+     * @return the result of the call
+     * @throws RecurlyUnavailableException if the call was rejected
+     */
+    public <T> T call(final Priority priority, final String call, final Callable<T> callable) {
+        final Permit permit = acquire(priority, call);
+        try {
+            final T result = callable.call();
+            permit.release(null);
+            return result;
+        } catch (final Exception e) {
+            permit.release(e);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Issue a non-blocking call: the bulkhead is held until the returned future completes.
+     * Only the call itself is non-blocking: admission may block the calling thread (see above).
+     *
+     * @param priority rate limiter lane of the caller
+     * @param call     Recurly call name (e.g. getTransaction)
+     * @param callable issues the Recurly call
+     * @return the result of the call, failed with a RecurlyUnavailableException if the call was rejected
+     */
+    public <T> ListenableFuture<T> callAsync(final Priority priority, final String call, final Callable<ListenableFuture<T>> callable) {
+        final Permit permit;
+        final ListenableFuture<T> future;
+        try {
+            permit = acquire(priority, call);
+        } catch (final RecurlyUnavailableException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        try {
+            future = callable.call();
+        } catch (final Exception e) {
+            permit.release(e);
+            return Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(final T result) {
+                permit.release(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                permit.release(t);
+            }
+        });
+        return future;
+    }
+
+    public RecurlyRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public RecurlyMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Circuit breaker of the lane
+    public RecurlyCircuitBreaker getCircuitBreaker(final Priority priority) {
+        return circuitBreakers.get(priority);
+    }
+
+    // Room left in the bulkhead of the lane
+    public int getNbAvailableCalls(final Priority priority) {
+        return bulkheads.get(priority).availablePermits();
+    }
+
+    private Permit acquire(final Priority priority, final String call) {
+        final Semaphore bulkhead = bulkheads.get(priority);
+        final RecurlyCircuitBreaker circuitBreaker = circuitBreakers.get(priority);
+        if (!tryAcquire(bulkhead)) {
+            metrics.recurlyCallRejected(call, "bulkhead");
+            throw new RecurlyUnavailableException("Too many Recurly calls in flight in the " + priority + " lane, " + call + " rejected");
+        }
+        if (!circuitBreaker.tryAcquirePermission()) {
+            bulkhead.release();
+            metrics.recurlyCallRejected(call, "circuitBreaker");
+            throw new RecurlyUnavailableException("Recurly circuit breaker of the " + priority + " lane is " + circuitBreaker.getState() + ", " + call + " rejected");
+        }
+        try {
+            rateLimiter.acquire(priority);
+        } catch (final RuntimeException e) {
+            circuitBreaker.releasePermission();
+            bulkhead.release();
+            throw e;
+        }
+        metrics.recurlyCall(call);
+        // Time spent waiting for the rate limiter isn't Recurly's fault
+        return new Permit(bulkhead, circuitBreaker, ticker.read());
+    }
+
+    private boolean tryAcquire(final Semaphore bulkhead) {
+        try {
+            return bulkhead.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a Recurly bulkhead", e);
+        }
+    }
+
+    private final class Permit {
+
+        private final Semaphore bulkhead;
+        private final RecurlyCircuitBreaker circuitBreaker;
+        private final long startNanos;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(final Semaphore bulkhead, final RecurlyCircuitBreaker circuitBreaker, final long startNanos) {
+            this.bulkhead = bulkhead;
+            this.circuitBreaker = circuitBreaker;
+            this.startNanos = startNanos;
+        }
+
+        // Record the outcome of the call (null on success) and make room in the bulkhead
+        void release(final Throwable throwable) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            final long durationNanos = ticker.read() - startNanos;
+            try {
+                if (throwable == null) {
+                    circuitBreaker.onSuccess(durationNanos);
+                } else if (throwable instanceof CancellationException) {
+                    // Abandoned by the caller (e.g. pages fetched ahead of a closed iterator): says nothing about Recurly
+                    circuitBreaker.releasePermission();
+                } else {
+                    circuitBreaker.onError(durationNanos, throwable);
+                }
+            } finally {
+                bulkhead.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.TransactionErrorException;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Stop calling Recurly while it is failing or too slow, instead of tying up Kill Bill threads in calls bound to time out.
+ * <p/>
+ * The outcome of the last calls is kept in a sliding window: the circuit opens when the rate of failed calls or the rate
+ * of slow calls in the window reaches its threshold, and calls are then rejected right away. Once the open period is over,
+ * a few probe calls are let through (half-open): the circuit closes again if they all succeed, and re-opens otherwise.
+ * <p/>
+ * Declined transactions and other client errors (4xx) don't count as failures: Recurly is healthy when it returns them.
+ */
+public class RecurlyCircuitBreaker {
+
+    public enum State {
+        // Calls are let through
+        CLOSED,
+        // Calls are rejected
+        OPEN,
+        // A few probe calls are let through
+        HALF_OPEN
+    }
+
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_SLOW_CALL_DURATION_MS = 10000;
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+    public static final int DEFAULT_MIN_NB_CALLS = 20;
+    public static final long DEFAULT_OPEN_DURATION_SECONDS = 30;
+    public static final int DEFAULT_NB_HALF_OPEN_CALLS = 5;
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyCircuitBreaker.class);
+
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final int minNbCalls;
+    private final long openNanos;
+    private final int nbHalfOpenCalls;
+    private final Ticker ticker;
+
+    // Outcome of the last calls (ring buffer)
+    private final boolean[] failures;
+    private final boolean[] slowCalls;
+    private int nbCalls;
+    private int nextCall;
+    private int nbFailures;
+    private int nbSlowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private int nbHalfOpenPermits;
+    private int nbHalfOpenSuccesses;
+
+    public RecurlyCircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE_THRESHOLD,
+             DEFAULT_SLOW_CALL_RATE_THRESHOLD,
+             DEFAULT_SLOW_CALL_DURATION_MS,
+             DEFAULT_WINDOW_SIZE,
+             DEFAULT_MIN_NB_CALLS,
+             DEFAULT_OPEN_DURATION_SECONDS,
+             DEFAULT_NB_HALF_OPEN_CALLS);
+    }
+
+    /**
+     * @param failureRateThreshold  rate of failed calls in the window opening the circuit
+     * @param slowCallRateThreshold rate of slow calls in the window opening the circuit
+     * @param slowCallDurationMs    calls taking longer than this are slow
+     * @param windowSize            number of calls in the window
+     * @param minNbCalls            minimum number of calls in the window before the rates are considered
+     * @param openDurationSeconds   time during which calls are rejected, before probing Recurly again
+     * @param nbHalfOpenCalls       number of successful probe calls required to close the circuit again
+     */
+    public RecurlyCircuitBreaker(final double failureRateThreshold, final double slowCallRateThreshold, final long slowCallDurationMs,
+                                 final int windowSize, final int minNbCalls, final long openDurationSeconds, final int nbHalfOpenCalls) {
+        this(failureRateThreshold, slowCallRateThreshold, slowCallDurationMs, windowSize, minNbCalls, openDurationSeconds, nbHalfOpenCalls, Ticker.systemTicker());
+    }
+
+    RecurlyCircuitBreaker(final double failureRateThreshold, final double slowCallRateThreshold, final long slowCallDurationMs,
+                          final int windowSize, final int minNbCalls, final long openDurationSeconds, final int nbHalfOpenCalls, final Ticker ticker) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMs);
+        this.minNbCalls = Math.max(1, Math.min(minNbCalls, windowSize));
+        this.openNanos = TimeUnit.SECONDS.toNanos(openDurationSeconds);
+        this.nbHalfOpenCalls = Math.max(1, nbHalfOpenCalls);
+        this.ticker = ticker;
+        this.failures = new boolean[Math.max(1, windowSize)];
+        this.slowCalls = new boolean[failures.length];
+    }
+
+    /**
+     * Must be invoked before each call. When granted, the outcome of the call must be reported via onSuccess or onError
+     * (or the permission given back via releasePermission if the call isn't issued after all).
+     *
+     * @return false if the call must be rejected
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN && ticker.read() - openedAtNanos >= openNanos) {
+            transitionTo(State.HALF_OPEN);
+        }
+
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (nbHalfOpenPermits > 0) {
+                    nbHalfOpenPermits--;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    // The call was granted but never issued
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN) {
+            nbHalfOpenPermits++;
+        }
+    }
+
+    public synchronized void onSuccess(final long durationNanos) {
+        onCallCompleted(false, durationNanos > slowCallNanos);
+    }
+
+    public synchronized void onError(final long durationNanos, final Throwable throwable) {
+        onCallCompleted(isFailure(throwable), durationNanos > slowCallNanos);
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && ticker.read() - openedAtNanos >= openNanos) {
+            transitionTo(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    public synchronized double getFailureRate() {
+        return nbCalls == 0 ? 0 : (double) nbFailures / nbCalls;
+    }
+
+    public synchronized double getSlowCallRate() {
+        return nbCalls == 0 ? 0 : (double) nbSlowCalls / nbCalls;
+    }
+
+    private void onCallCompleted(final boolean failure, final boolean slow) {
+        switch (state) {
+            case CLOSED:
+                record(failure, slow);
+                if (nbCalls >= minNbCalls && (getFailureRate() >= failureRateThreshold || getSlowCallRate() >= slowCallRateThreshold)) {
+                    transitionTo(State.OPEN);
+                }
+                break;
+            case HALF_OPEN:
+                // Any failed or slow probe means Recurly hasn't recovered yet
+                if (failure || slow) {
+                    transitionTo(State.OPEN);
+                } else if (++nbHalfOpenSuccesses >= nbHalfOpenCalls) {
+                    transitionTo(State.CLOSED);
+                }
+                break;
+            default:
+                // Issued before the circuit opened: irrelevant now
+                break;
+        }
+    }
+
+    private void record(final boolean failure, final boolean slow) {
+        if (nbCalls == failures.length) {
+            // Evict the oldest outcome
+            nbFailures -= failures[nextCall] ? 1 : 0;
+            nbSlowCalls -= slowCalls[nextCall] ? 1 : 0;
+        } else {
+            nbCalls++;
+        }
+        failures[nextCall] = failure;
+        slowCalls[nextCall] = slow;
+        nbFailures += failure ? 1 : 0;
+        nbSlowCalls += slow ? 1 : 0;
+        nextCall = (nextCall + 1) % failures.length;
+    }
+
+    private void transitionTo(final State newState) {
+        if (newState == State.OPEN) {
+            if (state == State.HALF_OPEN) {
+                log.warn("Recurly circuit breaker re-opened after a failed probe call");
+            } else {
+                log.warn("Recurly circuit breaker opened (failure rate " + getFailureRate() + ", slow call rate " + getSlowCallRate() + ")");
+            }
+            openedAtNanos = ticker.read();
+        } else if (newState == State.HALF_OPEN) {
+            nbHalfOpenPermits = nbHalfOpenCalls;
+            nbHalfOpenSuccesses = 0;
+        } else {
+            log.info("Recurly circuit breaker closed");
+        }
+        // Start over with a clean window
+        nbCalls = 0;
+        nextCall = 0;
+        nbFailures = 0;
+        nbSlowCalls = 0;
+        state = newState;
+    }
+
+    private static boolean isFailure(final Throwable throwable) {
+        if (throwable instanceof TransactionErrorException) {
+            // Declined
+            return false;
+        } else if (throwable instanceof RecurlyApiException) {
+            final int statusCode = ((RecurlyApiException) throwable).getStatusCode();
+            // Rate limited calls (429) are handled by the rate limiter
+            return statusCode >= 500;
+        } else {
+            // Timeouts, connection errors, ...
+            return true;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.ning.billing.recurly.TransactionErrorException;
+import com.ning.billing.recurly.model.Errors;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Metrics of the plugin, exported via JMX by the activator:
+ * <ul>
+ * <li>operations.&lt;method&gt;.latency: latency of each plugin API call (timer, with the percentiles of the last minute)</li>
+ * <li>operations.&lt;method&gt;.inFlight: number of plugin API calls being processed</li>
+ * <li>operations.&lt;method&gt;.recurlyCalls: number of Recurly calls issued per plugin API call (histogram)</li>
+ * <li>operations.&lt;method&gt;.errors: number of failed plugin API calls</li>
+ * <li>recurly.calls.&lt;call&gt;: number of Recurly calls, per call</li>
+ * <li>recurly.errors.&lt;type&gt;: number of Recurly errors, per transaction error code or HTTP status</li>
+ * <li>recurly.rejected.&lt;reason&gt;.&lt;call&gt;: number of Recurly calls rejected by the circuit breaker or a bulkhead</li>
+ * <li>circuitBreaker.&lt;lane&gt;.state: state of the circuit breaker of the rate limiter lane (CLOSED, OPEN or HALF_OPEN)</li>
+ * <li>circuitBreaker.&lt;lane&gt;.failureRate, circuitBreaker.&lt;lane&gt;.slowCallRate: rates of failed and slow calls in its window</li>
+ * <li>bulkheads.&lt;lane&gt;.available: number of calls which can still be issued in the rate limiter lane</li>
+ * <li>notifications.&lt;name&gt;: number of push notifications received from Recurly, per notification type</li>
+ * <li>events.&lt;type&gt;: number of Kill Bill events handled, per event type</li>
+ * </ul>
+ */
+public class RecurlyMetrics {
+
+    private static final String OPERATIONS = "operations";
+    private static final String RECURLY = "recurly";
+    // The default (exponentially decaying) reservoir is a biased sample: rare slow calls hardly ever make it to the
+    // tail percentiles, and a latency spike keeps showing long after it's over. Every latency of the last minute is
+    // kept instead (HdrHistogram isn't available with this Metrics version): memory grows with the call rate, e.g.
+    // roughly 100 bytes per call in the window, i.e. about 600KB per operation at 100 calls per second.
+    private static final long LATENCY_WINDOW_SECONDS = 60;
+
+    private final MetricRegistry registry;
+    // Recurly calls issued by the plugin API call currently processed by this thread, if any. Work done on other
+    // threads on behalf of the call (e.g. searches, pages fetched ahead) must carry it over (see inCurrentOperation)
+    private final ThreadLocal<AtomicInteger> currentRecurlyCalls = new ThreadLocal<AtomicInteger>();
+    // Latency timers, per operation (MetricRegistry#timer would create them with the default reservoir)
+    private final ConcurrentMap<String, Timer> latencyTimers = new ConcurrentHashMap<String, Timer>();
+
+    public RecurlyMetrics(final MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Wrap an API so that each of its methods is instrumented (latency, in-flight calls, Recurly calls and errors).
+     *
+     * @param apiClass interface to instrument
+     * @param delegate implementation
+     * @param <T>      type of the API
+     * @return an instrumented view of the delegate
+     */
+    public <T> T instrument(final Class<T> apiClass, final T delegate) {
+        final Object proxy = Proxy.newProxyInstance(apiClass.getClassLoader(), new Class<?>[]{apiClass}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(delegate, args);
+                }
+                return invokeInstrumented(method, delegate, args);
+            }
+        });
+        return apiClass.cast(proxy);
+    }
+
+    /**
+     * Attribute the Recurly calls of a task run on another thread to the plugin API call being processed
+     * by the calling thread, if any.
+     *
+     * @param task task to be submitted to an executor
+     * @param <T>  type of the result
+     * @return the task, running on behalf of the current plugin API call
+     */
+    public <T> Callable<T> inCurrentOperation(final Callable<T> task) {
+        final AtomicInteger recurlyCalls = currentRecurlyCalls.get();
+        if (recurlyCalls == null) {
+            return task;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final AtomicInteger previousRecurlyCalls = currentRecurlyCalls.get();
+                currentRecurlyCalls.set(recurlyCalls);
+                try {
+                    return task.call();
+                } finally {
+                    restoreRecurlyCalls(previousRecurlyCalls);
+                }
+            }
+        };
+    }
+
+    /**
+     * Attribute the Recurly calls of all the tasks run by the executor to the plugin API call being processed
+     * by the calling thread, if any. Unlike the Callable variant, the call is captured when the executor is wrapped,
+     * for tasks submitted from threads which don't know about it (e.g. HTTP client callbacks).
+     *
+     * @param executor executor to wrap
+     * @return the executor, running its tasks on behalf of the current plugin API call
+     */
+    public Executor inCurrentOperation(final Executor executor) {
+        final AtomicInteger recurlyCalls = currentRecurlyCalls.get();
+        if (recurlyCalls == null) {
+            return executor;
+        }
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final AtomicInteger previousRecurlyCalls = currentRecurlyCalls.get();
+                        currentRecurlyCalls.set(recurlyCalls);
+                        try {
+                            command.run();
+                        } finally {
+                            restoreRecurlyCalls(previousRecurlyCalls);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    // Must be invoked for each call to Recurly
+    public void recurlyCall(final String call) {
+        registry.meter(MetricRegistry.name(RECURLY, "calls", call)).mark();
+
+        final AtomicInteger recurlyCalls = currentRecurlyCalls.get();
+        if (recurlyCalls != null) {
+            recurlyCalls.incrementAndGet();
+        }
+    }
+
+    // A read was collapsed onto an identical call already in flight (see RecurlySingleFlight)
+    public void recurlyCallCoalesced(final String call) {
+        registry.meter(MetricRegistry.name(RECURLY, "coalesced", call)).mark();
+    }
+
+    // A call to Recurly was rejected before being issued (see RecurlyCallGuard)
+    public void recurlyCallRejected(final String call, final String reason) {
+        registry.meter(MetricRegistry.name(RECURLY, "rejected", reason, call)).mark();
+    }
+
+    // A push notification was received from Recurly (see RecurlyWebhookServlet)
+    public void recurlyNotification(final String name) {
+        registry.meter(MetricRegistry.name("notifications", name)).mark();
+    }
+
+    // A Kill Bill event was handled (see RecurlyEventHandler)
+    public void killbillEvent(final String eventType) {
+        registry.meter(MetricRegistry.name("events", eventType)).mark();
+    }
+
+    public void recurlyError(final Throwable throwable) {
+        final String errorType = getErrorType(throwable);
+        if (errorType != null) {
+            registry.counter(MetricRegistry.name(RECURLY, "errors", errorType)).inc();
+        }
+    }
+
+    public void registerBillingInfoCache(final RecurlyBillingInfoCache billingInfoCache) {
+        registry.register(MetricRegistry.name("billingInfoCache", "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return billingInfoCache.size();
+            }
+        });
+        registry.register(MetricRegistry.name("billingInfoCache", "hitRate"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                final CacheStats stats = billingInfoCache.getStats();
+                return stats.hitRate();
+            }
+        });
+    }
+
+    public void registerRateLimiter(final RecurlyRateLimiter rateLimiter) {
+        registry.register(MetricRegistry.name("rateLimiter", "permitsPerSecond"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return rateLimiter.getCurrentPermitsPerSecond();
+            }
+        });
+    }
+
+    public void registerCallGuard(final RecurlyCallGuard callGuard) {
+        for (final Priority priority : Priority.values()) {
+            final String lane = priority.toString().toLowerCase();
+            registry.register(MetricRegistry.name("circuitBreaker", lane, "state"), new Gauge<String>() {
+                @Override
+                public String getValue() {
+                    return callGuard.getCircuitBreaker(priority).getState().toString();
+                }
+            });
+            registry.register(MetricRegistry.name("circuitBreaker", lane, "failureRate"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return callGuard.getCircuitBreaker(priority).getFailureRate();
+                }
+            });
+            registry.register(MetricRegistry.name("circuitBreaker", lane, "slowCallRate"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return callGuard.getCircuitBreaker(priority).getSlowCallRate();
+                }
+            });
+        }
+        for (final Priority priority : Priority.values()) {
+            registry.register(MetricRegistry.name("bulkheads", priority.toString().toLowerCase(), "available"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return callGuard.getNbAvailableCalls(priority);
+                }
+            });
+        }
+    }
+
+    private Object invokeInstrumented(final Method method, final Object delegate, final Object[] args) throws Throwable {
+        final String operation = method.getName();
+        final Timer.Context latency = getLatencyTimer(operation).time();
+        registry.counter(MetricRegistry.name(OPERATIONS, operation, "inFlight")).inc();
+
+        // Attribute the Recurly calls of nested instrumented calls to the outermost one
+        final AtomicInteger outerRecurlyCalls = currentRecurlyCalls.get();
+        final AtomicInteger recurlyCalls = new AtomicInteger(0);
+        if (outerRecurlyCalls == null) {
+            currentRecurlyCalls.set(recurlyCalls);
+        }
+        try {
+            return method.invoke(delegate, args);
+        } catch (final InvocationTargetException e) {
+            registry.counter(MetricRegistry.name(OPERATIONS, operation, "errors")).inc();
+            recurlyError(e.getCause());
+            throw e.getCause();
+        } finally {
+            if (outerRecurlyCalls == null) {
+                currentRecurlyCalls.remove();
+                registry.histogram(MetricRegistry.name(OPERATIONS, operation, "recurlyCalls")).update(recurlyCalls.get());
+            }
+            registry.counter(MetricRegistry.name(OPERATIONS, operation, "inFlight")).dec();
+            latency.stop();
+        }
+    }
+
+    private Timer getLatencyTimer(final String operation) {
+        final Timer timer = latencyTimers.get(operation);
+        if (timer != null) {
+            return timer;
+        }
+
+        final Timer newTimer = new Timer(new SlidingTimeWindowReservoir(LATENCY_WINDOW_SECONDS, TimeUnit.SECONDS));
+        final Timer existingTimer = latencyTimers.putIfAbsent(operation, newTimer);
+        if (existingTimer != null) {
+            return existingTimer;
+        }
+        registry.register(MetricRegistry.name(OPERATIONS, operation, "latency"), newTimer);
+        return newTimer;
+    }
+
+    private void restoreRecurlyCalls(final AtomicInteger previousRecurlyCalls) {
+        if (previousRecurlyCalls == null) {
+            currentRecurlyCalls.remove();
+        } else {
+            currentRecurlyCalls.set(previousRecurlyCalls);
+        }
+    }
+
+    private static String getErrorType(final Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof TransactionErrorException) {
+                final Errors errors = ((TransactionErrorException) cause).getErrors();
+                if (errors != null && errors.getTransactionError() != null && errors.getTransactionError().getErrorCode() != null) {
+                    return errors.getTransactionError().getErrorCode();
+                }
+                return "transaction";
+            } else if (cause instanceof RecurlyApiException) {
+                // Declines reported by the non-blocking client
+                final Errors errors = ((RecurlyApiException) cause).getErrors();
+                if (errors != null && errors.getTransactionError() != null && errors.getTransactionError().getErrorCode() != null) {
+                    return errors.getTransactionError().getErrorCode();
+                }
+                return "http" + ((RecurlyApiException) cause).getStatusCode();
+            }
+            cause = cause.getCause();
+        }
+        // Not a Recurly error
+        return null;
+    }
+}
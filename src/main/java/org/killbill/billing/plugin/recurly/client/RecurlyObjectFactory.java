@@ -17,18 +17,27 @@
 
 package org.killbill.billing.plugin.recurly.client;
 
+import java.math.BigDecimal;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.api.PaymentMethodKVInfo;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.plugin.recurly.api.RecurlyPaymentMethodPlugin;
+import org.killbill.billing.plugin.recurly.dao.RecurlyPaymentRecord;
 
 import com.ning.billing.recurly.model.Account;
 import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Transaction;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
 
 public class RecurlyObjectFactory {
 
@@ -50,6 +59,77 @@ public class RecurlyObjectFactory {
         return account;
     }
 
+    public static Transaction createTransactionFromKillbill(final UUID kbAccountId, final UUID kbPaymentId, final BigDecimal amount, final Currency currency) {
+        final Transaction transaction = new Transaction();
+        transaction.setAmountInCents(toAmountInCents(amount));
+        transaction.setCurrency(currency.toString());
+
+        // Magic description to retrieve the payment info
+        transaction.setDescription(kbPaymentId);
+
+        // Assume the account already exists
+        final Account account = new Account();
+        account.setAccountCode(createAccountCode(kbAccountId));
+        transaction.setAccount(account);
+
+        return transaction;
+    }
+
+    // Recurly only deals with whole cents: amounts with more than 2 decimals are rejected rather than truncated
+    public static int toAmountInCents(final BigDecimal amount) {
+        try {
+            return amount.movePointRight(2).intValueExact();
+        } catch (final ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid amount " + amount + ": Recurly amounts are in cents", e);
+        }
+    }
+
+    public static BigDecimal fromAmountInCents(final Integer amountInCents) {
+        return amountInCents == null ? null : BigDecimal.valueOf(amountInCents, 2);
+    }
+
+    // Transaction as last seen by the plugin (see RecurlyDao#addPayment)
+    public static Transaction createTransactionFromPaymentRecord(final RecurlyPaymentRecord paymentRecord) {
+        final Transaction transaction = new Transaction();
+        transaction.setUuid(paymentRecord.getRecurlyTransactionUuid());
+        transaction.setAmountInCents(paymentRecord.getAmountInCents());
+        transaction.setCurrency(paymentRecord.getCurrency());
+        transaction.setStatus(paymentRecord.getTransactionStatus());
+        transaction.setReference(paymentRecord.getTransactionReference());
+        transaction.setCreatedAt(paymentRecord.getTransactionCreatedDate());
+        transaction.setDescription(paymentRecord.getKbPaymentId());
+
+        if (paymentRecord.getRecurlyInvoiceHref() != null) {
+            final Invoice invoice = new Invoice();
+            invoice.setHref(paymentRecord.getRecurlyInvoiceHref());
+            transaction.setInvoice(invoice);
+        }
+
+        return transaction;
+    }
+
+    // List responses only link to the account (e.g. https://api.recurly.com/v2/accounts/1234)
+    public static String accountCodeFromTransaction(final Transaction transaction) {
+        final Account account = transaction.getAccount();
+        if (account == null) {
+            return null;
+        } else if (account.getAccountCode() != null) {
+            return account.getAccountCode();
+        } else if (account.getHref() == null) {
+            return null;
+        } else {
+            return account.getHref().substring(account.getHref().lastIndexOf('/') + 1);
+        }
+    }
+
+    // Last update of the transaction (e.g. refund, void), its creation date if unknown
+    public static DateTime updatedAtFromTransaction(final Transaction transaction) {
+        if (transaction instanceof RecurlyTransaction && ((RecurlyTransaction) transaction).getUpdatedAt() != null) {
+            return ((RecurlyTransaction) transaction).getUpdatedAt();
+        }
+        return transaction.getCreatedAt();
+    }
+
     public static String createAccountCode(final UUID kbAccountId) {
         return kbAccountId.toString();
     }
@@ -81,18 +161,21 @@ public class RecurlyObjectFactory {
         billingInfo.setYear(paymentMethodPlugin.getCCExpirationYear());
         billingInfo.setZip(paymentMethodPlugin.getZip());
 
+        // Looked up by key, rather than scanning the properties for each of them
+        final Function<String, Object> properties = getPaymentMethodKVValues(paymentMethodPlugin);
+
         // See below
-        //billingInfo.setCompany(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.COMPANY));
-
-        billingInfo.setFirstName(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.FIRST_NAME));
-        billingInfo.setFirstSix(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.FIRST_SIX));
-        billingInfo.setIpAddress(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.IP_ADDRESS));
-        billingInfo.setIpAddressCountry(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.IP_ADDRESS_COUNTRY));
-        billingInfo.setLastName(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.LAST_NAME));
-        billingInfo.setNumber(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.NUMBER));
-        billingInfo.setPhone(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.PHONE));
-        billingInfo.setVatNumber(getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.VAT_NUMBER));
-        final Object verificationValue = getPaymentMethodKVValue(paymentMethodPlugin, RecurlyPaymentMethodPlugin.VERIFICATION_VALUE);
+        //billingInfo.setCompany(properties.apply(RecurlyPaymentMethodPlugin.COMPANY));
+
+        billingInfo.setFirstName(properties.apply(RecurlyPaymentMethodPlugin.FIRST_NAME));
+        billingInfo.setFirstSix(properties.apply(RecurlyPaymentMethodPlugin.FIRST_SIX));
+        billingInfo.setIpAddress(properties.apply(RecurlyPaymentMethodPlugin.IP_ADDRESS));
+        billingInfo.setIpAddressCountry(properties.apply(RecurlyPaymentMethodPlugin.IP_ADDRESS_COUNTRY));
+        billingInfo.setLastName(properties.apply(RecurlyPaymentMethodPlugin.LAST_NAME));
+        billingInfo.setNumber(properties.apply(RecurlyPaymentMethodPlugin.NUMBER));
+        billingInfo.setPhone(properties.apply(RecurlyPaymentMethodPlugin.PHONE));
+        billingInfo.setVatNumber(properties.apply(RecurlyPaymentMethodPlugin.VAT_NUMBER));
+        final Object verificationValue = properties.apply(RecurlyPaymentMethodPlugin.VERIFICATION_VALUE);
         if (verificationValue != null) {
             billingInfo.setVerificationValue(Integer.valueOf(verificationValue.toString()));
         }
@@ -103,16 +186,25 @@ public class RecurlyObjectFactory {
         return billingInfo;
     }
 
-    private static Object getPaymentMethodKVValue(final PaymentMethodPlugin paymentMethodPlugin, final String key) {
-        final PaymentMethodKVInfo paymentMethodKVInfo = Iterables.<PaymentMethodKVInfo>find(paymentMethodPlugin.getProperties(),
-                                                                                            new Predicate<PaymentMethodKVInfo>() {
-                                                                                                @Override
-                                                                                                public boolean apply(final PaymentMethodKVInfo input) {
-                                                                                                    return key.equals(input.getKey());
-                                                                                                }
-                                                                                            },
-                                                                                            null
-                                                                                           );
-        return paymentMethodKVInfo == null ? null : paymentMethodKVInfo.getValue();
+    private static Function<String, Object> getPaymentMethodKVValues(final PaymentMethodPlugin paymentMethodPlugin) {
+        if (paymentMethodPlugin instanceof RecurlyPaymentMethodPlugin) {
+            // Fixed schema: read the values straight from the billing information
+            return new Function<String, Object>() {
+                @Override
+                public Object apply(final String key) {
+                    return ((RecurlyPaymentMethodPlugin) paymentMethodPlugin).getPropertyValue(key);
+                }
+            };
+        }
+
+        final List<PaymentMethodKVInfo> paymentMethodKVInfos = paymentMethodPlugin.getProperties();
+        final Map<String, Object> values = new HashMap<String, Object>(paymentMethodKVInfos.size() * 2);
+        for (final PaymentMethodKVInfo paymentMethodKVInfo : paymentMethodKVInfos) {
+            // The first property with a given key wins
+            if (!values.containsKey(paymentMethodKVInfo.getKey())) {
+                values.put(paymentMethodKVInfo.getKey(), paymentMethodKVInfo.getValue());
+            }
+        }
+        return Functions.forMap(values, null);
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Walk the pages of a Recurly list endpoint (e.g. accounts, invoices or transactions).
+ * <p/>
+ * Up to nbPagesToPrefetch pages are requested ahead of the consumer: each page is requested as soon as the previous
+ * one has been received, so the consumer doesn't wait a round trip per page. Requests are issued on the executor
+ * (they may wait for the rate limiter). Callers stopping before the last page must close the iterator, to abort the
+ * requests of the pages fetched ahead and release their bulkhead and circuit breaker permits. Not thread safe.
+ */
+public class RecurlyPageIterator<T extends RecurlyObjects> extends AbstractIterator<T> implements Closeable {
+
+    private final Object lock = new Object();
+    // Requested but not consumed yet, in order
+    private final Deque<ListenableFuture<RecurlyPage<T>>> pages = new ArrayDeque<ListenableFuture<RecurlyPage<T>>>();
+
+    private final RecurlyAsyncClient asyncClient;
+    private final Priority priority;
+    // Type of the objects of the pages (e.g. Accounts)
+    private final Class<T> clazz;
+    private final int nbPagesToPrefetch;
+    private final Executor executor;
+
+    // Last page requested
+    private ListenableFuture<RecurlyPage<T>> lastPage;
+    private boolean closed = false;
+
+    public RecurlyPageIterator(final RecurlyAsyncClient asyncClient, final Priority priority, final Class<T> clazz, final ListenableFuture<RecurlyPage<T>> firstPage,
+                               final int nbPagesToPrefetch, final Executor executor) {
+        this.asyncClient = asyncClient;
+        this.priority = priority;
+        this.clazz = clazz;
+        this.nbPagesToPrefetch = Math.max(1, nbPagesToPrefetch);
+        this.executor = executor;
+
+        pages.add(firstPage);
+        lastPage = firstPage;
+        requestNextPageWhenReceived(firstPage);
+    }
+
+    @Override
+    protected T computeNext() {
+        final ListenableFuture<RecurlyPage<T>> nextPage;
+        synchronized (lock) {
+            nextPage = pages.poll();
+        }
+        if (nextPage == null) {
+            return endOfData();
+        }
+
+        final RecurlyPage<T> page = RecurlyFutures.get(nextPage);
+        // There is room for one more page in the buffer
+        requestNextPage();
+        return page == null ? endOfData() : page.getObjects();
+    }
+
+    // Cancel the pages requested ahead, and the Recurly calls still in flight for them
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            while (!pages.isEmpty()) {
+                pages.poll().cancel(true);
+            }
+        }
+    }
+
+    int getNbPagesRequested() {
+        synchronized (lock) {
+            return pages.size();
+        }
+    }
+
+    private void requestNextPage() {
+        final RecurlyPage<T> previousPage;
+        final SettableFuture<RecurlyPage<T>> nextPage;
+        synchronized (lock) {
+            if (closed || pages.size() >= nbPagesToPrefetch || !lastPage.isDone()) {
+                // Requested once the consumer catches up, or once the last page requested is received
+                return;
+            }
+
+            previousPage = getIfSuccessful(lastPage);
+            if (previousPage == null || !previousPage.hasNext()) {
+                return;
+            }
+
+            // Reserve its spot, so that the consumer waits for it
+            nextPage = SettableFuture.<RecurlyPage<T>>create();
+            pages.add(nextPage);
+            lastPage = nextPage;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (nextPage.isCancelled()) {
+                    // Closed in the meantime
+                    return;
+                }
+
+                final ListenableFuture<RecurlyPage<T>> request = asyncClient.getNextPage(priority, previousPage, clazz);
+                cancelWhenCancelled(nextPage, request);
+                Futures.addCallback(request, new FutureCallback<RecurlyPage<T>>() {
+                    @Override
+                    public void onSuccess(final RecurlyPage<T> result) {
+                        nextPage.set(result);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable t) {
+                        nextPage.setException(t);
+                    }
+                });
+                requestNextPageWhenReceived(nextPage);
+            }
+        });
+    }
+
+    // Cancel the underlying request too, so that its HTTP request is aborted and its permits given back
+    private void cancelWhenCancelled(final ListenableFuture<RecurlyPage<T>> page, final ListenableFuture<RecurlyPage<T>> request) {
+        page.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (page.isCancelled()) {
+                    request.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void requestNextPageWhenReceived(final ListenableFuture<RecurlyPage<T>> page) {
+        page.addListener(new Runnable() {
+            @Override
+            public void run() {
+                requestNextPage();
+            }
+        }, executor);
+    }
+
+    // Failures are left to the consumer, when it reaches that page
+    private RecurlyPage<T> getIfSuccessful(final ListenableFuture<RecurlyPage<T>> page) {
+        try {
+            return Uninterruptibles.getUninterruptibly(page);
+        } catch (final ExecutionException e) {
+            return null;
+        } catch (final CancellationException e) {
+            return null;
+        }
+    }
+}
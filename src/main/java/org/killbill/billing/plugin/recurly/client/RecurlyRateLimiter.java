@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Token bucket shared by all Recurly calls, to stay under the Recurly API rate limit.
+ * <p/>
+ * Callers waiting in a higher priority lane are always served first (e.g. payments before searches).
+ * The rate is lowered when Recurly reports that the remaining quota is running low, and calls are paused
+ * until the quota is reset when Recurly starts rejecting them.
+ */
+public class RecurlyRateLimiter {
+
+    public enum Priority {
+        // Payments and refunds
+        HIGH,
+        // Other calls on behalf of Kill Bill
+        NORMAL,
+        // Searches and background synchronization
+        LOW
+    }
+
+    // Slow down when less than 20% of the quota is left
+    private static final double SLOW_DOWN_THRESHOLD = 0.2;
+    private static final long DEFAULT_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double permitsPerSecond;
+    private final double maxPermits;
+    private final Ticker ticker;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitsChanged = lock.newCondition();
+    private final int[] waiters = new int[Priority.values().length];
+
+    private double permits;
+    private double currentPermitsPerSecond;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+
+    public RecurlyRateLimiter(final double permitsPerSecond, final double maxPermits) {
+        this(permitsPerSecond, maxPermits, Ticker.systemTicker());
+    }
+
+    RecurlyRateLimiter(final double permitsPerSecond, final double maxPermits, final Ticker ticker) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = maxPermits;
+        this.ticker = ticker;
+        this.permits = maxPermits;
+        this.currentPermitsPerSecond = permitsPerSecond;
+        this.lastRefillNanos = ticker.read();
+        this.pausedUntilNanos = lastRefillNanos;
+    }
+
+    public void acquire(final Priority priority) {
+        lock.lock();
+        try {
+            waiters[priority.ordinal()]++;
+            try {
+                while (!tryAcquire(priority)) {
+                    permitsChanged.awaitNanos(nanosUntilNextPermit());
+                }
+            } finally {
+                waiters[priority.ordinal()]--;
+                // Lower priority waiters may now proceed
+                permitsChanged.signalAll();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Recurly rate limiter", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjust the rate from the X-RateLimit-* headers returned by Recurly.
+     *
+     * @param limit             number of calls allowed per window
+     * @param remaining         number of calls left in the current window
+     * @param secondsUntilReset time left before the window is reset
+     */
+    public void update(final int limit, final int remaining, final long secondsUntilReset) {
+        lock.lock();
+        try {
+            refill();
+            if (remaining <= 0) {
+                pause(secondsUntilReset);
+            } else if (remaining < limit * SLOW_DOWN_THRESHOLD) {
+                // Spread what's left over the rest of the window
+                currentPermitsPerSecond = Math.min(permitsPerSecond, (double) remaining / Math.max(1, secondsUntilReset));
+            } else {
+                currentPermitsPerSecond = permitsPerSecond;
+            }
+            permitsChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Recurly rejected a call (HTTP 429): hold everything until the window is reset
+    public void onRateLimited(final Long secondsUntilReset) {
+        lock.lock();
+        try {
+            pause(secondsUntilReset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getCurrentPermitsPerSecond() {
+        lock.lock();
+        try {
+            return currentPermitsPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getNbWaiters(final Priority priority) {
+        lock.lock();
+        try {
+            return waiters[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean tryAcquire(final Priority priority) {
+        lock.lock();
+        try {
+            refill();
+            if (permits < 1 || ticker.read() < pausedUntilNanos) {
+                return false;
+            }
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (waiters[i] > 0) {
+                    return false;
+                }
+            }
+            permits -= 1;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pause(final Long secondsUntilReset) {
+        final long pauseNanos = secondsUntilReset == null || secondsUntilReset <= 0 ? DEFAULT_PAUSE_NANOS : TimeUnit.SECONDS.toNanos(secondsUntilReset);
+        pausedUntilNanos = Math.max(pausedUntilNanos, ticker.read() + pauseNanos);
+        permits = 0;
+    }
+
+    private void refill() {
+        final long now = ticker.read();
+        permits = Math.min(maxPermits, permits + (now - lastRefillNanos) * currentPermitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    private long nanosUntilNextPermit() {
+        final long now = ticker.read();
+        if (now < pausedUntilNanos) {
+            return pausedUntilNanos - now;
+        }
+        // When a permit is available but reserved for a higher priority lane, we'll be signaled once it has been taken
+        final double missingPermits = permits >= 1 ? 1 : 1 - permits;
+        return Math.max(1, (long) (missingPermits * TimeUnit.SECONDS.toNanos(1) / currentPermitsPerSecond));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Collapse concurrent identical reads onto a single Recurly call: callers asking for a resource while a call
+ * for it is already in flight share its result, instead of issuing their own.
+ * <p/>
+ * Nothing is cached: only the callers arriving while the call is in flight are collapsed. A caller may however join a call
+ * issued before its own request, and get a result which doesn't reflect the writes it has just completed: reads after
+ * a write must not go through here (see RecurlyAsyncClient#getFreshTransaction). Calls are only shared within a rate
+ * limiter lane, so that a payment never waits behind a background call. A non-blocking call is cancelled once all of
+ * its callers have cancelled their future.
+ */
+public class RecurlySingleFlight {
+
+    private final ConcurrentMap<String, Object> callsInFlight = new ConcurrentHashMap<String, Object>();
+    private final RecurlyMetrics metrics;
+
+    public RecurlySingleFlight(final RecurlyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Blocking variant: the first caller issues the call on its own thread, the others wait for its result.
+     *
+     * @param priority rate limiter lane of the caller
+     * @param call     Recurly call name (e.g. getTransaction)
+     * @param key      resource identifier (e.g. transaction uuid)
+     * @param loader   issues the Recurly call
+     * @return the result of the call
+     */
+    public <T> T execute(final Priority priority, final String call, final String key, final Callable<T> loader) {
+        final String flightKey = getFlightKey(priority, call, key);
+        final SettableFuture<T> flight = SettableFuture.<T>create();
+        final ListenableFuture<T> flightInFlight = (ListenableFuture<T>) callsInFlight.putIfAbsent(flightKey, flight);
+        if (flightInFlight != null) {
+            metrics.recurlyCallCoalesced(call);
+            return RecurlyFutures.get(flightInFlight);
+        }
+
+        try {
+            final T result = loader.call();
+            flight.set(result);
+            return result;
+        } catch (final Exception e) {
+            flight.setException(e);
+            throw Throwables.propagate(e);
+        } finally {
+            callsInFlight.remove(flightKey, flight);
+        }
+    }
+
+    /**
+     * Non-blocking variant. Cancelling the returned future doesn't affect the other callers: the call itself
+     * is only cancelled when the last one gives up on it.
+     *
+     * @param priority rate limiter lane of the caller
+     * @param call     Recurly call name (e.g. getAccountInvoices)
+     * @param key      resource identifier (e.g. url)
+     * @param loader   issues the Recurly call
+     * @return the result of the call
+     */
+    public <T> ListenableFuture<T> executeAsync(final Priority priority, final String call, final String key, final Callable<ListenableFuture<T>> loader) {
+        final String flightKey = getFlightKey(priority, call, key);
+        while (true) {
+            final AsyncFlight<T> flight = new AsyncFlight<T>();
+            final AsyncFlight<T> flightInFlight = (AsyncFlight<T>) callsInFlight.putIfAbsent(flightKey, flight);
+            if (flightInFlight == null) {
+                return flight.start(flightKey, loader);
+            }
+
+            final ListenableFuture<T> joined = flightInFlight.join();
+            if (joined != null) {
+                metrics.recurlyCallCoalesced(call);
+                return joined;
+            }
+            // Being cancelled, issue a new call
+            callsInFlight.remove(flightKey, flightInFlight);
+        }
+    }
+
+    int getNbCallsInFlight() {
+        return callsInFlight.size();
+    }
+
+    private static String getFlightKey(final Priority priority, final String call, final String key) {
+        return priority + "/" + call + "/" + key;
+    }
+
+    private static <T> void forward(final ListenableFuture<T> future, final SettableFuture<T> forwarded) {
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(final T result) {
+                forwarded.set(result);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                forwarded.setException(t);
+            }
+        });
+    }
+
+    private final class AsyncFlight<T> {
+
+        private final SettableFuture<T> result = SettableFuture.<T>create();
+        // Callers still waiting for the result, -1 once the call has been cancelled
+        private final AtomicInteger nbCallers = new AtomicInteger(1);
+        private volatile ListenableFuture<T> call;
+
+        private ListenableFuture<T> start(final String flightKey, final Callable<ListenableFuture<T>> loader) {
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    callsInFlight.remove(flightKey, AsyncFlight.this);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            try {
+                call = loader.call();
+            } catch (final Exception e) {
+                call = Futures.<T>immediateFailedFuture(e);
+            }
+            forward(call, result);
+            return newCaller();
+        }
+
+        // Null if the call is being cancelled
+        private ListenableFuture<T> join() {
+            int nbCallersSoFar;
+            do {
+                nbCallersSoFar = nbCallers.get();
+                if (nbCallersSoFar < 0) {
+                    return null;
+                }
+            } while (!nbCallers.compareAndSet(nbCallersSoFar, nbCallersSoFar + 1));
+            return newCaller();
+        }
+
+        private ListenableFuture<T> newCaller() {
+            final SettableFuture<T> forwarded = SettableFuture.<T>create();
+            forward(result, forwarded);
+            forwarded.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (forwarded.isCancelled() && nbCallers.decrementAndGet() == 0 && nbCallers.compareAndSet(0, -1)) {
+                        // Nobody is interested in the result anymore
+                        call.cancel(true);
+                        result.cancel(false);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return forwarded;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.Adjustment;
+import com.ning.billing.recurly.model.Adjustments;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+
+/**
+ * Streaming (StAX) parser for the Recurly list responses. Pages are scanned element by element and only the fields
+ * used by the plugin are kept, instead of mapping the full object graphs (e.g. every invoice line item):
+ * <ul>
+ * <li>accounts: account code</li>
+ * <li>invoices: uuid, number, creation date, line item descriptions and the invoice transactions</li>
+ * <li>transactions: the fields kept in the local transaction store, with the links to the account and the invoice</li>
+ * </ul>
+ * Everything else is skipped. DTDs and external entities are not supported.
+ */
+public class RecurlyXmlParser {
+
+    private final XMLInputFactory xmlInputFactory;
+
+    public RecurlyXmlParser() {
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public XMLStreamReader createReader(final InputStream input) throws XMLStreamException {
+        return xmlInputFactory.createXMLStreamReader(input);
+    }
+
+    public <T extends RecurlyObjects> T parsePage(final InputStream input, final Class<T> clazz) throws XMLStreamException {
+        if (Accounts.class.equals(clazz)) {
+            return clazz.cast(parseAccounts(input));
+        } else if (Invoices.class.equals(clazz)) {
+            return clazz.cast(parseInvoices(input));
+        } else if (Transactions.class.equals(clazz)) {
+            return clazz.cast(parseTransactions(input));
+        } else {
+            throw new IllegalArgumentException("No projection for Recurly list " + clazz.getSimpleName());
+        }
+    }
+
+    public Accounts parseAccounts(final InputStream input) throws XMLStreamException {
+        final Accounts accounts = new Accounts();
+        final XMLStreamReader reader = createReader(input);
+        try {
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("account".equals(reader.getLocalName())) {
+                    accounts.add(parseAccount(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return accounts;
+    }
+
+    public Invoices parseInvoices(final InputStream input) throws XMLStreamException {
+        final Invoices invoices = new Invoices();
+        final XMLStreamReader reader = createReader(input);
+        try {
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("invoice".equals(reader.getLocalName())) {
+                    invoices.add(parseInvoice(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return invoices;
+    }
+
+    public Transactions parseTransactions(final InputStream input) throws XMLStreamException {
+        final Transactions transactions = new Transactions();
+        final XMLStreamReader reader = createReader(input);
+        try {
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("transaction".equals(reader.getLocalName())) {
+                    transactions.add(parseTransaction(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return transactions;
+    }
+
+    /**
+     * Parse the transaction the reader is positioned on, up to its end element.
+     * Both the API (uuid, created_at) and the push notifications (id, date) element names are supported.
+     */
+    public static Transaction parseTransaction(final XMLStreamReader reader) throws XMLStreamException {
+        final RecurlyTransaction transaction = new RecurlyTransaction();
+        transaction.setHref(getHref(reader));
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            final String element = reader.getLocalName();
+            if ("uuid".equals(element) || "id".equals(element)) {
+                transaction.setUuid(getElementText(reader));
+            } else if ("account".equals(element)) {
+                transaction.setAccount(parseAccount(reader));
+            } else if ("invoice".equals(element)) {
+                transaction.setInvoice(parseLink(reader, new Invoice()));
+            } else if ("action".equals(element)) {
+                transaction.setAction(getElementText(reader));
+            } else if ("amount_in_cents".equals(element)) {
+                transaction.setAmountInCents(toInteger(getElementText(reader)));
+            } else if ("currency".equals(element)) {
+                transaction.setCurrency(getElementText(reader));
+            } else if ("status".equals(element)) {
+                transaction.setStatus(getElementText(reader));
+            } else if ("description".equals(element)) {
+                transaction.setDescription(getElementText(reader));
+            } else if ("reference".equals(element)) {
+                transaction.setReference(getElementText(reader));
+            } else if ("created_at".equals(element) || "date".equals(element)) {
+                transaction.setCreatedAt(toDateTime(getElementText(reader)));
+            } else if ("updated_at".equals(element)) {
+                transaction.setUpdatedAt(toDateTime(getElementText(reader)));
+            } else if ("refundable".equals(element)) {
+                transaction.setRefundable(toBoolean(getElementText(reader)));
+            } else if ("voidable".equals(element)) {
+                transaction.setVoidable(toBoolean(getElementText(reader)));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return transaction;
+    }
+
+    // Full account, or link to the account (e.g. <account href="https://api.recurly.com/v2/accounts/1234"/>)
+    public static Account parseAccount(final XMLStreamReader reader) throws XMLStreamException {
+        final Account account = new Account();
+        account.setHref(getHref(reader));
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("account_code".equals(reader.getLocalName())) {
+                account.setAccountCode(getElementText(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return account;
+    }
+
+    // Empty (e.g. nil="nil") elements are null
+    public static String getElementText(final XMLStreamReader reader) throws XMLStreamException {
+        final String text = reader.getElementText().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    // Skip the current element, and all of its children
+    public static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    public static Integer toInteger(final String value) {
+        try {
+            return value == null ? null : Integer.valueOf(value);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static Boolean toBoolean(final String value) {
+        return value == null ? null : Boolean.valueOf(value);
+    }
+
+    public static DateTime toDateTime(final String value) {
+        return value == null ? null : new DateTime(value, DateTimeZone.UTC);
+    }
+
+    private static Invoice parseInvoice(final XMLStreamReader reader) throws XMLStreamException {
+        final Invoice invoice = new Invoice();
+        invoice.setHref(getHref(reader));
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            final String element = reader.getLocalName();
+            if ("uuid".equals(element)) {
+                invoice.setUuid(getElementText(reader));
+            } else if ("invoice_number".equals(element)) {
+                invoice.setInvoiceNumber(toInteger(getElementText(reader)));
+            } else if ("created_at".equals(element)) {
+                invoice.setCreatedAt(toDateTime(getElementText(reader)));
+            } else if ("line_items".equals(element)) {
+                invoice.setLineItems(parseLineItems(reader));
+            } else if ("transactions".equals(element)) {
+                invoice.setTransactions(parseInvoiceTransactions(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return invoice;
+    }
+
+    // Only the description (which holds the Kill Bill payment id) is needed to find the invoice of a payment
+    private static Adjustments parseLineItems(final XMLStreamReader reader) throws XMLStreamException {
+        final Adjustments lineItems = new Adjustments();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!"adjustment".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+
+            final Adjustment adjustment = new Adjustment();
+            adjustment.setHref(getHref(reader));
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("description".equals(reader.getLocalName())) {
+                    adjustment.setDescription(getElementText(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+            lineItems.add(adjustment);
+        }
+        return lineItems;
+    }
+
+    private static Transactions parseInvoiceTransactions(final XMLStreamReader reader) throws XMLStreamException {
+        final Transactions transactions = new Transactions();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("transaction".equals(reader.getLocalName())) {
+                transactions.add(parseTransaction(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return transactions;
+    }
+
+    private static <T extends RecurlyObject> T parseLink(final XMLStreamReader reader, final T object) throws XMLStreamException {
+        object.setHref(getHref(reader));
+        skipElement(reader);
+        return object;
+    }
+
+    private static String getHref(final XMLStreamReader reader) {
+        return reader.getAttributeValue(null, "href");
+    }
+}
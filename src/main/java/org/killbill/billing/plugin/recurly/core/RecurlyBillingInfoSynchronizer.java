@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.sql.SQLException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyPageIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.BillingInfo;
+
+/**
+ * Reconcile the local copy of the billing information with Recurly (e.g. billing information
+ * updated from the Recurly UI or via Recurly.js). Entries of accounts which don't exist anymore are removed.
+ */
+public class RecurlyBillingInfoSynchronizer implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyBillingInfoSynchronizer.class);
+
+    // Set once a full pass has completed: the local copy can be searched from then on
+    public static final String CHECKPOINT = "billing_infos";
+
+    // Entries written right before the pass started are kept: updated_date is stored to the second (and may be rounded),
+    // and the clocks of the Kill Bill nodes may drift
+    private static final int SAFETY_MARGIN_SECONDS = 60;
+
+    private final RecurlyAsyncClient asyncClient;
+    private final RecurlyBillingInfoCache billingInfoCache;
+    private final RecurlyMetrics metrics;
+    private final RecurlyDao dao;
+
+    public RecurlyBillingInfoSynchronizer(final RecurlyAsyncClient asyncClient, final RecurlyBillingInfoCache billingInfoCache,
+                                          final RecurlyMetrics metrics, final RecurlyDao dao) {
+        this.asyncClient = asyncClient;
+        this.billingInfoCache = billingInfoCache;
+        this.metrics = metrics;
+        this.dao = dao;
+    }
+
+    @Override
+    public void run() {
+        try {
+            synchronize();
+        } catch (final Exception e) {
+            // Don't let the exception cancel future runs
+            metrics.recurlyError(e);
+            log.warn("Unable to synchronize Recurly billing information", e);
+        }
+    }
+
+    public void synchronize() throws SQLException {
+        final DateTime startDate = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0).minusSeconds(SAFETY_MARGIN_SECONDS);
+
+        int nbSynchronized = 0;
+        final RecurlyPageIterator<Accounts> accountsPages = asyncClient.iterateAccounts(Priority.LOW);
+        try {
+            while (accountsPages.hasNext()) {
+                for (final Account account : accountsPages.next()) {
+                    final BillingInfo billingInfo = billingInfoCache.refreshBillingInfo(account.getAccountCode(), Priority.LOW);
+                    if (billingInfo != null) {
+                        dao.addBillingInfo(account.getAccountCode(), billingInfo);
+                        nbSynchronized++;
+                    }
+                }
+            }
+        } finally {
+            accountsPages.close();
+        }
+
+        // Anything not seen during this pass (account closed, billing info cleared) is stale, removed at the latest by the next pass
+        final int nbDeleted = dao.deleteBillingInfosNotUpdatedSince(startDate);
+        dao.setSyncCheckpoint(CHECKPOINT, startDate);
+        log.info("Synchronized " + nbSynchronized + " Recurly billing information, removed " + nbDeleted + " stale entries");
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyFutures;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+import org.killbill.billing.plugin.recurly.client.RecurlyPage;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.killbill.killbill.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+
+/**
+ * Warm the local state of the accounts about to be charged, so that the first calls of a billing run
+ * (getPaymentMethodDetail, processPayment) don't pay the Recurly latency:
+ * <ul>
+ * <li>INVOICE_CREATION: the billing information is refreshed (cache and local copy), and the latest transactions
+ * of the account (first page, i.e. up to pageSize, newest first) are copied into the local transaction store</li>
+ * <li>ACCOUNT_CHANGE (e.g. new default payment method): the cached billing information is invalidated, then refreshed</li>
+ * </ul>
+ * Kill Bill bus threads are never blocked: the work is done on the executor, at most once at a time per account,
+ * and dropped when the executor is saturated (lookups then simply go to Recurly). An account changed while being
+ * warmed is warmed again once done, as the billing information may have been fetched before the change.
+ */
+public class RecurlyEventHandler implements OSGIKillbillEventHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyEventHandler.class);
+
+    private final RecurlyBillingInfoCache billingInfoCache;
+    private final RecurlyAsyncClient asyncClient;
+    // Null when no data source is available (only the cache is warmed)
+    private final RecurlyDao dao;
+    private final RecurlyMetrics metrics;
+    private final ExecutorService executor;
+    // Accounts being warmed, and whether they need to be warmed again once done (guarded by itself)
+    private final Map<String, Boolean> pendingAccountCodes = new HashMap<String, Boolean>();
+
+    public RecurlyEventHandler(final RecurlyBillingInfoCache billingInfoCache, final RecurlyAsyncClient asyncClient, final RecurlyDao dao,
+                               final RecurlyMetrics metrics, final ExecutorService executor) {
+        this.billingInfoCache = billingInfoCache;
+        this.asyncClient = asyncClient;
+        this.dao = dao;
+        this.metrics = metrics;
+        this.executor = executor;
+    }
+
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent event) {
+        if (event.getEventType() == null || event.getAccountId() == null) {
+            return;
+        }
+
+        switch (event.getEventType()) {
+            case INVOICE_CREATION:
+                metrics.killbillEvent(event.getEventType().toString());
+                warm(event.getAccountId(), true, false);
+                break;
+            case ACCOUNT_CHANGE:
+                metrics.killbillEvent(event.getEventType().toString());
+                billingInfoCache.invalidate(RecurlyObjectFactory.createAccountCode(event.getAccountId()));
+                warm(event.getAccountId(), false, true);
+                break;
+            default:
+                // Not relevant
+                break;
+        }
+    }
+
+    private void warm(final UUID kbAccountId, final boolean withTransactions, final boolean changed) {
+        final String accountCode = RecurlyObjectFactory.createAccountCode(kbAccountId);
+        synchronized (pendingAccountCodes) {
+            if (pendingAccountCodes.containsKey(accountCode)) {
+                // Already on its way, but possibly with the billing information prior to the change
+                if (changed) {
+                    pendingAccountCodes.put(accountCode, true);
+                }
+                return;
+            }
+            pendingAccountCodes.put(accountCode, false);
+        }
+
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean again = false;
+                    do {
+                        try {
+                            // The transactions don't need to be warmed again
+                            warmAccount(accountCode, withTransactions && !again);
+                        } catch (final Exception e) {
+                            metrics.recurlyError(e);
+                            log.warn("Unable to warm the local state of account " + accountCode, e);
+                        }
+
+                        synchronized (pendingAccountCodes) {
+                            again = pendingAccountCodes.get(accountCode);
+                            if (again) {
+                                pendingAccountCodes.put(accountCode, false);
+                            } else {
+                                pendingAccountCodes.remove(accountCode);
+                            }
+                        }
+                    } while (again);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            synchronized (pendingAccountCodes) {
+                pendingAccountCodes.remove(accountCode);
+            }
+            log.debug("Too many accounts to warm, skipping account " + accountCode);
+        }
+    }
+
+    private void warmAccount(final String accountCode, final boolean withTransactions) throws SQLException {
+        final BillingInfo billingInfo = billingInfoCache.refreshBillingInfo(accountCode, Priority.LOW);
+        if (dao == null) {
+            return;
+        }
+
+        if (billingInfo == null) {
+            dao.deleteBillingInfo(accountCode);
+        } else {
+            dao.addBillingInfo(accountCode, billingInfo);
+        }
+
+        if (withTransactions) {
+            // The pageSize most recent transactions only (first page, newest first): older ones are picked up by the synchronization
+            final RecurlyPage<Transactions> transactions = RecurlyFutures.get(asyncClient.getAccountTransactions(Priority.LOW, accountCode));
+            for (final Transaction transaction : transactions.getObjects()) {
+                if (transaction.getUuid() != null && transaction.getCreatedAt() != null) {
+                    dao.addTransaction(accountCode, transaction);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import com.ning.billing.recurly.model.Transaction;
+
+// Push notification (webhook) sent by Recurly, e.g. successful_payment_notification
+public class RecurlyNotification {
+
+    public static final String SUCCESSFUL_PAYMENT = "successful_payment_notification";
+    public static final String FAILED_PAYMENT = "failed_payment_notification";
+    public static final String VOID_PAYMENT = "void_payment_notification";
+    public static final String SUCCESSFUL_REFUND = "successful_refund_notification";
+    public static final String BILLING_INFO_UPDATED = "billing_info_updated_notification";
+
+    private final String name;
+    private final String accountCode;
+    private final Transaction transaction;
+
+    public RecurlyNotification(final String name, final String accountCode, final Transaction transaction) {
+        this.name = name;
+        this.accountCode = accountCode;
+        this.transaction = transaction;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAccountCode() {
+        return accountCode;
+    }
+
+    // Null if the notification isn't about a transaction
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public boolean isTransactionUpdate() {
+        return (SUCCESSFUL_PAYMENT.equals(name) || FAILED_PAYMENT.equals(name) || VOID_PAYMENT.equals(name) || SUCCESSFUL_REFUND.equals(name)) &&
+               transaction != null && transaction.getUuid() != null;
+    }
+
+    public boolean isBillingInfoUpdate() {
+        return BILLING_INFO_UPDATED.equals(name) && accountCode != null;
+    }
+
+    @Override
+    public String toString() {
+        return "RecurlyNotification{name='" + name + "', accountCode='" + accountCode + "', transaction=" + (transaction == null ? null : transaction.getUuid()) + "}";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyXmlParser;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Transaction;
+
+/**
+ * Streaming (StAX) parser for the Recurly push notifications: only the account code and the transaction fields
+ * kept locally are extracted, everything else is skipped.
+ * <p/>
+ * Notifications come from the outside world: DTDs and external entities are not supported (see RecurlyXmlParser).
+ */
+public class RecurlyNotificationParser {
+
+    private final RecurlyXmlParser xmlParser;
+
+    public RecurlyNotificationParser() {
+        this(new RecurlyXmlParser());
+    }
+
+    public RecurlyNotificationParser(final RecurlyXmlParser xmlParser) {
+        this.xmlParser = xmlParser;
+    }
+
+    public RecurlyNotification parse(final InputStream input) throws XMLStreamException {
+        final XMLStreamReader reader = xmlParser.createReader(input);
+        try {
+            // The root element is the notification type
+            reader.nextTag();
+            final String name = reader.getLocalName();
+
+            Account account = null;
+            Transaction transaction = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("account".equals(reader.getLocalName())) {
+                    account = RecurlyXmlParser.parseAccount(reader);
+                } else if ("transaction".equals(reader.getLocalName())) {
+                    transaction = RecurlyXmlParser.parseTransaction(reader);
+                } else {
+                    RecurlyXmlParser.skipElement(reader);
+                }
+            }
+
+            final String accountCode = account == null ? null : account.getAccountCode();
+            if (transaction != null && accountCode != null) {
+                transaction.setAccount(account);
+            }
+            return new RecurlyNotification(name, accountCode, transaction);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Transaction;
+
+/**
+ * Apply the notifications pushed by Recurly (see RecurlyWebhookServlet) to the local copies of the transactions and of the
+ * billing information, so that lookups are answered locally without polling Recurly.
+ * <p/>
+ * Notifications are queued by the servlet and applied in batches: all transaction updates of a batch are written in a single
+ * database transaction, and the billing information (which notifications don't carry) is retrieved once per account.
+ * Notifications which cannot be applied are picked up by the next synchronization.
+ * <p/>
+ * Each site has its own processor (see RecurlySite). Notifications about accounts the site doesn't know of (no billing
+ * information nor transaction in its local copy) are dropped: they are left to the synchronization, which only sees
+ * the accounts of the site.
+ */
+public class RecurlyNotificationProcessor implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyNotificationProcessor.class);
+
+    private final RecurlyDao dao;
+    private final RecurlyBillingInfoCache billingInfoCache;
+    private final RecurlyMetrics metrics;
+    private final BlockingQueue<RecurlyNotification> queue;
+    private final int maxBatchSize;
+
+    public RecurlyNotificationProcessor(final RecurlyDao dao, final RecurlyBillingInfoCache billingInfoCache, final RecurlyMetrics metrics,
+                                        final int queueSize, final int maxBatchSize) {
+        this.dao = dao;
+        this.billingInfoCache = billingInfoCache;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<RecurlyNotification>(queueSize);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    // Returns false if the queue is full (Recurly should retry later)
+    public boolean submit(final RecurlyNotification notification) {
+        return queue.offer(notification);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        final List<RecurlyNotification> batch = new ArrayList<RecurlyNotification>(maxBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+
+            try {
+                process(batch);
+            } catch (final Exception e) {
+                // Don't stop processing notifications
+                metrics.recurlyError(e);
+                log.warn("Unable to apply " + batch.size() + " Recurly notifications", e);
+            }
+            batch.clear();
+        }
+    }
+
+    public void process(final List<RecurlyNotification> notifications) throws SQLException {
+        final Set<String> notifiedAccountCodes = new LinkedHashSet<String>();
+        for (final RecurlyNotification notification : notifications) {
+            if (notification.getAccountCode() != null) {
+                notifiedAccountCodes.add(notification.getAccountCode());
+            }
+        }
+        final Set<String> knownAccountCodes = dao.getKnownAccountCodes(notifiedAccountCodes);
+
+        // Latest state of each transaction (notifications are queued in the order they were received)
+        final Map<String, Transaction> transactions = new LinkedHashMap<String, Transaction>();
+        final Set<String> accountCodes = new LinkedHashSet<String>();
+        for (final RecurlyNotification notification : notifications) {
+            if (!knownAccountCodes.contains(notification.getAccountCode())) {
+                log.info("Dropping " + notification + ": account unknown to site " + dao.getSite());
+            } else if (notification.isTransactionUpdate()) {
+                transactions.put(notification.getTransaction().getUuid(), notification.getTransaction());
+            } else if (notification.isBillingInfoUpdate()) {
+                accountCodes.add(notification.getAccountCode());
+            }
+        }
+
+        if (!transactions.isEmpty()) {
+            dao.updateTransactions(new ArrayList<Transaction>(transactions.values()));
+        }
+
+        for (final String accountCode : accountCodes) {
+            try {
+                final BillingInfo billingInfo = billingInfoCache.refreshBillingInfo(accountCode, Priority.LOW);
+                if (billingInfo == null) {
+                    dao.deleteBillingInfo(accountCode);
+                } else {
+                    dao.addBillingInfo(accountCode, billingInfo);
+                }
+            } catch (final RuntimeException e) {
+                // The billing information synchronization will eventually pick it up
+                metrics.recurlyError(e);
+                log.warn("Unable to refresh the billing information of account " + accountCode, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.recurly.api.RecurlyPaymentPluginApi;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.killbill.billing.plugin.recurly.dao.RecurlyPaymentRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolve payments left pending in the ledger (e.g. the call to Recurly timed out, or the node died while waiting
+ * for the response): the outcome is looked up in Recurly, and payments which never reached Recurly are removed.
+ */
+public class RecurlyPaymentReconciler implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyPaymentReconciler.class);
+
+    private static final int BATCH_SIZE = 100;
+
+    private final RecurlyPaymentPluginApi pluginApi;
+    private final RecurlyDao dao;
+    private final long pendingTimeoutSeconds;
+
+    public RecurlyPaymentReconciler(final RecurlyPaymentPluginApi pluginApi, final RecurlyDao dao, final long pendingTimeoutSeconds) {
+        this.pluginApi = pluginApi;
+        this.dao = dao;
+        this.pendingTimeoutSeconds = pendingTimeoutSeconds;
+    }
+
+    @Override
+    public void run() {
+        try {
+            reconcile();
+        } catch (final Exception e) {
+            // Don't let the exception cancel future runs
+            log.warn("Unable to reconcile pending Recurly payments", e);
+        }
+    }
+
+    public int reconcile() throws SQLException {
+        // Ignore payments which may still be in flight
+        final DateTime updatedBefore = new DateTime(DateTimeZone.UTC).minusSeconds((int) pendingTimeoutSeconds);
+        final List<RecurlyPaymentRecord> pendingPayments = dao.getPayments(RecurlyPaymentRecord.Status.PENDING, updatedBefore, BATCH_SIZE);
+
+        int nbReconciled = 0;
+        for (final RecurlyPaymentRecord pendingPayment : pendingPayments) {
+            try {
+                pluginApi.reconcilePendingPayment(pendingPayment, Priority.LOW);
+                nbReconciled++;
+            } catch (final RuntimeException e) {
+                // Try the others, this one will be retried next time
+                log.warn("Unable to reconcile pending payment " + pendingPayment.getKbPaymentId(), e);
+            }
+        }
+
+        if (!pendingPayments.isEmpty()) {
+            log.info("Reconciled " + nbReconciled + " out of " + pendingPayments.size() + " pending Recurly payments");
+        }
+        return nbReconciled;
+    }
+}
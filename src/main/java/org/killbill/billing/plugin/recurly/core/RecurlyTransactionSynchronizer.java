@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.sql.SQLException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+import org.killbill.billing.plugin.recurly.client.RecurlyPageIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+
+/**
+ * Incrementally copy the Recurly transactions of the site into the local store, so that payment and refund
+ * lookups don't need to walk the account history in Recurly.
+ * <p/>
+ * Transactions are retrieved least recently updated first, starting from the high-water mark of the previous run,
+ * which is checkpointed after each page: changes to old transactions (e.g. refunds, voids) are picked up as well.
+ */
+public class RecurlyTransactionSynchronizer implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RecurlyTransactionSynchronizer.class);
+
+    // High-water mark of the synchronization, set once the first run has completed (the local copy can be searched from then on)
+    public static final String CHECKPOINT = "transactions";
+
+    private final RecurlyAsyncClient asyncClient;
+    private final RecurlyDao dao;
+    private final RecurlyMetrics metrics;
+    private final long overlapSeconds;
+
+    public RecurlyTransactionSynchronizer(final RecurlyAsyncClient asyncClient, final RecurlyDao dao, final RecurlyMetrics metrics,
+                                          final long overlapSeconds) {
+        this.asyncClient = asyncClient;
+        this.dao = dao;
+        this.metrics = metrics;
+        this.overlapSeconds = overlapSeconds;
+    }
+
+    @Override
+    public void run() {
+        try {
+            synchronize();
+        } catch (final Exception e) {
+            // Don't let the exception cancel future runs
+            metrics.recurlyError(e);
+            log.warn("Unable to synchronize Recurly transactions", e);
+        }
+    }
+
+    public int synchronize() throws SQLException {
+        final DateTime startDate = new DateTime(DateTimeZone.UTC);
+        final DateTime highWaterMark = dao.getSyncCheckpoint(CHECKPOINT);
+        // Go back a little, for the transactions updated within the same second and the clock skew
+        final DateTime beginTime = highWaterMark == null ? null : highWaterMark.minusSeconds((int) overlapSeconds);
+
+        int nbSynchronized = 0;
+        DateTime newHighWaterMark = highWaterMark;
+        // The following pages are retrieved while we're storing this one
+        final RecurlyPageIterator<Transactions> transactionsPages = asyncClient.iterateTransactions(Priority.LOW, beginTime);
+        try {
+            while (transactionsPages.hasNext()) {
+                for (final Transaction transaction : transactionsPages.next()) {
+                    final String accountCode = RecurlyObjectFactory.accountCodeFromTransaction(transaction);
+                    if (transaction.getUuid() == null || accountCode == null || transaction.getCreatedAt() == null) {
+                        log.warn("Skipping incomplete Recurly transaction " + transaction);
+                        continue;
+                    }
+
+                    dao.addTransaction(accountCode, transaction);
+                    nbSynchronized++;
+                    final DateTime updatedAt = RecurlyObjectFactory.updatedAtFromTransaction(transaction);
+                    if (newHighWaterMark == null || updatedAt.isAfter(newHighWaterMark)) {
+                        newHighWaterMark = updatedAt;
+                    }
+                }
+
+                // An interrupted run resumes from the last page processed
+                if (newHighWaterMark != null && !newHighWaterMark.equals(highWaterMark)) {
+                    dao.setSyncCheckpoint(CHECKPOINT, newHighWaterMark);
+                }
+            }
+        } finally {
+            transactionsPages.close();
+        }
+
+        if (newHighWaterMark == null) {
+            // No transaction on the site yet: the next run starts from this one
+            newHighWaterMark = startDate;
+            dao.setSyncCheckpoint(CHECKPOINT, newHighWaterMark);
+        }
+
+        log.info("Synchronized " + nbSynchronized + " Recurly transactions, high-water mark " + newHighWaterMark);
+        return nbSynchronized;
+    }
+}
@@ -0,0 +1,1078 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.dao;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Transaction;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Local copy of the Recurly payments, transactions and billing information. Each instance only sees the rows of its
+ * Recurly site (see RecurlyConfig#getSiteId), so that tenants with their own site never see each other's data.
+ */
+public class RecurlyDao {
+
+    private static final DateTimeFormatter DATE_FORMATTER = ISODateTimeFormat.date();
+    private static final String PAYMENT_COLUMNS = "kb_account_id, kb_payment_id, status, amount_in_cents, currency, recurly_transaction_uuid," +
+                                                  " recurly_invoice_href, transaction_status, transaction_reference, transaction_created_date," +
+                                                  " created_date, updated_date";
+    private static final String TRANSACTION_COLUMNS = "account_code, invoice_href, action, amount_in_cents, currency, status, reference, refundable, created_date";
+    private static final String BILLING_INFO_COLUMNS = "account_code, kb_payment_method_id, first_name, last_name, address1, address2," +
+                                                       " city, state, zip, country, card_type, last_four, month, year";
+
+    private final DataSource dataSource;
+    private final String site;
+
+    public RecurlyDao(final DataSource dataSource, final String site) {
+        this.dataSource = dataSource;
+        this.site = site;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    // Record the intent to submit a payment: returns false if the payment is already known
+    public boolean addPendingPayment(final UUID kbAccountId, final UUID kbPaymentId, final Integer amountInCents, final String currency) throws SQLException {
+        return execute(new WithConnectionCallback<Boolean>() {
+            @Override
+            public Boolean withConnection(final Connection connection) throws SQLException {
+                final Timestamp now = toTimestamp(new DateTime(DateTimeZone.UTC));
+                final PreparedStatement insert = connection.prepareStatement("insert into recurly_payments" +
+                                                                             " (kb_account_id, kb_payment_id, status, amount_in_cents, currency, created_date, updated_date, site)" +
+                                                                             " values (?, ?, ?, ?, ?, ?, ?, ?)");
+                try {
+                    insert.setString(1, kbAccountId.toString());
+                    insert.setString(2, kbPaymentId.toString());
+                    insert.setString(3, RecurlyPaymentRecord.Status.PENDING.toString());
+                    setInteger(insert, 4, amountInCents);
+                    insert.setString(5, currency);
+                    insert.setTimestamp(6, now);
+                    insert.setTimestamp(7, now);
+                    insert.setString(8, site);
+                    insert.executeUpdate();
+                    return true;
+                } catch (final SQLException e) {
+                    if (isIntegrityConstraintViolation(e)) {
+                        return false;
+                    }
+                    throw e;
+                } finally {
+                    insert.close();
+                }
+            }
+        });
+    }
+
+    public void addPayment(final UUID kbAccountId, final UUID kbPaymentId, final RecurlyPaymentRecord.Status status, final Transaction transaction) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final Timestamp now = toTimestamp(new DateTime(DateTimeZone.UTC));
+
+                // Update first: the payment is usually pending already, or may be backfilled concurrently by several lookups
+                final PreparedStatement update = connection.prepareStatement("update recurly_payments" +
+                                                                             " set status = ?, amount_in_cents = ?, currency = ?, recurly_transaction_uuid = ?," +
+                                                                             " recurly_invoice_href = ?, transaction_status = ?, transaction_reference = ?," +
+                                                                             " transaction_created_date = ?, updated_date = ?" +
+                                                                             " where kb_payment_id = ? and site = ?");
+                final boolean updated;
+                try {
+                    final int parameterIndex = setTransactionFields(update, 1, status, transaction);
+                    update.setTimestamp(parameterIndex, now);
+                    update.setString(parameterIndex + 1, kbPaymentId.toString());
+                    update.setString(parameterIndex + 2, site);
+                    updated = update.executeUpdate() > 0;
+                } finally {
+                    update.close();
+                }
+
+                if (!updated) {
+                    final PreparedStatement insert = connection.prepareStatement("insert into recurly_payments" +
+                                                                                 " (status, amount_in_cents, currency, recurly_transaction_uuid, recurly_invoice_href," +
+                                                                                 " transaction_status, transaction_reference, transaction_created_date, updated_date," +
+                                                                                 " kb_account_id, kb_payment_id, created_date, site)" +
+                                                                                 " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    try {
+                        final int parameterIndex = setTransactionFields(insert, 1, status, transaction);
+                        insert.setTimestamp(parameterIndex, now);
+                        insert.setString(parameterIndex + 1, kbAccountId.toString());
+                        insert.setString(parameterIndex + 2, kbPaymentId.toString());
+                        insert.setTimestamp(parameterIndex + 3, now);
+                        insert.setString(parameterIndex + 4, site);
+                        insert.executeUpdate();
+                    } finally {
+                        insert.close();
+                    }
+                }
+
+                // The transaction may have been synchronized before the payment was recorded
+                final PreparedStatement link = connection.prepareStatement("update recurly_transactions" +
+                                                                           " set kb_payment_id = ?" +
+                                                                           " where recurly_transaction_uuid = ? and site = ? and kb_payment_id is null");
+                try {
+                    link.setString(1, kbPaymentId.toString());
+                    link.setString(2, transaction.getUuid());
+                    link.setString(3, site);
+                    link.executeUpdate();
+                } finally {
+                    link.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public void deletePayment(final UUID kbPaymentId) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("delete from recurly_payments where kb_payment_id = ? and site = ?");
+                try {
+                    statement.setString(1, kbPaymentId.toString());
+                    statement.setString(2, site);
+                    statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    // Remove a pending payment, unless it has been updated in the meantime (e.g. claimed by another node): returns false in that case
+    public boolean deletePendingPayment(final UUID kbPaymentId, final DateTime updatedDate) throws SQLException {
+        return execute(new WithConnectionCallback<Boolean>() {
+            @Override
+            public Boolean withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("delete from recurly_payments" +
+                                                                                " where kb_payment_id = ? and site = ? and status = ? and updated_date = ?");
+                try {
+                    statement.setString(1, kbPaymentId.toString());
+                    statement.setString(2, site);
+                    statement.setString(3, RecurlyPaymentRecord.Status.PENDING.toString());
+                    statement.setTimestamp(4, toTimestamp(updatedDate));
+                    return statement.executeUpdate() > 0;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    // Claim a failed payment for a new attempt, unless it has been updated in the meantime (e.g. retried by another node): returns false in that case
+    public boolean retryFailedPayment(final UUID kbPaymentId, final DateTime updatedDate, final Integer amountInCents, final String currency) throws SQLException {
+        return execute(new WithConnectionCallback<Boolean>() {
+            @Override
+            public Boolean withConnection(final Connection connection) throws SQLException {
+                // The previous attempt is forgotten: its transaction is still in the local copy of the Recurly transactions
+                final PreparedStatement statement = connection.prepareStatement("update recurly_payments" +
+                                                                                " set status = ?, amount_in_cents = ?, currency = ?, recurly_transaction_uuid = null," +
+                                                                                " recurly_invoice_href = null, transaction_status = null, transaction_reference = null," +
+                                                                                " transaction_created_date = null, updated_date = ?" +
+                                                                                " where kb_payment_id = ? and site = ? and status = ? and updated_date = ?");
+                try {
+                    statement.setString(1, RecurlyPaymentRecord.Status.PENDING.toString());
+                    setInteger(statement, 2, amountInCents);
+                    statement.setString(3, currency);
+                    statement.setTimestamp(4, toTimestamp(new DateTime(DateTimeZone.UTC)));
+                    statement.setString(5, kbPaymentId.toString());
+                    statement.setString(6, site);
+                    statement.setString(7, RecurlyPaymentRecord.Status.ERROR.toString());
+                    statement.setTimestamp(8, toTimestamp(updatedDate));
+                    return statement.executeUpdate() > 0;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public RecurlyPaymentRecord getPayment(final UUID kbPaymentId) throws SQLException {
+        return execute(new WithConnectionCallback<RecurlyPaymentRecord>() {
+            @Override
+            public RecurlyPaymentRecord withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select " + PAYMENT_COLUMNS +
+                                                                                " from recurly_payments" +
+                                                                                " where kb_payment_id = ? and site = ?");
+                try {
+                    statement.setString(1, kbPaymentId.toString());
+                    statement.setString(2, site);
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        return resultSet.next() ? toPaymentRecord(resultSet) : null;
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    // Oldest first
+    public List<RecurlyPaymentRecord> getPayments(final RecurlyPaymentRecord.Status status, final DateTime updatedBefore, final int limit) throws SQLException {
+        return execute(new WithConnectionCallback<List<RecurlyPaymentRecord>>() {
+            @Override
+            public List<RecurlyPaymentRecord> withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select " + PAYMENT_COLUMNS +
+                                                                                " from recurly_payments" +
+                                                                                " where site = ? and status = ? and updated_date < ?" +
+                                                                                " order by updated_date" +
+                                                                                " limit ?");
+                try {
+                    statement.setString(1, site);
+                    statement.setString(2, status.toString());
+                    statement.setTimestamp(3, toTimestamp(updatedBefore));
+                    statement.setInt(4, limit);
+
+                    final List<RecurlyPaymentRecord> payments = new LinkedList<RecurlyPaymentRecord>();
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            payments.add(toPaymentRecord(resultSet));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    return payments;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    // Local copy of a Recurly transaction (see RecurlyTransactionSynchronizer), associated with its Kill Bill payment when known
+    public void addTransaction(final String accountCode, final Transaction transaction) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final Timestamp updatedDate = toTimestamp(new DateTime(DateTimeZone.UTC));
+                final String invoiceHref = transaction.getInvoice() == null ? null : transaction.getInvoice().getHref();
+                // Payments made by the plugin are matched by transaction (purchases) or by invoice (refunds)
+                final String kbPaymentId = getKbPaymentId(connection, transaction.getUuid(), invoiceHref);
+                // Refunds are matched with the purchase on the same invoice
+                final String originalTransactionUuid = "refund".equals(transaction.getAction()) ? getPurchaseUuid(connection, invoiceHref) : null;
+
+                final PreparedStatement update = connection.prepareStatement("update recurly_transactions" +
+                                                                             " set account_code = ?, invoice_href = ?, action = ?, amount_in_cents = ?, currency = ?," +
+                                                                             " status = ?, reference = ?, refundable = ?, created_date = ?, updated_date = ?," +
+                                                                             " kb_payment_id = coalesce(?, kb_payment_id)," +
+                                                                             " original_transaction_uuid = coalesce(?, original_transaction_uuid)" +
+                                                                             " where recurly_transaction_uuid = ? and site = ?");
+                try {
+                    setSyncedTransactionFields(update, 1, accountCode, invoiceHref, transaction);
+                    update.setTimestamp(10, updatedDate);
+                    update.setString(11, kbPaymentId);
+                    update.setString(12, originalTransactionUuid);
+                    update.setString(13, transaction.getUuid());
+                    update.setString(14, site);
+                    if (update.executeUpdate() > 0) {
+                        return null;
+                    }
+                } finally {
+                    update.close();
+                }
+
+                insertTransaction(connection, accountCode, invoiceHref, transaction, updatedDate, kbPaymentId, originalTransactionUuid);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Apply the transaction updates pushed by Recurly (see RecurlyNotificationProcessor), in a single database transaction.
+     * <p/>
+     * Notifications only carry part of the transaction: fields they don't have (e.g. invoice) are left untouched, and are filled
+     * in by the next synchronization for transactions which weren't copied locally yet.
+     *
+     * @param transactions transactions pushed by Recurly, with their account
+     */
+    public void updateTransactions(final List<Transaction> transactions) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final Timestamp updatedDate = toTimestamp(new DateTime(DateTimeZone.UTC));
+                final List<Transaction> newTransactions = new LinkedList<Transaction>();
+
+                final boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    final PreparedStatement update = connection.prepareStatement("update recurly_transactions" +
+                                                                                 " set status = coalesce(?, status), reference = coalesce(?, reference)," +
+                                                                                 " refundable = coalesce(?, refundable), updated_date = ?" +
+                                                                                 " where recurly_transaction_uuid = ? and site = ?");
+                    try {
+                        for (final Transaction transaction : transactions) {
+                            update.setString(1, transaction.getStatus());
+                            update.setString(2, transaction.getReference());
+                            setBoolean(update, 3, transaction.getRefundable());
+                            update.setTimestamp(4, updatedDate);
+                            update.setString(5, transaction.getUuid());
+                            update.setString(6, site);
+                            if (update.executeUpdate() == 0) {
+                                newTransactions.add(transaction);
+                            }
+                        }
+                    } finally {
+                        update.close();
+                    }
+
+                    for (final Transaction transaction : newTransactions) {
+                        final String accountCode = transaction.getAccount() == null ? null : transaction.getAccount().getAccountCode();
+                        if (accountCode == null || transaction.getCreatedAt() == null) {
+                            // Left to the synchronization
+                            continue;
+                        }
+                        insertTransaction(connection, accountCode, null, transaction, updatedDate, getKbPaymentId(connection, transaction.getUuid(), null), null);
+                    }
+
+                    connection.commit();
+                } catch (final SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+                return null;
+            }
+        });
+    }
+
+    // Local copies of the Recurly transactions of a payment (purchase and refunds), oldest first. The kb payment id is set as description
+    public List<Transaction> getTransactions(final UUID kbPaymentId) throws SQLException {
+        return execute(new WithConnectionCallback<List<Transaction>>() {
+            @Override
+            public List<Transaction> withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select kb_payment_id, recurly_transaction_uuid, " + TRANSACTION_COLUMNS +
+                                                                                " from recurly_transactions" +
+                                                                                " where kb_payment_id = ? and site = ?" +
+                                                                                " order by created_date");
+                try {
+                    statement.setString(1, kbPaymentId.toString());
+                    statement.setString(2, site);
+
+                    final List<Transaction> transactions = new LinkedList<Transaction>();
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            transactions.add(toTransaction(resultSet));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    return transactions;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Search the local copies of the Recurly transactions.
+     *
+     * @param searchKey kb payment id, transaction uuid or reference, original transaction uuid (refunds), status, currency, account code,
+     *                  amount (e.g. 12.50) or creation date range (yyyy-MM-dd or yyyy-MM-dd..yyyy-MM-dd, inclusive)
+     * @param refunds   whether to search refunds or payments
+     * @param offset    offset of the first result
+     * @param limit     maximum number of results
+     * @return the matching transactions, in synchronization order. The kb payment id is set as description
+     */
+    public List<Transaction> searchTransactions(final String searchKey, final boolean refunds, final Long offset, final Long limit) throws SQLException {
+        return execute(new WithConnectionCallback<List<Transaction>>() {
+            @Override
+            public List<Transaction> withConnection(final Connection connection) throws SQLException {
+                final TransactionSearch search = new TransactionSearch(site, searchKey, refunds);
+                final PreparedStatement statement = connection.prepareStatement("select kb_payment_id, recurly_transaction_uuid, " + TRANSACTION_COLUMNS +
+                                                                                " from recurly_transactions" +
+                                                                                " where " + search.getClause() +
+                                                                                " order by record_id" +
+                                                                                " limit ? offset ?");
+                try {
+                    final int nextParameterIndex = search.setParameters(statement);
+                    statement.setLong(nextParameterIndex, limit);
+                    statement.setLong(nextParameterIndex + 1, offset);
+
+                    final List<Transaction> transactions = new LinkedList<Transaction>();
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            transactions.add(toTransaction(resultSet));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    return transactions;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public Long getTransactionsCount(final boolean refunds) throws SQLException {
+        return execute(new WithConnectionCallback<Long>() {
+            @Override
+            public Long withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select count(*) from recurly_transactions where site = ? and " + actionClause(refunds));
+                try {
+                    statement.setString(1, site);
+                    return getCount(statement);
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public Long getTransactionsCount(final String searchKey, final boolean refunds) throws SQLException {
+        return execute(new WithConnectionCallback<Long>() {
+            @Override
+            public Long withConnection(final Connection connection) throws SQLException {
+                final TransactionSearch search = new TransactionSearch(site, searchKey, refunds);
+                final PreparedStatement statement = connection.prepareStatement("select count(*)" +
+                                                                                " from recurly_transactions" +
+                                                                                " where " + search.getClause());
+                try {
+                    search.setParameters(statement);
+                    return getCount(statement);
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    // High-water mark of an incremental synchronization, null if it never ran
+    public DateTime getSyncCheckpoint(final String name) throws SQLException {
+        return execute(new WithConnectionCallback<DateTime>() {
+            @Override
+            public DateTime withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select high_water_mark from recurly_sync_checkpoints where site = ? and name = ?");
+                try {
+                    statement.setString(1, site);
+                    statement.setString(2, name);
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        return resultSet.next() ? toDateTime(resultSet.getTimestamp("high_water_mark")) : null;
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public void setSyncCheckpoint(final String name, final DateTime highWaterMark) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final Timestamp updatedDate = toTimestamp(new DateTime(DateTimeZone.UTC));
+
+                final PreparedStatement update = connection.prepareStatement("update recurly_sync_checkpoints" +
+                                                                             " set high_water_mark = ?, updated_date = ?" +
+                                                                             " where site = ? and name = ?");
+                try {
+                    update.setTimestamp(1, toTimestamp(highWaterMark));
+                    update.setTimestamp(2, updatedDate);
+                    update.setString(3, site);
+                    update.setString(4, name);
+                    if (update.executeUpdate() > 0) {
+                        return null;
+                    }
+                } finally {
+                    update.close();
+                }
+
+                final PreparedStatement insert = connection.prepareStatement("insert into recurly_sync_checkpoints" +
+                                                                             " (site, name, high_water_mark, updated_date)" +
+                                                                             " values (?, ?, ?, ?)");
+                try {
+                    insert.setString(1, site);
+                    insert.setString(2, name);
+                    insert.setTimestamp(3, toTimestamp(highWaterMark));
+                    insert.setTimestamp(4, updatedDate);
+                    insert.executeUpdate();
+                } finally {
+                    insert.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public void addBillingInfo(final String accountCode, final BillingInfo billingInfo) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final Timestamp updatedDate = toTimestamp(new DateTime(DateTimeZone.UTC));
+
+                final PreparedStatement update = connection.prepareStatement("update recurly_billing_infos" +
+                                                                             " set kb_payment_method_id = ?, first_name = ?, last_name = ?, address1 = ?, address2 = ?," +
+                                                                             " city = ?, state = ?, zip = ?, country = ?, card_type = ?, last_four = ?, month = ?, year = ?," +
+                                                                             " updated_date = ?" +
+                                                                             " where account_code = ? and site = ?");
+                try {
+                    setBillingInfoFields(update, 1, billingInfo);
+                    update.setTimestamp(14, updatedDate);
+                    update.setString(15, accountCode);
+                    update.setString(16, site);
+                    if (update.executeUpdate() > 0) {
+                        return null;
+                    }
+                } finally {
+                    update.close();
+                }
+
+                final PreparedStatement insert = connection.prepareStatement("insert into recurly_billing_infos" +
+                                                                             " (" + BILLING_INFO_COLUMNS + ", updated_date, site)" +
+                                                                             " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                try {
+                    insert.setString(1, accountCode);
+                    setBillingInfoFields(insert, 2, billingInfo);
+                    insert.setTimestamp(15, updatedDate);
+                    insert.setString(16, site);
+                    insert.executeUpdate();
+                } finally {
+                    insert.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public void deleteBillingInfo(final String accountCode) throws SQLException {
+        execute(new WithConnectionCallback<Void>() {
+            @Override
+            public Void withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("delete from recurly_billing_infos where account_code = ? and site = ?");
+                try {
+                    statement.setString(1, accountCode);
+                    statement.setString(2, site);
+                    statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public int deleteBillingInfosNotUpdatedSince(final DateTime date) throws SQLException {
+        return execute(new WithConnectionCallback<Integer>() {
+            @Override
+            public Integer withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("delete from recurly_billing_infos where site = ? and updated_date < ?");
+                try {
+                    statement.setString(1, site);
+                    statement.setTimestamp(2, toTimestamp(date));
+                    return statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    // Accounts among the given ones which the site knows of, i.e. with billing information or transactions in the local copy
+    public Set<String> getKnownAccountCodes(final Collection<String> accountCodes) throws SQLException {
+        if (accountCodes.isEmpty()) {
+            return ImmutableSet.<String>of();
+        }
+
+        return execute(new WithConnectionCallback<Set<String>>() {
+            @Override
+            public Set<String> withConnection(final Connection connection) throws SQLException {
+                final String placeholders = Joiner.on(", ").join(Collections.nCopies(accountCodes.size(), "?"));
+                final PreparedStatement statement = connection.prepareStatement("select account_code from recurly_billing_infos" +
+                                                                                " where site = ? and account_code in (" + placeholders + ")" +
+                                                                                " union" +
+                                                                                " select account_code from recurly_transactions" +
+                                                                                " where site = ? and account_code in (" + placeholders + ")");
+                try {
+                    int parameterIndex = 1;
+                    for (int i = 0; i < 2; i++) {
+                        statement.setString(parameterIndex++, site);
+                        for (final String accountCode : accountCodes) {
+                            statement.setString(parameterIndex++, accountCode);
+                        }
+                    }
+
+                    final Set<String> knownAccountCodes = new HashSet<String>();
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            knownAccountCodes.add(resultSet.getString(1));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    return knownAccountCodes;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Search the local copy of the Recurly billing information: names and address lines are matched
+     * on prefixes, card type, city, country, last four digits, month and year must match exactly.
+     * Every searched column is indexed (with the site), so that the search never scans the table.
+     */
+    public List<BillingInfo> searchBillingInfos(final String searchKey, final Long offset, final Long limit) throws SQLException {
+        return execute(new WithConnectionCallback<List<BillingInfo>>() {
+            @Override
+            public List<BillingInfo> withConnection(final Connection connection) throws SQLException {
+                final Integer searchKeyAsInteger = toInteger(searchKey);
+                final PreparedStatement statement = connection.prepareStatement("select " + BILLING_INFO_COLUMNS +
+                                                                                " from recurly_billing_infos" +
+                                                                                " where site = ? and " + searchBillingInfosClause(searchKeyAsInteger) +
+                                                                                " order by record_id" +
+                                                                                " limit ? offset ?");
+                try {
+                    statement.setString(1, site);
+                    final int nextParameterIndex = setSearchBillingInfosParameters(statement, 2, searchKey, searchKeyAsInteger);
+                    statement.setLong(nextParameterIndex, limit);
+                    statement.setLong(nextParameterIndex + 1, offset);
+
+                    final List<BillingInfo> billingInfos = new LinkedList<BillingInfo>();
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        while (resultSet.next()) {
+                            billingInfos.add(toBillingInfo(resultSet));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    return billingInfos;
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public Long getBillingInfosCount() throws SQLException {
+        return execute(new WithConnectionCallback<Long>() {
+            @Override
+            public Long withConnection(final Connection connection) throws SQLException {
+                final PreparedStatement statement = connection.prepareStatement("select count(*) from recurly_billing_infos where site = ?");
+                try {
+                    statement.setString(1, site);
+                    return getCount(statement);
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    public Long getBillingInfosCount(final String searchKey) throws SQLException {
+        return execute(new WithConnectionCallback<Long>() {
+            @Override
+            public Long withConnection(final Connection connection) throws SQLException {
+                final Integer searchKeyAsInteger = toInteger(searchKey);
+                final PreparedStatement statement = connection.prepareStatement("select count(*)" +
+                                                                                " from recurly_billing_infos" +
+                                                                                " where site = ? and " + searchBillingInfosClause(searchKeyAsInteger));
+                try {
+                    statement.setString(1, site);
+                    setSearchBillingInfosParameters(statement, 2, searchKey, searchKeyAsInteger);
+                    return getCount(statement);
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    private <T> T execute(final WithConnectionCallback<T> callback) throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            return callback.withConnection(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static String searchBillingInfosClause(final Integer searchKeyAsInteger) {
+        final StringBuilder clause = new StringBuilder("(first_name like ? escape '!' or last_name like ? escape '!'" +
+                                                       " or address1 like ? escape '!' or address2 like ? escape '!'" +
+                                                       " or card_type = ? or city = ? or country = ? or last_four = ?");
+        if (searchKeyAsInteger != null) {
+            clause.append(" or month = ? or year = ?");
+        }
+        return clause.append(")").toString();
+    }
+
+    private static int setSearchBillingInfosParameters(final PreparedStatement statement, final int firstParameterIndex, final String searchKey,
+                                                       final Integer searchKeyAsInteger) throws SQLException {
+        // Prefix only: a leading wildcard cannot use the index
+        final String likeSearchKey = searchKey.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+        int parameterIndex = firstParameterIndex;
+        for (int i = 0; i < 4; i++) {
+            statement.setString(parameterIndex++, likeSearchKey);
+        }
+        for (int i = 0; i < 4; i++) {
+            statement.setString(parameterIndex++, searchKey);
+        }
+        if (searchKeyAsInteger != null) {
+            statement.setInt(parameterIndex++, searchKeyAsInteger);
+            statement.setInt(parameterIndex++, searchKeyAsInteger);
+        }
+        return parameterIndex;
+    }
+
+    private static String actionClause(final boolean refunds) {
+        return refunds ? "action = 'refund'" : "(action is null or action <> 'refund')";
+    }
+
+    private static final class TransactionSearch {
+
+        private static final String DATE_RANGE_SEPARATOR = "..";
+
+        private final String site;
+        private final String searchKey;
+        private final boolean refunds;
+        private final Integer amountInCents;
+        private final DateTime from;
+        private final DateTime to;
+
+        private TransactionSearch(final String site, final String searchKey, final boolean refunds) {
+            this.site = site;
+            this.searchKey = searchKey;
+            this.refunds = refunds;
+            this.amountInCents = toAmountInCents(searchKey);
+
+            final int separatorIdx = searchKey.indexOf(DATE_RANGE_SEPARATOR);
+            final LocalDate firstDay = toLocalDate(separatorIdx < 0 ? searchKey : searchKey.substring(0, separatorIdx));
+            final LocalDate lastDay = separatorIdx < 0 ? firstDay : toLocalDate(searchKey.substring(separatorIdx + DATE_RANGE_SEPARATOR.length()));
+            if (firstDay != null && lastDay != null) {
+                this.from = firstDay.toDateTimeAtStartOfDay(DateTimeZone.UTC);
+                this.to = lastDay.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+            } else {
+                this.from = null;
+                this.to = null;
+            }
+        }
+
+        String getClause() {
+            final StringBuilder clause = new StringBuilder("site = ? and ").append(actionClause(refunds))
+                    .append(" and (kb_payment_id = ? or recurly_transaction_uuid = ? or original_transaction_uuid = ? or reference = ?" +
+                            " or status = ? or currency = ? or account_code = ?");
+            if (amountInCents != null) {
+                clause.append(" or amount_in_cents = ?");
+            }
+            if (from != null) {
+                clause.append(" or (created_date >= ? and created_date < ?)");
+            }
+            return clause.append(")").toString();
+        }
+
+        int setParameters(final PreparedStatement statement) throws SQLException {
+            int parameterIndex = 1;
+            statement.setString(parameterIndex++, site);
+            for (int i = 0; i < 7; i++) {
+                statement.setString(parameterIndex++, searchKey);
+            }
+            if (amountInCents != null) {
+                statement.setInt(parameterIndex++, amountInCents);
+            }
+            if (from != null) {
+                statement.setTimestamp(parameterIndex++, toTimestamp(from));
+                statement.setTimestamp(parameterIndex++, toTimestamp(to));
+            }
+            return parameterIndex;
+        }
+
+        private static Integer toAmountInCents(final String value) {
+            try {
+                return RecurlyObjectFactory.toAmountInCents(new BigDecimal(value));
+            } catch (final IllegalArgumentException e) {
+                // Not an amount (NumberFormatException), or not in cents
+                return null;
+            }
+        }
+
+        private static LocalDate toLocalDate(final String value) {
+            try {
+                return DATE_FORMATTER.parseLocalDate(value.trim());
+            } catch (final IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private static void setBillingInfoFields(final PreparedStatement statement, final int firstParameterIndex, final BillingInfo billingInfo) throws SQLException {
+        int parameterIndex = firstParameterIndex;
+        // Magic! The company field holds the kb payment method id
+        statement.setString(parameterIndex++, billingInfo.getCompany());
+        statement.setString(parameterIndex++, billingInfo.getFirstName());
+        statement.setString(parameterIndex++, billingInfo.getLastName());
+        statement.setString(parameterIndex++, billingInfo.getAddress1());
+        statement.setString(parameterIndex++, billingInfo.getAddress2());
+        statement.setString(parameterIndex++, billingInfo.getCity());
+        statement.setString(parameterIndex++, billingInfo.getState());
+        statement.setString(parameterIndex++, billingInfo.getZip());
+        statement.setString(parameterIndex++, billingInfo.getCountry());
+        statement.setString(parameterIndex++, billingInfo.getCardType());
+        statement.setString(parameterIndex++, billingInfo.getLastFour());
+        setInteger(statement, parameterIndex++, billingInfo.getMonth());
+        setInteger(statement, parameterIndex, billingInfo.getYear());
+    }
+
+    private static int setTransactionFields(final PreparedStatement statement, final int firstParameterIndex,
+                                            final RecurlyPaymentRecord.Status status, final Transaction transaction) throws SQLException {
+        int parameterIndex = firstParameterIndex;
+        statement.setString(parameterIndex++, status.toString());
+        setInteger(statement, parameterIndex++, transaction.getAmountInCents());
+        statement.setString(parameterIndex++, transaction.getCurrency());
+        statement.setString(parameterIndex++, transaction.getUuid());
+        statement.setString(parameterIndex++, transaction.getInvoice() == null ? null : transaction.getInvoice().getHref());
+        statement.setString(parameterIndex++, transaction.getStatus());
+        statement.setString(parameterIndex++, transaction.getReference());
+        statement.setTimestamp(parameterIndex++, toTimestamp(transaction.getCreatedAt()));
+        return parameterIndex;
+    }
+
+    private static void setSyncedTransactionFields(final PreparedStatement statement, final int firstParameterIndex, final String accountCode,
+                                                   final String invoiceHref, final Transaction transaction) throws SQLException {
+        int parameterIndex = firstParameterIndex;
+        statement.setString(parameterIndex++, accountCode);
+        statement.setString(parameterIndex++, invoiceHref);
+        statement.setString(parameterIndex++, transaction.getAction());
+        setInteger(statement, parameterIndex++, transaction.getAmountInCents());
+        statement.setString(parameterIndex++, transaction.getCurrency());
+        statement.setString(parameterIndex++, transaction.getStatus());
+        statement.setString(parameterIndex++, transaction.getReference());
+        setBoolean(statement, parameterIndex++, transaction.getRefundable());
+        statement.setTimestamp(parameterIndex, toTimestamp(transaction.getCreatedAt()));
+    }
+
+    private void insertTransaction(final Connection connection, final String accountCode, final String invoiceHref, final Transaction transaction,
+                                          final Timestamp updatedDate, final String kbPaymentId, final String originalTransactionUuid) throws SQLException {
+        final PreparedStatement insert = connection.prepareStatement("insert into recurly_transactions" +
+                                                                     " (" + TRANSACTION_COLUMNS + ", updated_date, kb_payment_id, original_transaction_uuid, recurly_transaction_uuid, site)" +
+                                                                     " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            setSyncedTransactionFields(insert, 1, accountCode, invoiceHref, transaction);
+            insert.setTimestamp(10, updatedDate);
+            insert.setString(11, kbPaymentId);
+            insert.setString(12, originalTransactionUuid);
+            insert.setString(13, transaction.getUuid());
+            insert.setString(14, site);
+            insert.executeUpdate();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private String getKbPaymentId(final Connection connection, final String transactionUuid, final String invoiceHref) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement("select kb_payment_id from recurly_payments" +
+                                                                        " where site = ? and (recurly_transaction_uuid = ? or recurly_invoice_href = ?)");
+        try {
+            statement.setString(1, site);
+            statement.setString(2, transactionUuid);
+            statement.setString(3, invoiceHref);
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                return resultSet.next() ? resultSet.getString("kb_payment_id") : null;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private String getPurchaseUuid(final Connection connection, final String invoiceHref) throws SQLException {
+        if (invoiceHref == null) {
+            return null;
+        }
+
+        final PreparedStatement statement = connection.prepareStatement("select recurly_transaction_uuid from recurly_transactions" +
+                                                                        " where invoice_href = ? and site = ? and " + actionClause(false));
+        try {
+            statement.setString(1, invoiceHref);
+            statement.setString(2, site);
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                return resultSet.next() ? resultSet.getString("recurly_transaction_uuid") : null;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static Transaction toTransaction(final ResultSet resultSet) throws SQLException {
+        final Account account = new Account();
+        account.setAccountCode(resultSet.getString("account_code"));
+
+        final Transaction transaction = new Transaction();
+        transaction.setAccount(account);
+        transaction.setUuid(resultSet.getString("recurly_transaction_uuid"));
+        transaction.setDescription(resultSet.getString("kb_payment_id"));
+        transaction.setAction(resultSet.getString("action"));
+        transaction.setAmountInCents(getInteger(resultSet, "amount_in_cents"));
+        transaction.setCurrency(resultSet.getString("currency"));
+        transaction.setStatus(resultSet.getString("status"));
+        transaction.setReference(resultSet.getString("reference"));
+        transaction.setRefundable(getBoolean(resultSet, "refundable"));
+        transaction.setCreatedAt(toDateTime(resultSet.getTimestamp("created_date")));
+        if (resultSet.getString("invoice_href") != null) {
+            final Invoice invoice = new Invoice();
+            invoice.setHref(resultSet.getString("invoice_href"));
+            transaction.setInvoice(invoice);
+        }
+        return transaction;
+    }
+
+    private static RecurlyPaymentRecord toPaymentRecord(final ResultSet resultSet) throws SQLException {
+        return new RecurlyPaymentRecord(UUID.fromString(resultSet.getString("kb_account_id")),
+                                        UUID.fromString(resultSet.getString("kb_payment_id")),
+                                        RecurlyPaymentRecord.Status.valueOf(resultSet.getString("status")),
+                                        getInteger(resultSet, "amount_in_cents"),
+                                        resultSet.getString("currency"),
+                                        resultSet.getString("recurly_transaction_uuid"),
+                                        resultSet.getString("recurly_invoice_href"),
+                                        resultSet.getString("transaction_status"),
+                                        resultSet.getString("transaction_reference"),
+                                        toDateTime(resultSet.getTimestamp("transaction_created_date")),
+                                        toDateTime(resultSet.getTimestamp("created_date")),
+                                        toDateTime(resultSet.getTimestamp("updated_date")));
+    }
+
+    private static BillingInfo toBillingInfo(final ResultSet resultSet) throws SQLException {
+        final Account account = new Account();
+        account.setAccountCode(resultSet.getString("account_code"));
+
+        final BillingInfo billingInfo = new BillingInfo();
+        billingInfo.setAccount(account);
+        billingInfo.setCompany(resultSet.getString("kb_payment_method_id"));
+        billingInfo.setFirstName(resultSet.getString("first_name"));
+        billingInfo.setLastName(resultSet.getString("last_name"));
+        billingInfo.setAddress1(resultSet.getString("address1"));
+        billingInfo.setAddress2(resultSet.getString("address2"));
+        billingInfo.setCity(resultSet.getString("city"));
+        billingInfo.setState(resultSet.getString("state"));
+        billingInfo.setZip(resultSet.getString("zip"));
+        billingInfo.setCountry(resultSet.getString("country"));
+        billingInfo.setCardType(resultSet.getString("card_type"));
+        billingInfo.setLastFour(resultSet.getString("last_four"));
+        billingInfo.setMonth(getInteger(resultSet, "month"));
+        billingInfo.setYear(getInteger(resultSet, "year"));
+        return billingInfo;
+    }
+
+    private static void setInteger(final PreparedStatement statement, final int parameterIndex, final Integer value) throws SQLException {
+        if (value == null) {
+            statement.setNull(parameterIndex, Types.INTEGER);
+        } else {
+            statement.setInt(parameterIndex, value);
+        }
+    }
+
+    private static Integer getInteger(final ResultSet resultSet, final String columnLabel) throws SQLException {
+        final int value = resultSet.getInt(columnLabel);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    private static void setBoolean(final PreparedStatement statement, final int parameterIndex, final Boolean value) throws SQLException {
+        if (value == null) {
+            statement.setNull(parameterIndex, Types.BOOLEAN);
+        } else {
+            statement.setBoolean(parameterIndex, value);
+        }
+    }
+
+    private static Boolean getBoolean(final ResultSet resultSet, final String columnLabel) throws SQLException {
+        final boolean value = resultSet.getBoolean(columnLabel);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    private static Integer toInteger(final String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // e.g. duplicate key (SQL state class 23)
+    private static boolean isIntegrityConstraintViolation(final SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    private static Long getCount(final PreparedStatement statement) throws SQLException {
+        final ResultSet resultSet = statement.executeQuery();
+        try {
+            return resultSet.next() ? resultSet.getLong(1) : 0L;
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    private static Timestamp toTimestamp(final DateTime dateTime) {
+        return dateTime == null ? null : new Timestamp(dateTime.getMillis());
+    }
+
+    private static DateTime toDateTime(final Timestamp timestamp) {
+        return timestamp == null ? null : new DateTime(timestamp.getTime(), DateTimeZone.UTC);
+    }
+
+    private interface WithConnectionCallback<T> {
+
+        T withConnection(Connection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.dao;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+
+public class RecurlyPaymentRecord {
+
+    public enum Status {
+        // Submitted to Recurly, outcome unknown (e.g. timeout)
+        PENDING,
+        // Transaction successful
+        PROCESSED,
+        // Transaction failed (e.g. declined)
+        ERROR
+    }
+
+    private final UUID kbAccountId;
+    private final UUID kbPaymentId;
+    private final Status status;
+    private final Integer amountInCents;
+    private final String currency;
+    private final String recurlyTransactionUuid;
+    private final String recurlyInvoiceHref;
+    private final String transactionStatus;
+    private final String transactionReference;
+    private final DateTime transactionCreatedDate;
+    private final DateTime createdDate;
+    private final DateTime updatedDate;
+
+    public RecurlyPaymentRecord(final UUID kbAccountId, final UUID kbPaymentId, final Status status, final Integer amountInCents,
+                                final String currency, final String recurlyTransactionUuid, final String recurlyInvoiceHref,
+                                final String transactionStatus, final String transactionReference, final DateTime transactionCreatedDate,
+                                final DateTime createdDate, final DateTime updatedDate) {
+        this.kbAccountId = kbAccountId;
+        this.kbPaymentId = kbPaymentId;
+        this.status = status;
+        this.amountInCents = amountInCents;
+        this.currency = currency;
+        this.recurlyTransactionUuid = recurlyTransactionUuid;
+        this.recurlyInvoiceHref = recurlyInvoiceHref;
+        this.transactionStatus = transactionStatus;
+        this.transactionReference = transactionReference;
+        this.transactionCreatedDate = transactionCreatedDate;
+        this.createdDate = createdDate;
+        this.updatedDate = updatedDate;
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public UUID getKbPaymentId() {
+        return kbPaymentId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Integer getAmountInCents() {
+        return amountInCents;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String getRecurlyTransactionUuid() {
+        return recurlyTransactionUuid;
+    }
+
+    public String getRecurlyInvoiceHref() {
+        return recurlyInvoiceHref;
+    }
+
+    public String getTransactionStatus() {
+        return transactionStatus;
+    }
+
+    public String getTransactionReference() {
+        return transactionReference;
+    }
+
+    public DateTime getTransactionCreatedDate() {
+        return transactionCreatedDate;
+    }
+
+    public DateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    public DateTime getUpdatedDate() {
+        return updatedDate;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RecurlyPaymentRecord{");
+        sb.append("kbAccountId=").append(kbAccountId);
+        sb.append(", kbPaymentId=").append(kbPaymentId);
+        sb.append(", status=").append(status);
+        sb.append(", amountInCents=").append(amountInCents);
+        sb.append(", currency='").append(currency).append('\'');
+        sb.append(", recurlyTransactionUuid='").append(recurlyTransactionUuid).append('\'');
+        sb.append(", recurlyInvoiceHref='").append(recurlyInvoiceHref).append('\'');
+        sb.append(", transactionStatus='").append(transactionStatus).append('\'');
+        sb.append(", transactionReference='").append(transactionReference).append('\'');
+        sb.append(", transactionCreatedDate=").append(transactionCreatedDate);
+        sb.append(", createdDate=").append(createdDate);
+        sb.append(", updatedDate=").append(updatedDate);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*! SET storage_engine=INNODB */;
+
+drop table if exists recurly_payments;
+create table recurly_payments (
+  record_id int(11) unsigned not null auto_increment
+, site varchar(255) not null
+, kb_account_id char(36) not null
+, kb_payment_id char(36) not null
+, status varchar(32) not null
+, amount_in_cents int(11) default null
+, currency char(3) default null
+, recurly_transaction_uuid varchar(255) default null
+, recurly_invoice_href varchar(255) default null
+, transaction_status varchar(32) default null
+, transaction_reference varchar(255) default null
+, transaction_created_date datetime default null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index recurly_payments_site_kb_payment_id on recurly_payments(site, kb_payment_id);
+create index recurly_payments_site_status_updated_date on recurly_payments(site, status, updated_date);
+create index recurly_payments_recurly_transaction_uuid on recurly_payments(recurly_transaction_uuid);
+create index recurly_payments_recurly_invoice_href on recurly_payments(recurly_invoice_href);
+
+drop table if exists recurly_transactions;
+create table recurly_transactions (
+  record_id int(11) unsigned not null auto_increment
+, site varchar(255) not null
+, recurly_transaction_uuid varchar(255) not null
+, kb_payment_id char(36) default null
+, original_transaction_uuid varchar(255) default null
+, account_code varchar(255) not null
+, invoice_href varchar(255) default null
+, action varchar(32) default null
+, amount_in_cents int(11) default null
+, currency char(3) default null
+, status varchar(32) default null
+, reference varchar(255) default null
+, refundable tinyint(1) default null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index recurly_transactions_site_recurly_transaction_uuid on recurly_transactions(site, recurly_transaction_uuid);
+create index recurly_transactions_kb_payment_id on recurly_transactions(kb_payment_id);
+create index recurly_transactions_original_transaction_uuid on recurly_transactions(original_transaction_uuid);
+create index recurly_transactions_invoice_href on recurly_transactions(invoice_href);
+create index recurly_transactions_account_code on recurly_transactions(account_code);
+create index recurly_transactions_created_date on recurly_transactions(created_date);
+create index recurly_transactions_reference on recurly_transactions(reference);
+create index recurly_transactions_status on recurly_transactions(status);
+create index recurly_transactions_currency on recurly_transactions(currency);
+create index recurly_transactions_amount_in_cents on recurly_transactions(amount_in_cents);
+
+drop table if exists recurly_sync_checkpoints;
+create table recurly_sync_checkpoints (
+  record_id int(11) unsigned not null auto_increment
+, site varchar(255) not null
+, name varchar(255) not null
+, high_water_mark datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index recurly_sync_checkpoints_site_name on recurly_sync_checkpoints(site, name);
+
+drop table if exists recurly_billing_infos;
+create table recurly_billing_infos (
+  record_id int(11) unsigned not null auto_increment
+, site varchar(255) not null
+, account_code varchar(255) not null
+, kb_payment_method_id char(36) default null
+, first_name varchar(255) default null
+, last_name varchar(255) default null
+, address1 varchar(255) default null
+, address2 varchar(255) default null
+, city varchar(255) default null
+, state varchar(255) default null
+, zip varchar(255) default null
+, country varchar(255) default null
+, card_type varchar(255) default null
+, last_four varchar(4) default null
+, month int(11) default null
+, year int(11) default null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index recurly_billing_infos_site_account_code on recurly_billing_infos(site, account_code);
+create index recurly_billing_infos_site_first_name on recurly_billing_infos(site, first_name);
+create index recurly_billing_infos_site_last_name on recurly_billing_infos(site, last_name);
+create index recurly_billing_infos_site_address1 on recurly_billing_infos(site, address1);
+create index recurly_billing_infos_site_address2 on recurly_billing_infos(site, address2);
+create index recurly_billing_infos_site_last_four on recurly_billing_infos(site, last_four);
+create index recurly_billing_infos_site_card_type on recurly_billing_infos(site, card_type);
+create index recurly_billing_infos_site_city on recurly_billing_infos(site, city);
+create index recurly_billing_infos_site_country on recurly_billing_infos(site, country);
+create index recurly_billing_infos_site_month on recurly_billing_infos(site, month);
+create index recurly_billing_infos_site_year on recurly_billing_infos(site, year);
+create index recurly_billing_infos_site_updated_date on recurly_billing_infos(site, updated_date);
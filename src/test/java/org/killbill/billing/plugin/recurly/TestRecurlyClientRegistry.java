@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.http.client.AsyncHttpClient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class TestRecurlyClientRegistry {
+
+    private final AtomicLong nanos = new AtomicLong(0);
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testTenantSites() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        properties.put("killbill.payment.recurly.siteId", "killbill");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".apiKey", "67890");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".siteId", "tenant");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".rateLimit.permitsPerSecond", "2");
+        properties.put("killbill.payment.recurly.tenants.idleSeconds", "60");
+        final RecurlyConfig config = new RecurlyConfig(properties);
+
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        final RecurlySite defaultSite = new RecurlySite(RecurlyActivator.PLUGIN_NAME, config, null, metrics);
+        final RecurlyClientRegistry registry = new RecurlyClientRegistry(config, defaultSite, null, metrics, null, null, ticker);
+        try {
+            // Tenants without their own configuration share the default site
+            Assert.assertSame(registry.getSite(null), defaultSite);
+            Assert.assertSame(registry.getSite(UUID.randomUUID()), defaultSite);
+            Assert.assertEquals(registry.getNbTenantSites(), 0);
+
+            final RecurlySite tenantSite = registry.getSite(tenantId);
+            Assert.assertNotSame(tenantSite, defaultSite);
+            Assert.assertSame(registry.getSite(tenantId), tenantSite);
+            Assert.assertEquals(registry.getNbTenantSites(), 1);
+            Assert.assertEquals(registry.getOpenSites(), ImmutableList.<RecurlySite>of(defaultSite, tenantSite));
+            Assert.assertEquals(tenantSite.getConfig().getApiKey(), "67890");
+            // Each site only sees its own rows
+            Assert.assertNotEquals(tenantSite.getConfig().getSiteId(), defaultSite.getConfig().getSiteId());
+            Assert.assertEquals(tenantSite.getRateLimiter().getCurrentPermitsPerSecond(), 2.0);
+            Assert.assertEquals(defaultSite.getRateLimiter().getCurrentPermitsPerSecond(), 6.5);
+
+            // Still in use
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(50));
+            registry.cleanUp();
+            Assert.assertSame(registry.getSite(tenantId), tenantSite);
+
+            // Idle
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+            registry.cleanUp();
+            Assert.assertEquals(registry.getNbTenantSites(), 0);
+            Assert.assertEquals(registry.getOpenSites(), ImmutableList.<RecurlySite>of(defaultSite));
+
+            // Re-created on demand
+            final RecurlySite newTenantSite = registry.getSite(tenantId);
+            Assert.assertNotSame(newTenantSite, tenantSite);
+            Assert.assertEquals(registry.getNbTenantSites(), 1);
+        } finally {
+            registry.close();
+            defaultSite.close();
+        }
+        Assert.assertEquals(registry.getNbTenantSites(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testReconfigureAllOpenSites() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".apiKey", "67890");
+        final RecurlyConfig config = new RecurlyConfig(properties);
+
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        final RecurlySite defaultSite = new RecurlySite(RecurlyActivator.PLUGIN_NAME, config, null, metrics);
+        final RecurlyClientRegistry registry = new RecurlyClientRegistry(config, defaultSite, null, metrics, null, null, ticker);
+        try {
+            registry.getSite(tenantId);
+
+            final Hashtable<String, String> overrides = new Hashtable<String, String>();
+            overrides.put("killbill.payment.recurly.http.requestTimeoutMs", "1000");
+            final List<AsyncHttpClient> previousHttpClients = registry.reconfigure(config.withOverrides(overrides));
+            // Both the default and the tenant sites got a new client
+            Assert.assertEquals(previousHttpClients.size(), 2);
+            for (final AsyncHttpClient previousHttpClient : previousHttpClients) {
+                previousHttpClient.close();
+            }
+        } finally {
+            registry.close();
+            defaultSite.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly;
+
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.http.client.AsyncHttpClientConfig;
+
+public class TestRecurlyConfig {
+
+    @Test(groups = "fast")
+    public void testDefaultsAndOverrides() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        properties.put("killbill.payment.recurly.siteId", "killbill");
+        properties.put("killbill.payment.recurly.http.connectTimeoutMs", "1000");
+        final RecurlyConfig config = new RecurlyConfig(properties);
+
+        Assert.assertEquals(config.getApiKey(), "12345");
+        Assert.assertEquals(config.getConnectTimeoutMs(), 1000);
+        Assert.assertEquals(config.getPageSize(), 50);
+        Assert.assertEquals(config.getNbPagesToPrefetch(), 2);
+        Assert.assertTrue(config.isKeepAlive());
+        Assert.assertEquals(config.getSiteId(), "killbill");
+
+        final Hashtable<String, Object> overrides = new Hashtable<String, Object>();
+        overrides.put("killbill.payment.recurly.http.connectTimeoutMs", 2000);
+        overrides.put("killbill.payment.recurly.http.maxConnectionsPerHost", "7");
+        overrides.put("killbill.payment.recurly.http.keepAlive", "false");
+        final RecurlyConfig updatedConfig = config.withOverrides(overrides);
+
+        Assert.assertEquals(updatedConfig.getApiKey(), "12345");
+        Assert.assertEquals(updatedConfig.getSiteId(), "killbill");
+        Assert.assertEquals(updatedConfig.getConnectTimeoutMs(), 2000);
+        Assert.assertFalse(updatedConfig.isKeepAlive());
+        // The original configuration is left untouched
+        Assert.assertEquals(config.getConnectTimeoutMs(), 1000);
+
+        final AsyncHttpClientConfig asyncHttpClientConfig = updatedConfig.getAsyncHttpClientConfig();
+        Assert.assertEquals(asyncHttpClientConfig.getConnectionTimeoutInMs(), 2000);
+        Assert.assertEquals(asyncHttpClientConfig.getMaxConnectionPerHost(), 7);
+        Assert.assertFalse(asyncHttpClientConfig.getAllowPoolingConnection());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testSiteIdIsRequired() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        // Not derived from the API key
+        new RecurlyConfig(properties).getSiteId();
+    }
+
+    @Test(groups = "fast")
+    public void testWebhookRequiresCredentials() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        Assert.assertFalse(new RecurlyConfig(properties).isWebhookEnabled());
+
+        properties.put("killbill.payment.recurly.webhook.username", "recurly");
+        Assert.assertFalse(new RecurlyConfig(properties).isWebhookEnabled());
+
+        properties.put("killbill.payment.recurly.webhook.password", "");
+        Assert.assertFalse(new RecurlyConfig(properties).isWebhookEnabled());
+
+        properties.put("killbill.payment.recurly.webhook.password", "secret");
+        Assert.assertTrue(new RecurlyConfig(properties).isWebhookEnabled());
+    }
+
+    @Test(groups = "fast")
+    public void testTenantConfig() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final UUID otherTenantId = UUID.randomUUID();
+        final Properties properties = new Properties();
+        properties.put("killbill.payment.recurly.apiKey", "12345");
+        properties.put("killbill.payment.recurly.siteId", "killbill");
+        properties.put("killbill.payment.recurly.http.connectTimeoutMs", "1000");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".apiKey", "67890");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".siteId", "tenant");
+        properties.put("killbill.payment.recurly.tenants." + tenantId + ".http.maxConnectionsPerHost", "3");
+        // Not enough to get a site of its own
+        properties.put("killbill.payment.recurly.tenants." + otherTenantId + ".http.maxConnectionsPerHost", "5");
+        final RecurlyConfig config = new RecurlyConfig(properties);
+
+        Assert.assertTrue(config.hasTenantConfig(tenantId));
+        Assert.assertFalse(config.hasTenantConfig(otherTenantId));
+        Assert.assertFalse(config.hasTenantConfig(UUID.randomUUID()));
+        Assert.assertEquals(config.getTenantIdleSeconds(), 3600);
+
+        final RecurlyConfig tenantConfig = config.forTenant(tenantId);
+        Assert.assertEquals(tenantConfig.getApiKey(), "67890");
+        Assert.assertEquals(tenantConfig.getAsyncHttpClientConfig().getMaxConnectionPerHost(), 3);
+        // Defaults are inherited
+        Assert.assertEquals(tenantConfig.getConnectTimeoutMs(), 1000);
+        Assert.assertEquals(tenantConfig.getSiteId(), "tenant");
+        // The default configuration is left untouched
+        Assert.assertEquals(config.getApiKey(), "12345");
+        Assert.assertEquals(config.getSiteId(), "killbill");
+
+        // Nor are the webhook credentials
+        final Properties webhookProperties = new Properties();
+        webhookProperties.putAll(properties);
+        webhookProperties.put("killbill.payment.recurly.webhook.username", "recurly");
+        webhookProperties.put("killbill.payment.recurly.webhook.password", "secret");
+        Assert.assertFalse(new RecurlyConfig(webhookProperties).forTenant(tenantId).isWebhookEnabled());
+
+        // The site id of the default site is never inherited
+        try {
+            config.forTenant(otherTenantId).getSiteId();
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -29,6 +29,11 @@ import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
 import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
 import org.killbill.billing.payment.plugin.api.RefundInfoPlugin;
 import org.killbill.billing.payment.plugin.api.RefundPluginStatus;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyCallGuard;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -41,6 +46,10 @@ import com.ning.billing.recurly.TransactionErrorException;
 import com.ning.billing.recurly.model.Account;
 import com.ning.billing.recurly.model.BillingInfo;
 import com.ning.billing.recurly.model.Errors;
+import com.ning.http.client.AsyncHttpClient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class TestIntegration {
 
@@ -56,6 +65,10 @@ public class TestIntegration {
     private final UUID kbAccountId = UUID.randomUUID();
 
     private RecurlyClient recurlyClient;
+    private AsyncHttpClient asyncHttpClient;
+    private RecurlyAsyncClient recurlyAsyncClient;
+    private RecurlyCallGuard callGuard;
+    private RecurlyMetrics metrics;
     private Account account;
 
     @BeforeMethod(groups = "integration")
@@ -68,6 +81,10 @@ public class TestIntegration {
 
         recurlyClient = new RecurlyClient(apiKey);
         recurlyClient.open();
+        asyncHttpClient = new AsyncHttpClient();
+        metrics = new RecurlyMetrics(new MetricRegistry());
+        callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(5, 10), metrics);
+        recurlyAsyncClient = new RecurlyAsyncClient(apiKey, RecurlyAsyncClient.DEFAULT_BASE_URL, 50, RecurlyAsyncClient.DEFAULT_NB_PAGES_TO_PREFETCH, asyncHttpClient, callGuard, metrics);
 
         account = new Account();
         account.setAccountCode(kbAccountId.toString());
@@ -79,11 +96,17 @@ public class TestIntegration {
     public void tearDown() throws Exception {
         recurlyClient.closeAccount(account.getAccountCode());
         recurlyClient.close();
+        asyncHttpClient.close();
     }
 
     @Test(groups = "integration")
     public void testScenario() throws Exception {
-        final RecurlyPaymentPluginApi pluginApi = new RecurlyPaymentPluginApi(recurlyClient);
+        // No local storage nor caching
+        final RecurlyPaymentPluginApi pluginApi = new RecurlyPaymentPluginApi(recurlyAsyncClient,
+                                                                              null,
+                                                                              MoreExecutors.sameThreadExecutor(),
+                                                                              new RecurlyBillingInfoCache(recurlyAsyncClient, 0, 0),
+                                                                              300);
 
         // Create a good payment method
         final UUID goodKbPaymentMethodId = UUID.randomUUID();
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.plugin.recurly.client.RecurlyApiException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Transaction;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlyBulkPaymentIterator {
+
+    @Test(groups = "fast")
+    public void testBoundedConcurrency() throws Exception {
+        final List<SettableFuture<Transaction>> inFlight = new LinkedList<SettableFuture<Transaction>>();
+        final Function<RecurlyPaymentRequest, ListenableFuture<Transaction>> submitter = new Function<RecurlyPaymentRequest, ListenableFuture<Transaction>>() {
+            @Override
+            public ListenableFuture<Transaction> apply(final RecurlyPaymentRequest request) {
+                final SettableFuture<Transaction> future = SettableFuture.<Transaction>create();
+                inFlight.add(future);
+                return future;
+            }
+        };
+
+        final List<RecurlyPaymentRequest> requests = new ArrayList<RecurlyPaymentRequest>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new RecurlyPaymentRequest(UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.USD));
+        }
+
+        final RecurlyBulkPaymentIterator iterator = new RecurlyBulkPaymentIterator(requests.iterator(), submitter, 3);
+        Assert.assertEquals(inFlight.size(), 3);
+
+        final Set<UUID> kbPaymentIds = new HashSet<UUID>();
+        int nbFailures = 0;
+        while (iterator.hasNext()) {
+            // Complete the oldest transaction in flight, failing every other one
+            final SettableFuture<Transaction> future = inFlight.remove(0);
+            if (kbPaymentIds.size() % 2 == 0) {
+                future.set(new Transaction());
+            } else {
+                future.setException(new RecurlyApiException(422, "Unprocessable Entity", null));
+            }
+
+            final RecurlyPaymentResult result = iterator.next();
+            Assert.assertTrue(kbPaymentIds.add(result.getRequest().getKbPaymentId()));
+            if (result.getError() != null) {
+                Assert.assertNull(result.getPaymentInfo());
+                nbFailures++;
+            } else {
+                Assert.assertEquals(result.getPaymentInfo().getKbPaymentId(), result.getRequest().getKbPaymentId());
+            }
+            Assert.assertTrue(inFlight.size() <= 3);
+        }
+
+        Assert.assertEquals(kbPaymentIds.size(), 10);
+        Assert.assertEquals(nbFailures, 5);
+        Assert.assertTrue(inFlight.isEmpty());
+    }
+}
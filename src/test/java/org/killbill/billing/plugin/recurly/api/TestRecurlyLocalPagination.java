@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRecurlyLocalPagination {
+
+    @Test(groups = "fast")
+    public void testOffsets() throws Exception {
+        final RecurlyLocalPagination<String> firstPage = new RecurlyLocalPagination<String>(0L, 100L, 5L, ImmutableList.<String>of("a", "b"));
+        Assert.assertEquals(firstPage.getCurrentOffset(), (Long) 0L);
+        Assert.assertEquals(firstPage.getNextOffset(), (Long) 2L);
+        Assert.assertEquals(firstPage.getMaxNbRecords(), (Long) 100L);
+        Assert.assertEquals(firstPage.getTotalNbRecords(), (Long) 5L);
+        Assert.assertEquals(ImmutableList.<String>copyOf(firstPage), ImmutableList.<String>of("a", "b"));
+
+        final RecurlyLocalPagination<String> lastPage = new RecurlyLocalPagination<String>(4L, 100L, 5L, ImmutableList.<String>of("e"));
+        Assert.assertEquals(lastPage.getCurrentOffset(), (Long) 4L);
+        Assert.assertNull(lastPage.getNextOffset());
+
+        final RecurlyLocalPagination<String> pastTheEnd = new RecurlyLocalPagination<String>(10L, 100L, 5L, ImmutableList.<String>of());
+        Assert.assertNull(pastTheEnd.getNextOffset());
+        Assert.assertFalse(pastTheEnd.iterator().hasNext());
+    }
+}
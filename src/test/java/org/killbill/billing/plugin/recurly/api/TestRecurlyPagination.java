@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.recurly.api.RecurlyPagination.RecurlyPaymentMethodPluginIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyPage;
+import org.killbill.billing.plugin.recurly.client.RecurlyPageIterator;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlyPagination {
+
+    @Test(groups = "fast")
+    public void testCloseCancelsPendingLookups() throws Exception {
+        final SettableFuture<RecurlyPage<Accounts>> secondPage = SettableFuture.<RecurlyPage<Accounts>>create();
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getNextPage(final Priority priority, final RecurlyPage<T> page, final Class<T> clazz) {
+                return (ListenableFuture) secondPage;
+            }
+        };
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final RecurlyBillingInfoCache billingInfoCache = new RecurlyBillingInfoCache(asyncClient, 0, 0) {
+            @Override
+            public BillingInfo getBillingInfo(final String accountCode, final Priority priority) {
+                if ("fast".equals(accountCode)) {
+                    return new BillingInfo() {
+                        @Override
+                        public String getFirstName() {
+                            return "John";
+                        }
+                    };
+                }
+                // Slow lookup
+                try {
+                    new CountDownLatch(1).await();
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        };
+
+        final Accounts accounts = new Accounts();
+        accounts.add(createAccount("fast"));
+        accounts.add(createAccount("slow"));
+        final RecurlyPageIterator<Accounts> accountsPages = new RecurlyPageIterator<Accounts>(asyncClient, Priority.LOW, Accounts.class,
+                                                                                              Futures.immediateFuture(new RecurlyPage<Accounts>(accounts, "2")),
+                                                                                              2, MoreExecutors.sameThreadExecutor());
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final RecurlyPaymentMethodPluginIterator iterator = new RecurlyPaymentMethodPluginIterator("John", 0L, 10L, accountsPages, billingInfoCache, executor, metrics);
+            Assert.assertTrue(iterator.hasNext());
+
+            // e.g. the caller only needed the first result
+            iterator.close();
+            Assert.assertFalse(iterator.hasNext());
+            Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(secondPage.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Account createAccount(final String accountCode) {
+        final Account account = new Account();
+        account.setAccountCode(accountCode);
+        return account;
+    }
+}
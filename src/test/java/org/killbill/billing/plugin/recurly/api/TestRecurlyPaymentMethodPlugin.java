@@ -17,8 +17,10 @@
 
 package org.killbill.billing.plugin.recurly.api;
 
+import java.util.List;
 import java.util.UUID;
 
+import org.killbill.billing.payment.api.PaymentMethodKVInfo;
 import org.killbill.billing.plugin.recurly.client.RecurlyObjectFactory;
 import com.ning.billing.recurly.model.Account;
 import com.ning.billing.recurly.model.BillingInfo;
@@ -66,4 +68,37 @@ public class TestRecurlyPaymentMethodPlugin {
         final BillingInfo billingInfoFromPaymentMethodPlugin = RecurlyObjectFactory.createBillingInfoFromKillbill(kbAccountId, kbPaymentMethodId, paymentMethodPlugin);
         Assert.assertEquals(billingInfoFromPaymentMethodPlugin, billingInfo);
     }
+
+    @Test(groups = "fast")
+    public void testProperties() throws Exception {
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        final BillingInfo billingInfo = new BillingInfo();
+        billingInfo.setCompany(kbPaymentMethodId.toString());
+        billingInfo.setFirstName(randomString());
+        billingInfo.setLastFour(randomString());
+        billingInfo.setMonth(3);
+        billingInfo.setVerificationValue(123);
+        billingInfo.setYear(2020);
+
+        final RecurlyPaymentMethodPlugin paymentMethodPlugin = new RecurlyPaymentMethodPlugin(billingInfo, kbPaymentMethodId);
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.COMPANY), billingInfo.getCompany());
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.FIRST_NAME), billingInfo.getFirstName());
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.LAST_FOUR), billingInfo.getLastFour());
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.MONTH), billingInfo.getMonth());
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.VERIFICATION_VALUE), billingInfo.getVerificationValue());
+        Assert.assertEquals(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.YEAR), billingInfo.getYear());
+        Assert.assertNull(paymentMethodPlugin.getPropertyValue(RecurlyPaymentMethodPlugin.PHONE));
+        Assert.assertNull(paymentMethodPlugin.getPropertyValue("unknown"));
+
+        // Built once, in a fixed order
+        final List<PaymentMethodKVInfo> properties = paymentMethodPlugin.getProperties();
+        Assert.assertSame(paymentMethodPlugin.getProperties(), properties);
+        Assert.assertEquals(properties.size(), 20);
+        Assert.assertEquals(properties.get(0).getKey(), RecurlyPaymentMethodPlugin.ADDRESS_1);
+        Assert.assertEquals(properties.get(19).getKey(), RecurlyPaymentMethodPlugin.ZIP);
+        for (final PaymentMethodKVInfo property : properties) {
+            Assert.assertEquals(property.getValue(), paymentMethodPlugin.getPropertyValue(property.getKey()));
+            Assert.assertTrue(property.getIsUpdatable());
+        }
+    }
 }
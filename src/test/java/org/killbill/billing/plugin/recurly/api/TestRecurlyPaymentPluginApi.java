@@ -0,0 +1,543 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyCallGuard;
+import org.killbill.billing.plugin.recurly.client.RecurlyCircuitBreaker;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyPage;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.core.RecurlyTransactionSynchronizer;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.killbill.billing.plugin.recurly.dao.RecurlyPaymentRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Adjustment;
+import com.ning.billing.recurly.model.Adjustments;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlyPaymentPluginApi {
+
+    @Test(groups = "fast")
+    public void testConcurrentDuplicatePaymentsAreCollapsed() throws Exception {
+        final CountDownLatch createTransactionStarted = new CountDownLatch(1);
+        final SettableFuture<Transaction> createdTransaction = SettableFuture.<Transaction>create();
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                nbCreateTransactionCalls.incrementAndGet();
+                createTransactionStarted.countDown();
+                return createdTransaction;
+            }
+        };
+
+        // The ledger is unavailable: only the in-process deduplication is exercised
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, new RecurlyDao(createUnavailableDataSource(), "test"));
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final AtomicReference<PaymentInfoPlugin> firstPayment = new AtomicReference<PaymentInfoPlugin>();
+        final AtomicReference<PaymentInfoPlugin> duplicatePayment = new AtomicReference<PaymentInfoPlugin>();
+        final Thread first = startPayment(pluginApi, kbAccountId, kbPaymentId, firstPayment);
+        Assert.assertTrue(createTransactionStarted.await(5, TimeUnit.SECONDS));
+
+        final Thread duplicate = startPayment(pluginApi, kbAccountId, kbPaymentId, duplicatePayment);
+        // Wait for the duplicate to block on the outcome of the first submission
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (duplicate.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(duplicate.getState(), Thread.State.WAITING);
+
+        createdTransaction.set(new Transaction());
+        first.join(5000);
+        duplicate.join(5000);
+
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 1);
+        Assert.assertNotNull(firstPayment.get());
+        Assert.assertNotNull(duplicatePayment.get());
+    }
+
+    @Test(groups = "fast")
+    public void testRejectedPaymentFailsFast() throws Exception {
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        // No room for payments
+        final RecurlyCallGuard callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(1000, 1000),
+                                                                metrics,
+                                                                new Supplier<RecurlyCircuitBreaker>() {
+                                                                    @Override
+                                                                    public RecurlyCircuitBreaker get() {
+                                                                        return new RecurlyCircuitBreaker();
+                                                                    }
+                                                                },
+                                                                0, 1, 1, 0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2,
+                                                                      RecurlyAsyncClient.DEFAULT_NB_PAGES_TO_PREFETCH, null, callGuard, metrics) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                return callGuard.callAsync(priority, "createTransaction", new Callable<ListenableFuture<Transaction>>() {
+                    @Override
+                    public ListenableFuture<Transaction> call() {
+                        nbCreateTransactionCalls.incrementAndGet();
+                        return Futures.immediateFuture(new Transaction());
+                    }
+                });
+            }
+        };
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, new RecurlyDao(createUnavailableDataSource(), "test"));
+
+        try {
+            pluginApi.processPayment(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null);
+            Assert.fail();
+        } catch (final PaymentPluginApiException e) {
+            Assert.assertEquals(e.getErrorType(), "UNAVAILABLE");
+        }
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSuccessfulPaymentIsServedFromTheLedger() throws Exception {
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                nbCreateTransactionCalls.incrementAndGet();
+                return Futures.immediateFuture(newTransaction("success"));
+            }
+        };
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final PaymentInfoPlugin payment = pluginApi.processPayment(kbAccountId, kbPaymentId, UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null);
+        Assert.assertEquals(payment.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(dao.getPayment(kbPaymentId).getStatus(), RecurlyPaymentRecord.Status.PROCESSED);
+        // Searchable without waiting for the next synchronization
+        Assert.assertTrue(dao.syncedTransactions.containsKey(dao.getPayment(kbPaymentId).getRecurlyTransactionUuid()));
+
+        // Kill Bill retry
+        final PaymentInfoPlugin retriedPayment = pluginApi.processPayment(kbAccountId, kbPaymentId, UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null);
+        Assert.assertEquals(retriedPayment.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(retriedPayment.getFirstPaymentReferenceId(), payment.getFirstPaymentReferenceId());
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testPendingPaymentIsReconciled() throws Exception {
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        // The first submission timed out, but did reach Recurly
+        final Transaction transaction = newTransaction("success");
+        final Invoice invoice = new Invoice();
+        final Adjustment charge = new Adjustment();
+        charge.setDescription(kbPaymentId.toString());
+        final Adjustments lineItems = new Adjustments();
+        lineItems.add(charge);
+        invoice.setLineItems(lineItems);
+        final Transactions transactions = new Transactions();
+        transactions.add(transaction);
+        invoice.setTransactions(transactions);
+        final Invoices invoices = new Invoices();
+        invoices.add(invoice);
+
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        // No HTTP client: the invoices are served from memory
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                nbCreateTransactionCalls.incrementAndGet();
+                return Futures.immediateFuture(newTransaction("success"));
+            }
+
+            @Override
+            public ListenableFuture<RecurlyPage<Invoices>> getAccountInvoices(final Priority priority, final String accountCode, final DateTime beginTime, final DateTime endTime) {
+                return Futures.immediateFuture(new RecurlyPage<Invoices>(invoices, null));
+            }
+        };
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        dao.addPendingPayment(kbAccountId, kbPaymentId, 1000, "USD");
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final PaymentInfoPlugin payment = pluginApi.processPayment(kbAccountId, kbPaymentId, UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null);
+        Assert.assertEquals(payment.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(dao.getPayment(kbPaymentId).getStatus(), RecurlyPaymentRecord.Status.PROCESSED);
+        Assert.assertEquals(dao.getPayment(kbPaymentId).getRecurlyTransactionUuid(), transaction.getUuid());
+        // Not submitted twice
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedPaymentIsRetried() throws Exception {
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                nbCreateTransactionCalls.incrementAndGet();
+                return Futures.immediateFuture(newTransaction("success"));
+            }
+        };
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        // The first attempt was declined
+        final Transaction declinedTransaction = newTransaction("declined");
+        dao.addPayment(kbAccountId, kbPaymentId, RecurlyPaymentRecord.Status.ERROR, declinedTransaction);
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final PaymentInfoPlugin payment = pluginApi.processPayment(kbAccountId, kbPaymentId, UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null);
+        Assert.assertEquals(payment.getStatus(), PaymentPluginStatus.PROCESSED);
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 1);
+        Assert.assertEquals(dao.getPayment(kbPaymentId).getStatus(), RecurlyPaymentRecord.Status.PROCESSED);
+        Assert.assertNotEquals(dao.getPayment(kbPaymentId).getRecurlyTransactionUuid(), declinedTransaction.getUuid());
+    }
+
+    @Test(groups = "fast")
+    public void testAmountsAreInCents() throws Exception {
+        final List<Integer> submittedAmountsInCents = new LinkedList<Integer>();
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                submittedAmountsInCents.add(transaction.getAmountInCents());
+                return Futures.immediateFuture(newTransaction("success"));
+            }
+        };
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final UUID kbPaymentId = UUID.randomUUID();
+        pluginApi.processPayment(UUID.randomUUID(), kbPaymentId, UUID.randomUUID(), new BigDecimal("12.50"), Currency.USD, null);
+        Assert.assertEquals(submittedAmountsInCents, ImmutableList.<Integer>of(1250));
+
+        // Never truncated
+        final UUID invalidKbPaymentId = UUID.randomUUID();
+        try {
+            pluginApi.processPayment(UUID.randomUUID(), invalidKbPaymentId, UUID.randomUUID(), new BigDecimal("12.505"), Currency.USD, null);
+            Assert.fail();
+        } catch (final PaymentPluginApiException e) {
+            Assert.assertEquals(e.getErrorType(), "INVALID_AMOUNT");
+        }
+        Assert.assertEquals(submittedAmountsInCents.size(), 1);
+        Assert.assertNull(dao.getPayment(invalidKbPaymentId));
+    }
+
+    @Test(groups = "fast")
+    public void testBulkPaymentsGoThroughTheLedger() throws Exception {
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        final RecurlyPaymentRequest newPayment = new RecurlyPaymentRequest(UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.USD);
+        final AtomicInteger nbCreateTransactionCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> createTransaction(final Priority priority, final Transaction transaction) {
+                nbCreateTransactionCalls.incrementAndGet();
+                // Recorded before being submitted
+                Assert.assertEquals(dao.getPayment(newPayment.getKbPaymentId()).getStatus(), RecurlyPaymentRecord.Status.PENDING);
+                return Futures.immediateFuture(newTransaction("success"));
+            }
+
+            @Override
+            public ListenableFuture<RecurlyPage<Invoices>> getAccountInvoices(final Priority priority, final String accountCode, final DateTime beginTime, final DateTime endTime) {
+                return Futures.immediateFuture(new RecurlyPage<Invoices>(new Invoices(), null));
+            }
+        };
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final RecurlyPaymentRequest processedPayment = new RecurlyPaymentRequest(UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.USD);
+        dao.addPayment(processedPayment.getKbAccountId(), processedPayment.getKbPaymentId(), RecurlyPaymentRecord.Status.PROCESSED, newTransaction("success"));
+        // Being submitted by another node
+        final RecurlyPaymentRequest pendingPayment = new RecurlyPaymentRequest(UUID.randomUUID(), UUID.randomUUID(), BigDecimal.TEN, Currency.USD);
+        dao.addPendingPayment(pendingPayment.getKbAccountId(), pendingPayment.getKbPaymentId(), 1000, "USD");
+
+        final Map<UUID, RecurlyPaymentResult> results = new HashMap<UUID, RecurlyPaymentResult>();
+        final Iterator<RecurlyPaymentResult> iterator = pluginApi.processPayments(ImmutableList.<RecurlyPaymentRequest>of(newPayment, processedPayment, pendingPayment), 2);
+        while (iterator.hasNext()) {
+            final RecurlyPaymentResult result = iterator.next();
+            results.put(result.getRequest().getKbPaymentId(), result);
+        }
+
+        Assert.assertEquals(nbCreateTransactionCalls.get(), 1);
+        Assert.assertNull(results.get(newPayment.getKbPaymentId()).getError());
+        Assert.assertEquals(dao.getPayment(newPayment.getKbPaymentId()).getStatus(), RecurlyPaymentRecord.Status.PROCESSED);
+        // Answered from the ledger
+        Assert.assertNull(results.get(processedPayment.getKbPaymentId()).getError());
+        Assert.assertEquals(results.get(processedPayment.getKbPaymentId()).getPaymentInfo().getStatus(), PaymentPluginStatus.PROCESSED);
+        // Not submitted twice
+        Assert.assertTrue(results.get(pendingPayment.getKbPaymentId()).getError() instanceof PaymentPluginApiException);
+        Assert.assertEquals(dao.getPayment(pendingPayment.getKbPaymentId()).getStatus(), RecurlyPaymentRecord.Status.PENDING);
+    }
+
+    @Test(groups = "fast")
+    public void testRefundIsReadAfterTheRefund() throws Exception {
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        final Transaction transaction = newTransaction("success");
+        transaction.setRefundable(true);
+        final Transaction refundedTransaction = newTransaction("success");
+        refundedTransaction.setUuid(transaction.getUuid());
+        refundedTransaction.setRefundable(false);
+        final AtomicInteger nbFreshCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry())) {
+            @Override
+            public ListenableFuture<Transaction> getTransaction(final Priority priority, final String transactionUuid) {
+                // May have been issued before the refund
+                return Futures.immediateFuture(transaction);
+            }
+
+            @Override
+            public ListenableFuture<Transaction> getFreshTransaction(final Priority priority, final String transactionUuid) {
+                nbFreshCalls.incrementAndGet();
+                return Futures.immediateFuture(refundedTransaction);
+            }
+
+            @Override
+            public ListenableFuture<Void> refundTransaction(final Priority priority, final String transactionUuid, final BigDecimal amount) {
+                return Futures.immediateFuture(null);
+            }
+        };
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        dao.addPayment(kbAccountId, kbPaymentId, RecurlyPaymentRecord.Status.PROCESSED, transaction);
+
+        pluginApi.processRefund(kbAccountId, kbPaymentId, BigDecimal.TEN, Currency.USD, null);
+
+        Assert.assertEquals(nbFreshCalls.get(), 1);
+        Assert.assertSame(dao.syncedTransactions.get(transaction.getUuid()), refundedTransaction);
+    }
+
+    @Test(groups = "fast", expectedExceptions = PaymentPluginApiException.class)
+    public void testSearchBeforeFirstSynchronizationFails() throws Exception {
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()));
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, new InMemoryRecurlyDao());
+
+        // Rather than an empty page
+        pluginApi.searchPayments(UUID.randomUUID().toString(), 0L, 10L, null);
+    }
+
+    @Test(groups = "fast")
+    public void testSearchCountsAreComputedOncePerSearch() throws Exception {
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 2, null,
+                                                                      new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()));
+        final InMemoryRecurlyDao dao = new InMemoryRecurlyDao();
+        dao.setSyncCheckpoint(RecurlyTransactionSynchronizer.CHECKPOINT, new DateTime(DateTimeZone.UTC));
+        final RecurlyPaymentPluginApi pluginApi = createPluginApi(asyncClient, dao);
+
+        // First and second page of the same search
+        pluginApi.searchPayments("USD", 0L, 10L, null);
+        pluginApi.searchPayments("USD", 10L, 10L, null);
+        Assert.assertEquals(dao.nbCounts.get(), 2);
+
+        pluginApi.searchPayments("EUR", 0L, 10L, null);
+        Assert.assertEquals(dao.nbCounts.get(), 3);
+    }
+
+    private RecurlyPaymentPluginApi createPluginApi(final RecurlyAsyncClient asyncClient, final RecurlyDao dao) {
+        return new RecurlyPaymentPluginApi(asyncClient,
+                                           dao,
+                                           MoreExecutors.sameThreadExecutor(),
+                                           new RecurlyBillingInfoCache(asyncClient, 0, 0),
+                                           300);
+    }
+
+    private static Transaction newTransaction(final String status) {
+        final Transaction transaction = new Transaction();
+        transaction.setUuid(UUID.randomUUID().toString().replace("-", ""));
+        transaction.setAction("purchase");
+        transaction.setAmountInCents(1000);
+        transaction.setCurrency("USD");
+        transaction.setStatus(status);
+        transaction.setCreatedAt(new DateTime(DateTimeZone.UTC));
+        return transaction;
+    }
+
+    private Thread startPayment(final RecurlyPaymentPluginApi pluginApi, final UUID kbAccountId, final UUID kbPaymentId, final AtomicReference<PaymentInfoPlugin> result) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(pluginApi.processPayment(kbAccountId, kbPaymentId, UUID.randomUUID(), BigDecimal.TEN, Currency.USD, null));
+                } catch (final Exception e) {
+                    Assert.fail("Unable to process payment", e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private DataSource createUnavailableDataSource() {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+                                                   new Class[]{DataSource.class},
+                                                   new InvocationHandler() {
+                                                       @Override
+                                                       public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                                                           throw new SQLException("Database unavailable");
+                                                       }
+                                                   });
+    }
+
+    // Ledger kept in memory (no database in fast tests)
+    private static final class InMemoryRecurlyDao extends RecurlyDao {
+
+        private final Map<UUID, RecurlyPaymentRecord> payments = new HashMap<UUID, RecurlyPaymentRecord>();
+        private final Map<String, Transaction> syncedTransactions = new HashMap<String, Transaction>();
+        private final Map<String, DateTime> checkpoints = new HashMap<String, DateTime>();
+        private final AtomicInteger nbCounts = new AtomicInteger(0);
+
+        private InMemoryRecurlyDao() {
+            super(null, "test");
+        }
+
+        @Override
+        public synchronized boolean addPendingPayment(final UUID kbAccountId, final UUID kbPaymentId, final Integer amountInCents, final String currency) {
+            if (payments.containsKey(kbPaymentId)) {
+                return false;
+            }
+            final DateTime now = new DateTime(DateTimeZone.UTC);
+            payments.put(kbPaymentId, new RecurlyPaymentRecord(kbAccountId, kbPaymentId, RecurlyPaymentRecord.Status.PENDING, amountInCents, currency,
+                                                               null, null, null, null, null, now, now));
+            return true;
+        }
+
+        @Override
+        public synchronized void addPayment(final UUID kbAccountId, final UUID kbPaymentId, final RecurlyPaymentRecord.Status status, final Transaction transaction) {
+            final DateTime now = new DateTime(DateTimeZone.UTC);
+            final RecurlyPaymentRecord paymentRecord = payments.get(kbPaymentId);
+            payments.put(kbPaymentId, new RecurlyPaymentRecord(kbAccountId, kbPaymentId, status, transaction.getAmountInCents(), transaction.getCurrency(),
+                                                               transaction.getUuid(), null, transaction.getStatus(), transaction.getReference(),
+                                                               transaction.getCreatedAt(), paymentRecord == null ? now : paymentRecord.getCreatedDate(), now));
+        }
+
+        @Override
+        public synchronized void deletePayment(final UUID kbPaymentId) {
+            payments.remove(kbPaymentId);
+        }
+
+        @Override
+        public synchronized boolean deletePendingPayment(final UUID kbPaymentId, final DateTime updatedDate) {
+            final RecurlyPaymentRecord paymentRecord = payments.get(kbPaymentId);
+            if (paymentRecord == null || paymentRecord.getStatus() != RecurlyPaymentRecord.Status.PENDING || !paymentRecord.getUpdatedDate().equals(updatedDate)) {
+                return false;
+            }
+            payments.remove(kbPaymentId);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean retryFailedPayment(final UUID kbPaymentId, final DateTime updatedDate, final Integer amountInCents, final String currency) {
+            final RecurlyPaymentRecord paymentRecord = payments.get(kbPaymentId);
+            if (paymentRecord == null || paymentRecord.getStatus() != RecurlyPaymentRecord.Status.ERROR || !paymentRecord.getUpdatedDate().equals(updatedDate)) {
+                return false;
+            }
+            payments.put(kbPaymentId, new RecurlyPaymentRecord(paymentRecord.getKbAccountId(), kbPaymentId, RecurlyPaymentRecord.Status.PENDING, amountInCents, currency,
+                                                               null, null, null, null, null, paymentRecord.getCreatedDate(), new DateTime(DateTimeZone.UTC)));
+            return true;
+        }
+
+        @Override
+        public synchronized RecurlyPaymentRecord getPayment(final UUID kbPaymentId) {
+            return payments.get(kbPaymentId);
+        }
+
+        @Override
+        public List<Transaction> getTransactions(final UUID kbPaymentId) {
+            // Not synchronized (yet)
+            return ImmutableList.<Transaction>of();
+        }
+
+        @Override
+        public synchronized void addTransaction(final String accountCode, final Transaction transaction) {
+            syncedTransactions.put(transaction.getUuid(), transaction);
+        }
+
+        @Override
+        public Long getTransactionsCount(final boolean refunds) {
+            nbCounts.incrementAndGet();
+            return 0L;
+        }
+
+        @Override
+        public Long getTransactionsCount(final String searchKey, final boolean refunds) {
+            nbCounts.incrementAndGet();
+            return 0L;
+        }
+
+        @Override
+        public synchronized DateTime getSyncCheckpoint(final String name) {
+            return checkpoints.get(name);
+        }
+
+        @Override
+        public synchronized void setSyncCheckpoint(final String name, final DateTime highWaterMark) {
+            checkpoints.put(name, highWaterMark);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.api;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestRecurlyStreamingLocalPagination {
+
+    private static final List<String> RECORDS = ImmutableList.<String>of("a", "b", "c", "d", "e", "f", "g", "h", "i", "j");
+
+    @Test(groups = "fast")
+    public void testFetchesLazilyByChunks() throws Exception {
+        final CountingPagination page = new CountingPagination(1L, 7L, 3);
+        Assert.assertEquals(page.getCurrentOffset(), (Long) 1L);
+        Assert.assertEquals(page.getNextOffset(), (Long) 8L);
+        Assert.assertEquals(page.getMaxNbRecords(), (Long) 100L);
+        Assert.assertEquals(page.getTotalNbRecords(), (Long) 10L);
+        Assert.assertEquals(page.fetches.size(), 0);
+
+        final Iterator<String> iterator = page.iterator();
+        Assert.assertEquals(iterator.next(), "b");
+        Assert.assertEquals(page.fetches, ImmutableList.<String>of("1-3"));
+        Assert.assertEquals(iterator.next(), "c");
+        Assert.assertEquals(iterator.next(), "d");
+        Assert.assertEquals(page.fetches.size(), 1);
+
+        Assert.assertEquals(iterator.next(), "e");
+        Assert.assertEquals(page.fetches, ImmutableList.<String>of("1-3", "4-3"));
+        Assert.assertEquals(ImmutableList.<String>copyOf(iterator), ImmutableList.<String>of("f", "g", "h"));
+        // The last chunk is cut at the page limit
+        Assert.assertEquals(page.fetches, ImmutableList.<String>of("1-3", "4-3", "7-1"));
+    }
+
+    @Test(groups = "fast")
+    public void testLastPage() throws Exception {
+        final CountingPagination lastPage = new CountingPagination(8L, 100L, 3);
+        Assert.assertNull(lastPage.getNextOffset());
+        Assert.assertEquals(ImmutableList.<String>copyOf(lastPage), ImmutableList.<String>of("i", "j"));
+        Assert.assertEquals(lastPage.fetches, ImmutableList.<String>of("8-2"));
+
+        final CountingPagination pastTheEnd = new CountingPagination(10L, 100L, 3);
+        Assert.assertNull(pastTheEnd.getNextOffset());
+        Assert.assertFalse(pastTheEnd.iterator().hasNext());
+        Assert.assertEquals(pastTheEnd.fetches.size(), 0);
+    }
+
+    private static final class CountingPagination extends RecurlyStreamingLocalPagination<String> {
+
+        private final List<String> fetches = new LinkedList<String>();
+
+        private CountingPagination(final Long offset, final Long limit, final long chunkSize) {
+            super(offset, limit, 100L, (long) RECORDS.size(), chunkSize);
+        }
+
+        @Override
+        protected List<String> fetch(final long chunkOffset, final long chunkLimit) throws SQLException {
+            fetches.add(chunkOffset + "-" + chunkLimit);
+            return RECORDS.subList((int) chunkOffset, (int) Math.min(RECORDS.size(), chunkOffset + chunkLimit));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.BillingInfo;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TestRecurlyBillingInfoCache {
+
+    private final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+
+    @Test(groups = "fast")
+    public void testReadThroughAndInvalidation() throws Exception {
+        final String accountCode = UUID.randomUUID().toString();
+        final String accountCodeWithoutBillingInfo = UUID.randomUUID().toString();
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String code) {
+                nbCalls.incrementAndGet();
+                return Futures.immediateFuture(accountCode.equals(code) ? new BillingInfo() : null);
+            }
+        };
+
+        final RecurlyBillingInfoCache cache = new RecurlyBillingInfoCache(asyncClient, 10, 3600);
+
+        final BillingInfo billingInfo = cache.getBillingInfo(accountCode, Priority.NORMAL);
+        Assert.assertNotNull(billingInfo);
+        Assert.assertSame(cache.getBillingInfo(accountCode, Priority.NORMAL), billingInfo);
+        Assert.assertEquals(nbCalls.get(), 1);
+
+        // Missing billing info are cached too
+        Assert.assertNull(cache.getBillingInfo(accountCodeWithoutBillingInfo, Priority.NORMAL));
+        Assert.assertNull(cache.getBillingInfo(accountCodeWithoutBillingInfo, Priority.NORMAL));
+        Assert.assertEquals(nbCalls.get(), 2);
+
+        cache.invalidate(accountCode);
+        Assert.assertNotSame(cache.getBillingInfo(accountCode, Priority.NORMAL), billingInfo);
+        Assert.assertEquals(nbCalls.get(), 3);
+
+        // Refresh always goes to Recurly
+        final BillingInfo refreshedBillingInfo = cache.refreshBillingInfo(accountCode, Priority.NORMAL);
+        Assert.assertEquals(nbCalls.get(), 4);
+        Assert.assertSame(cache.getBillingInfo(accountCode, Priority.NORMAL), refreshedBillingInfo);
+        Assert.assertEquals(nbCalls.get(), 4);
+
+        Assert.assertEquals(cache.getStats().hitCount(), 3);
+        Assert.assertEquals(cache.getStats().missCount(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testNoCaching() throws Exception {
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String code) {
+                nbCalls.incrementAndGet();
+                return Futures.<BillingInfo>immediateFuture(new BillingInfo());
+            }
+        };
+
+        final RecurlyBillingInfoCache cache = new RecurlyBillingInfoCache(asyncClient, 0, 0);
+        cache.getBillingInfo("a", Priority.NORMAL);
+        cache.getBillingInfo("a", Priority.NORMAL);
+        Assert.assertEquals(nbCalls.get(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidationDuringFetch() throws Exception {
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final AtomicReference<RecurlyBillingInfoCache> cacheReference = new AtomicReference<RecurlyBillingInfoCache>();
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String code) {
+                if (nbCalls.incrementAndGet() == 1) {
+                    // The billing information is modified while the first fetch is in flight
+                    cacheReference.get().invalidate(code);
+                }
+                return Futures.<BillingInfo>immediateFuture(new BillingInfo());
+            }
+        };
+
+        final RecurlyBillingInfoCache cache = new RecurlyBillingInfoCache(asyncClient, 10, 3600);
+        cacheReference.set(cache);
+
+        // The result of the first fetch isn't kept...
+        Assert.assertNotNull(cache.refreshBillingInfo("a", Priority.NORMAL));
+        Assert.assertEquals(cache.size(), 0);
+        cache.getBillingInfo("a", Priority.NORMAL);
+        Assert.assertEquals(nbCalls.get(), 2);
+        // ...but the one of the next fetch is
+        cache.getBillingInfo("a", Priority.NORMAL);
+        Assert.assertEquals(nbCalls.get(), 2);
+    }
+}
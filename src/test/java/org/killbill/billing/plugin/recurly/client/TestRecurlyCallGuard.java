@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlyCallGuard {
+
+    @Test(groups = "fast")
+    public void testBulkheadsAreIsolated() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+        final RecurlyCallGuard callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(1000, 1000), metrics, newCircuitBreakerFactory(), 1, 1, 1, 0);
+
+        // A slow search takes up the whole search bulkhead
+        final SettableFuture<String> search = SettableFuture.create();
+        final ListenableFuture<String> searchInFlight = callGuard.callAsync(Priority.LOW, "getAccounts", new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                return search;
+            }
+        });
+        Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.LOW), 0);
+
+        try {
+            callGuard.call(Priority.LOW, "getAccounts", new Callable<String>() {
+                @Override
+                public String call() {
+                    Assert.fail("Should have been rejected");
+                    return null;
+                }
+            });
+            Assert.fail();
+        } catch (final RecurlyUnavailableException e) {
+            Assert.assertEquals(registry.meter(MetricRegistry.name("recurly", "rejected", "bulkhead", "getAccounts")).getCount(), 1);
+        }
+
+        // Payments are unaffected
+        Assert.assertEquals(callGuard.call(Priority.HIGH, "createTransaction", new Callable<String>() {
+            @Override
+            public String call() {
+                return "payment";
+            }
+        }), "payment");
+        Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.HIGH), 1);
+
+        // Room is made once the search completes
+        search.set("accounts");
+        Assert.assertEquals(searchInFlight.get(), "accounts");
+        Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.LOW), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testOpenCircuitBreakerFailsFast() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+        final RecurlyCallGuard callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(1000, 1000), metrics, newCircuitBreakerFactory(), 10, 10, 10, 0);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                callGuard.call(Priority.HIGH, "createTransaction", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        throw new RecurlyApiException(503, "Service Unavailable", null);
+                    }
+                });
+                Assert.fail();
+            } catch (final RecurlyApiException e) {
+                Assert.assertEquals(e.getStatusCode(), 503);
+            }
+        }
+        Assert.assertEquals(callGuard.getCircuitBreaker(Priority.HIGH).getState(), RecurlyCircuitBreaker.State.OPEN);
+
+        // Rejected without reaching Recurly, nor holding on to the bulkhead
+        final ListenableFuture<String> rejected = callGuard.callAsync(Priority.HIGH, "getTransaction", new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                Assert.fail("Should have been rejected");
+                return null;
+            }
+        });
+        try {
+            rejected.get();
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RecurlyUnavailableException);
+        }
+        Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.HIGH), 10);
+        Assert.assertEquals(registry.meter(MetricRegistry.name("recurly", "rejected", "circuitBreaker", "getTransaction")).getCount(), 1);
+        Assert.assertEquals(registry.meter(MetricRegistry.name("recurly", "calls", "createTransaction")).getCount(), 2);
+        Assert.assertEquals(registry.meter(MetricRegistry.name("recurly", "calls", "getTransaction")).getCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCancelledCallsReleaseTheirPermits() throws Exception {
+        final RecurlyCallGuard callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()), newCircuitBreakerFactory(), 10, 10, 1, 0);
+
+        for (int i = 0; i < 2; i++) {
+            final ListenableFuture<String> page = callGuard.callAsync(Priority.LOW, "getNextPage", new Callable<ListenableFuture<String>>() {
+                @Override
+                public ListenableFuture<String> call() {
+                    return SettableFuture.create();
+                }
+            });
+            Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.LOW), 0);
+
+            // e.g. page fetched ahead of a closed iterator
+            page.cancel(true);
+            Assert.assertEquals(callGuard.getNbAvailableCalls(Priority.LOW), 1);
+        }
+        // Not Recurly's fault
+        Assert.assertEquals(callGuard.getCircuitBreaker(Priority.LOW).getState(), RecurlyCircuitBreaker.State.CLOSED);
+    }
+
+    @Test(groups = "fast")
+    public void testFailingSearchesDontOpenThePaymentCircuitBreaker() throws Exception {
+        final RecurlyCallGuard callGuard = new RecurlyCallGuard(new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()), newCircuitBreakerFactory(), 10, 10, 10, 0);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                callGuard.call(Priority.LOW, "getAccounts", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        throw new RecurlyApiException(503, "Service Unavailable", null);
+                    }
+                });
+                Assert.fail();
+            } catch (final RecurlyApiException e) {
+                Assert.assertEquals(e.getStatusCode(), 503);
+            }
+        }
+        Assert.assertEquals(callGuard.getCircuitBreaker(Priority.LOW).getState(), RecurlyCircuitBreaker.State.OPEN);
+
+        // Payments still go through
+        Assert.assertEquals(callGuard.getCircuitBreaker(Priority.HIGH).getState(), RecurlyCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(callGuard.call(Priority.HIGH, "createTransaction", new Callable<String>() {
+            @Override
+            public String call() {
+                return "payment";
+            }
+        }), "payment");
+    }
+
+    // Circuit opened by 2 failed calls out of 2
+    private Supplier<RecurlyCircuitBreaker> newCircuitBreakerFactory() {
+        return new Supplier<RecurlyCircuitBreaker>() {
+            @Override
+            public RecurlyCircuitBreaker get() {
+                return new RecurlyCircuitBreaker(0.5, 1, 10000, 2, 2, 30, 1);
+            }
+        };
+    }
+}
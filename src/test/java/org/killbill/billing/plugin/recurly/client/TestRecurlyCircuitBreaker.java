@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyCircuitBreaker.State;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.TransactionErrorException;
+import com.ning.billing.recurly.model.Errors;
+
+import com.google.common.base.Ticker;
+
+public class TestRecurlyCircuitBreaker {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(20);
+
+    private final AtomicLong nanos = new AtomicLong(0);
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testOpensOnFailureRate() throws Exception {
+        final RecurlyCircuitBreaker circuitBreaker = new RecurlyCircuitBreaker(0.5, 1, 10000, 10, 6, 30, 2, ticker);
+
+        // Not enough calls yet
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        // Declines and client errors don't count as failures
+        circuitBreaker.onError(FAST, new TransactionErrorException(new Errors()));
+        circuitBreaker.onError(FAST, new RecurlyApiException(404, "Not Found", null));
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 0.6);
+
+        circuitBreaker.onError(FAST, new RecurlyApiException(503, "Service Unavailable", null));
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+    }
+
+    @Test(groups = "fast")
+    public void testOpensOnSlowCallRate() throws Exception {
+        final RecurlyCircuitBreaker circuitBreaker = new RecurlyCircuitBreaker(1, 0.5, 10000, 4, 4, 30, 2, ticker);
+
+        circuitBreaker.onSuccess(SLOW);
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onSuccess(FAST);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        // The oldest (slow) call is evicted from the window
+        circuitBreaker.onSuccess(SLOW);
+        Assert.assertEquals(circuitBreaker.getSlowCallRate(), 0.25);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        circuitBreaker.onSuccess(SLOW);
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testHalfOpenProbing() throws Exception {
+        final RecurlyCircuitBreaker circuitBreaker = new RecurlyCircuitBreaker(0.5, 1, 10000, 2, 2, 30, 2, ticker);
+        open(circuitBreaker);
+
+        // Calls are rejected until the open period is over
+        advance(29);
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+        advance(1);
+        Assert.assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+
+        // Only the probes are let through
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        // A failed probe re-opens the circuit
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        // Probe permissions given back are available to other callers
+        advance(30);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.releasePermission();
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+
+        // All probes succeeded
+        circuitBreaker.onSuccess(FAST);
+        Assert.assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+        circuitBreaker.onSuccess(FAST);
+        Assert.assertEquals(circuitBreaker.getState(), State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 0.0);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+    }
+
+    private void open(final RecurlyCircuitBreaker circuitBreaker) {
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        circuitBreaker.onError(FAST, new RuntimeException("Timeout"));
+        Assert.assertEquals(circuitBreaker.getState(), State.OPEN);
+    }
+
+    private void advance(final long seconds) {
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestRecurlyMetrics {
+
+    public interface Api {
+
+        String call(int nbRecurlyCalls);
+
+        void fail(int statusCode);
+    }
+
+    @Test(groups = "fast")
+    public void testInstrumentation() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+        final Api api = metrics.instrument(Api.class, new Api() {
+            @Override
+            public String call(final int nbRecurlyCalls) {
+                Assert.assertEquals(registry.counter("operations.call.inFlight").getCount(), 1);
+                for (int i = 0; i < nbRecurlyCalls; i++) {
+                    metrics.recurlyCall("getTransaction");
+                }
+                return "ok";
+            }
+
+            @Override
+            public void fail(final int statusCode) {
+                metrics.recurlyCall("getTransaction");
+                throw new RecurlyApiException(statusCode, "Failure", null);
+            }
+        });
+
+        Assert.assertEquals(api.call(3), "ok");
+        Assert.assertEquals(api.call(0), "ok");
+        try {
+            api.fail(404);
+            Assert.fail();
+        } catch (final RecurlyApiException e) {
+            Assert.assertEquals(e.getStatusCode(), 404);
+        }
+
+        Assert.assertEquals(registry.timer("operations.call.latency").getCount(), 2);
+        Assert.assertEquals(registry.counter("operations.call.inFlight").getCount(), 0);
+        Assert.assertEquals(registry.histogram("operations.call.recurlyCalls").getSnapshot().getMax(), 3);
+        Assert.assertEquals(registry.counter("operations.call.errors").getCount(), 0);
+
+        Assert.assertEquals(registry.timer("operations.fail.latency").getCount(), 1);
+        Assert.assertEquals(registry.counter("operations.fail.errors").getCount(), 1);
+        Assert.assertEquals(registry.counter("recurly.errors.http404").getCount(), 1);
+
+        Assert.assertEquals(registry.meter("recurly.calls.getTransaction").getCount(), 4);
+
+        // Calls outside of an instrumented operation are still counted
+        metrics.recurlyCall("getTransaction");
+        Assert.assertEquals(registry.meter("recurly.calls.getTransaction").getCount(), 5);
+        Assert.assertEquals(registry.histogram("operations.call.recurlyCalls").getCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testRecurlyCallsOnOtherThreads() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Runnable recurlyCall = new Runnable() {
+            @Override
+            public void run() {
+                metrics.recurlyCall("getBillingInfo");
+            }
+        };
+        final Api api = metrics.instrument(Api.class, new Api() {
+            @Override
+            public String call(final int nbRecurlyCalls) {
+                try {
+                    // e.g. search: tasks submitted by the caller
+                    executor.submit(metrics.inCurrentOperation(Executors.callable(recurlyCall))).get();
+
+                    // e.g. pages fetched ahead: tasks submitted from threads which don't know about the caller
+                    final Executor prefetchExecutor = metrics.inCurrentOperation(executor);
+                    final CountDownLatch prefetched = new CountDownLatch(1);
+                    final Thread callbackThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            prefetchExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    recurlyCall.run();
+                                    prefetched.countDown();
+                                }
+                            });
+                        }
+                    });
+                    callbackThread.start();
+                    Assert.assertTrue(prefetched.await(5, TimeUnit.SECONDS));
+
+                    // Not on behalf of the caller
+                    executor.submit(recurlyCall).get();
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return "ok";
+            }
+
+            @Override
+            public void fail(final int statusCode) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(api.call(0), "ok");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(registry.histogram("operations.call.recurlyCalls").getSnapshot().getMax(), 2);
+        Assert.assertEquals(registry.meter("recurly.calls.getBillingInfo").getCount(), 3);
+    }
+}
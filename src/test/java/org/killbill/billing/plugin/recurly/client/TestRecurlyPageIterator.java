@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlyPageIterator {
+
+    private static final int NB_PAGES = 4;
+
+    @Test(groups = "fast")
+    public void testPrefetchIsBounded() throws Exception {
+        final List<SettableFuture<RecurlyPage<Accounts>>> requested = new LinkedList<SettableFuture<RecurlyPage<Accounts>>>();
+        final RecurlyAsyncClient asyncClient = new TestRecurlyAsyncClient() {
+            @Override
+            public <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getNextPage(final Priority priority, final RecurlyPage<T> page, final Class<T> clazz) {
+                Assert.assertEquals(priority, Priority.LOW);
+                final SettableFuture<RecurlyPage<Accounts>> future = SettableFuture.<RecurlyPage<Accounts>>create();
+                requested.add(future);
+                return (ListenableFuture) future;
+            }
+        };
+
+        final SettableFuture<RecurlyPage<Accounts>> firstPage = SettableFuture.<RecurlyPage<Accounts>>create();
+        final RecurlyPageIterator<Accounts> iterator = new RecurlyPageIterator<Accounts>(asyncClient, Priority.LOW, Accounts.class, firstPage, 2, MoreExecutors.sameThreadExecutor());
+        Assert.assertEquals(requested.size(), 0);
+
+        // The second page is requested as soon as the first one is received
+        firstPage.set(createPage(0));
+        Assert.assertEquals(requested.size(), 1);
+        Assert.assertEquals(iterator.getNbPagesRequested(), 2);
+
+        // The buffer is full
+        requested.get(0).set(createPage(1));
+        Assert.assertEquals(requested.size(), 1);
+
+        // Consuming a page makes room for the third one
+        Assert.assertEquals(iterator.next().get(0).getAccountCode(), "account-0");
+        Assert.assertEquals(requested.size(), 2);
+        Assert.assertEquals(iterator.getNbPagesRequested(), 2);
+
+        // Early termination: the pages requested ahead are dropped, and their requests cancelled
+        iterator.close();
+        Assert.assertEquals(iterator.getNbPagesRequested(), 0);
+        Assert.assertTrue(requested.get(1).isCancelled());
+        requested.get(1).set(createPage(2));
+        Assert.assertEquals(requested.size(), 2);
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test(groups = "fast")
+    public void testWalkAllPages() throws Exception {
+        final List<String> requestedUrls = new LinkedList<String>();
+        final RecurlyAsyncClient asyncClient = new TestRecurlyAsyncClient() {
+            @Override
+            public <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getNextPage(final Priority priority, final RecurlyPage<T> page, final Class<T> clazz) {
+                requestedUrls.add(page.getNextUrl());
+                final int pageNumber = Integer.valueOf(page.getNextUrl());
+                return (ListenableFuture) Futures.immediateFuture(createPage(pageNumber));
+            }
+        };
+
+        final RecurlyPageIterator<Accounts> iterator = new RecurlyPageIterator<Accounts>(asyncClient, Priority.LOW, Accounts.class, Futures.immediateFuture(createPage(0)), 2, MoreExecutors.sameThreadExecutor());
+        final List<String> accountCodes = new LinkedList<String>();
+        while (iterator.hasNext()) {
+            for (final Account account : iterator.next()) {
+                accountCodes.add(account.getAccountCode());
+            }
+        }
+
+        Assert.assertEquals(accountCodes, ImmutableList.<String>of("account-0", "account-1", "account-2", "account-3"));
+        Assert.assertEquals(requestedUrls, ImmutableList.<String>of("1", "2", "3"));
+        Assert.assertEquals(iterator.getNbPagesRequested(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailureIsSurfacedWhenReachingThePage() throws Exception {
+        final RecurlyAsyncClient asyncClient = new TestRecurlyAsyncClient() {
+            @Override
+            public <T extends RecurlyObjects> ListenableFuture<RecurlyPage<T>> getNextPage(final Priority priority, final RecurlyPage<T> page, final Class<T> clazz) {
+                return Futures.<RecurlyPage<T>>immediateFailedFuture(new RecurlyApiException(503, "Service Unavailable", null));
+            }
+        };
+
+        final RecurlyPageIterator<Accounts> iterator = new RecurlyPageIterator<Accounts>(asyncClient, Priority.LOW, Accounts.class, Futures.immediateFuture(createPage(0)), 2, MoreExecutors.sameThreadExecutor());
+        Assert.assertEquals(iterator.next().size(), 1);
+        try {
+            iterator.next();
+            Assert.fail();
+        } catch (final RecurlyApiException e) {
+            Assert.assertEquals(e.getStatusCode(), 503);
+        }
+    }
+
+    private static RecurlyPage<Accounts> createPage(final int pageNumber) {
+        final Account account = new Account();
+        account.setAccountCode("account-" + pageNumber);
+        final Accounts accounts = new Accounts();
+        accounts.add(account);
+        return new RecurlyPage<Accounts>(accounts, pageNumber + 1 < NB_PAGES ? String.valueOf(pageNumber + 1) : null);
+    }
+
+    private static class TestRecurlyAsyncClient extends RecurlyAsyncClient {
+
+        private TestRecurlyAsyncClient() {
+            super(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 50, null, new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()));
+        }
+    }
+}
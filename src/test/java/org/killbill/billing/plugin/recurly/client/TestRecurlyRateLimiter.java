@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class TestRecurlyRateLimiter {
+
+    private final AtomicLong nanos = new AtomicLong(0);
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    @Test(groups = "fast")
+    public void testTokenBucket() throws Exception {
+        final RecurlyRateLimiter rateLimiter = new RecurlyRateLimiter(2, 3, ticker);
+
+        // Initial burst
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(rateLimiter.tryAcquire(Priority.LOW));
+        }
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.HIGH));
+
+        // Two permits per second
+        advance(500);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.LOW));
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.LOW));
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptiveRate() throws Exception {
+        final RecurlyRateLimiter rateLimiter = new RecurlyRateLimiter(10, 1, ticker);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.NORMAL));
+
+        // Plenty of quota left
+        rateLimiter.update(1000, 900, 60);
+        Assert.assertEquals(rateLimiter.getCurrentPermitsPerSecond(), 10.0);
+
+        // 60 calls left for the next 120 seconds
+        rateLimiter.update(1000, 60, 120);
+        Assert.assertEquals(rateLimiter.getCurrentPermitsPerSecond(), 0.5);
+        advance(1000);
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.NORMAL));
+        advance(1000);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.NORMAL));
+
+        // Quota exhausted: pause until the window is reset
+        rateLimiter.update(1000, 0, 5);
+        advance(4000);
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.HIGH));
+        advance(1000);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.HIGH));
+
+        // Back to normal
+        rateLimiter.update(1000, 1000, 60);
+        Assert.assertEquals(rateLimiter.getCurrentPermitsPerSecond(), 10.0);
+    }
+
+    @Test(groups = "fast")
+    public void testPriorityLanes() throws Exception {
+        final RecurlyRateLimiter rateLimiter = new RecurlyRateLimiter(0.001, 1, ticker);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.LOW));
+
+        final Thread payment = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rateLimiter.acquire(Priority.HIGH);
+            }
+        });
+        payment.start();
+        while (rateLimiter.getNbWaiters(Priority.HIGH) == 0) {
+            Thread.sleep(10);
+        }
+
+        // A permit is available, but reserved for the payment
+        advance(1000 * 1000);
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.LOW));
+        Assert.assertFalse(rateLimiter.tryAcquire(Priority.NORMAL));
+
+        // Let the payment through
+        rateLimiter.update(1000, 1000, 60);
+        payment.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(payment.isAlive());
+        Assert.assertEquals(rateLimiter.getNbWaiters(Priority.HIGH), 0);
+
+        advance(1000 * 1000);
+        Assert.assertTrue(rateLimiter.tryAcquire(Priority.LOW));
+    }
+
+    private void advance(final long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
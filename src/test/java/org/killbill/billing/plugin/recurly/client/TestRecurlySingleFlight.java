@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestRecurlySingleFlight {
+
+    @Test(groups = "fast")
+    public void testBlockingCallsAreCollapsed() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlySingleFlight singleFlight = new RecurlySingleFlight(new RecurlyMetrics(registry));
+        final CountDownLatch callStarted = new CountDownLatch(1);
+        final CountDownLatch callReleased = new CountDownLatch(1);
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                nbCalls.incrementAndGet();
+                callStarted.countDown();
+                callReleased.await();
+                return "billingInfo";
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.execute(Priority.NORMAL, "getBillingInfo", "account", loader);
+                }
+            });
+            Assert.assertTrue(callStarted.await(5, TimeUnit.SECONDS));
+
+            final Future<String> second = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.execute(Priority.NORMAL, "getBillingInfo", "account", loader);
+                }
+            });
+            // Wait for the second caller to join the call in flight
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (registry.meter("recurly.coalesced.getBillingInfo").getCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            callReleased.countDown();
+            Assert.assertEquals(first.get(5, TimeUnit.SECONDS), "billingInfo");
+            Assert.assertEquals(second.get(5, TimeUnit.SECONDS), "billingInfo");
+            Assert.assertEquals(nbCalls.get(), 1);
+            Assert.assertEquals(registry.meter("recurly.coalesced.getBillingInfo").getCount(), 1);
+            Assert.assertEquals(singleFlight.getNbCallsInFlight(), 0);
+
+            // Nothing is cached
+            Assert.assertEquals(singleFlight.execute(Priority.NORMAL, "getBillingInfo", "account", loader), "billingInfo");
+            Assert.assertEquals(nbCalls.get(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncCallsAreCollapsed() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlySingleFlight singleFlight = new RecurlySingleFlight(new RecurlyMetrics(registry));
+        final SettableFuture<String> response = SettableFuture.<String>create();
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final Callable<ListenableFuture<String>> loader = new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                nbCalls.incrementAndGet();
+                return response;
+            }
+        };
+
+        final ListenableFuture<String> first = singleFlight.executeAsync(Priority.NORMAL, "getAccountInvoices", "/accounts/1/invoices", loader);
+        final ListenableFuture<String> second = singleFlight.executeAsync(Priority.NORMAL, "getAccountInvoices", "/accounts/1/invoices", loader);
+        final ListenableFuture<String> cancelled = singleFlight.executeAsync(Priority.NORMAL, "getAccountInvoices", "/accounts/1/invoices", loader);
+        // Different lane
+        final ListenableFuture<String> background = singleFlight.executeAsync(Priority.LOW, "getAccountInvoices", "/accounts/1/invoices", loader);
+        Assert.assertEquals(nbCalls.get(), 2);
+        Assert.assertEquals(registry.meter("recurly.coalesced.getAccountInvoices").getCount(), 2);
+
+        // Cancelling one caller doesn't affect the others
+        cancelled.cancel(true);
+        response.set("invoices");
+        Assert.assertEquals(first.get(), "invoices");
+        Assert.assertEquals(second.get(), "invoices");
+        Assert.assertEquals(background.get(), "invoices");
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertEquals(singleFlight.getNbCallsInFlight(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailuresAreShared() throws Exception {
+        final RecurlySingleFlight singleFlight = new RecurlySingleFlight(new RecurlyMetrics(new MetricRegistry()));
+        final SettableFuture<String> response = SettableFuture.<String>create();
+        final Callable<ListenableFuture<String>> loader = new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                return response;
+            }
+        };
+
+        final ListenableFuture<String> first = singleFlight.executeAsync(Priority.NORMAL, "getTransaction", "uuid", loader);
+        final ListenableFuture<String> second = singleFlight.executeAsync(Priority.NORMAL, "getTransaction", "uuid", loader);
+        response.setException(new IllegalStateException("Recurly unavailable"));
+
+        for (final ListenableFuture<String> future : new ListenableFuture[]{first, second}) {
+            try {
+                RecurlyFutures.get(future);
+                Assert.fail();
+            } catch (final IllegalStateException e) {
+                Assert.assertEquals(e.getMessage(), "Recurly unavailable");
+            }
+        }
+        Assert.assertEquals(singleFlight.getNbCallsInFlight(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCallIsCancelledWithItsLastCaller() throws Exception {
+        final RecurlySingleFlight singleFlight = new RecurlySingleFlight(new RecurlyMetrics(new MetricRegistry()));
+        final SettableFuture<String> response = SettableFuture.<String>create();
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final Callable<ListenableFuture<String>> loader = new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                nbCalls.incrementAndGet();
+                return response;
+            }
+        };
+
+        final ListenableFuture<String> first = singleFlight.executeAsync(Priority.LOW, "getNextPage", "/accounts?cursor=1", loader);
+        final ListenableFuture<String> second = singleFlight.executeAsync(Priority.LOW, "getNextPage", "/accounts?cursor=1", loader);
+        first.cancel(true);
+        Assert.assertFalse(response.isCancelled());
+        second.cancel(true);
+        Assert.assertTrue(response.isCancelled());
+        Assert.assertEquals(singleFlight.getNbCallsInFlight(), 0);
+
+        // Not shared with the next caller
+        singleFlight.executeAsync(Priority.LOW, "getNextPage", "/accounts?cursor=1", loader);
+        Assert.assertEquals(nbCalls.get(), 2);
+    }
+}
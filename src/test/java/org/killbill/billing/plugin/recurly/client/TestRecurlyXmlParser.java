@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.Transactions;
+
+public class TestRecurlyXmlParser {
+
+    private static final String TRANSACTION = "<transaction href=\"https://api.recurly.com/v2/transactions/a13acd8fe4294916b79aec87b7ea441f\" type=\"credit_card\">" +
+                                              "<account href=\"https://api.recurly.com/v2/accounts/1\"/>" +
+                                              "<invoice href=\"https://api.recurly.com/v2/invoices/1108\"/>" +
+                                              "<subscription href=\"https://api.recurly.com/v2/subscriptions/17caaca1716f33572edc8146e0aaefde\"/>" +
+                                              "<uuid>a13acd8fe4294916b79aec87b7ea441f</uuid>" +
+                                              "<action>purchase</action>" +
+                                              "<amount_in_cents type=\"integer\">1000</amount_in_cents>" +
+                                              "<currency>USD</currency>" +
+                                              "<status>success</status>" +
+                                              "<description>bc7c4d0e-3c0b-4b7a-9a4d-5b9c4c1f2f29</description>" +
+                                              "<reference nil=\"nil\"></reference>" +
+                                              "<test type=\"boolean\">true</test>" +
+                                              "<voidable type=\"boolean\">true</voidable>" +
+                                              "<refundable type=\"boolean\">false</refundable>" +
+                                              "<cvv_result code=\"\" nil=\"nil\"></cvv_result>" +
+                                              "<created_at type=\"datetime\">2014-06-02T10:00:00Z</created_at>" +
+                                              "<updated_at type=\"datetime\">2014-06-05T08:30:00Z</updated_at>" +
+                                              "<details><account><account_code>2</account_code><billing_info type=\"credit_card\"><first_name>Verena</first_name></billing_info></account></details>" +
+                                              "</transaction>";
+
+    private final RecurlyXmlParser parser = new RecurlyXmlParser();
+
+    @Test(groups = "fast")
+    public void testAccounts() throws Exception {
+        final Accounts accounts = parser.parsePage(toInputStream("<accounts type=\"array\">" +
+                                                                 "<account href=\"https://api.recurly.com/v2/accounts/1\">" +
+                                                                 "<adjustments href=\"https://api.recurly.com/v2/accounts/1/adjustments\"/>" +
+                                                                 "<account_code>1</account_code>" +
+                                                                 "<state>active</state>" +
+                                                                 "<address><address1>123 Main St.</address1><city>San Francisco</city></address>" +
+                                                                 "</account>" +
+                                                                 "<account href=\"https://api.recurly.com/v2/accounts/2\">" +
+                                                                 "<account_code>2</account_code>" +
+                                                                 "</account>" +
+                                                                 "</accounts>"), Accounts.class);
+
+        Assert.assertEquals(accounts.size(), 2);
+        Assert.assertEquals(accounts.get(0).getAccountCode(), "1");
+        Assert.assertEquals(accounts.get(0).getHref(), "https://api.recurly.com/v2/accounts/1");
+        Assert.assertEquals(accounts.get(1).getAccountCode(), "2");
+    }
+
+    @Test(groups = "fast")
+    public void testInvoices() throws Exception {
+        final Invoices invoices = parser.parsePage(toInputStream("<invoices type=\"array\">" +
+                                                                 "<invoice href=\"https://api.recurly.com/v2/invoices/1108\">" +
+                                                                 "<account href=\"https://api.recurly.com/v2/accounts/1\"/>" +
+                                                                 "<uuid>421f7b7d414e4c6792938e7c49d552e9</uuid>" +
+                                                                 "<state>collected</state>" +
+                                                                 "<invoice_number type=\"integer\">1108</invoice_number>" +
+                                                                 "<created_at type=\"datetime\">2014-06-02T10:00:00Z</created_at>" +
+                                                                 "<line_items type=\"array\">" +
+                                                                 "<adjustment href=\"https://api.recurly.com/v2/adjustments/626db120a84102b1809909071c701c60\" type=\"charge\">" +
+                                                                 "<account href=\"https://api.recurly.com/v2/accounts/1\"/>" +
+                                                                 "<uuid>626db120a84102b1809909071c701c60</uuid>" +
+                                                                 "<description>bc7c4d0e-3c0b-4b7a-9a4d-5b9c4c1f2f29</description>" +
+                                                                 "<unit_amount_in_cents type=\"integer\">1000</unit_amount_in_cents>" +
+                                                                 "<tax_details type=\"array\"><tax_detail><name>california</name></tax_detail></tax_details>" +
+                                                                 "</adjustment>" +
+                                                                 "</line_items>" +
+                                                                 "<transactions type=\"array\">" + TRANSACTION + "</transactions>" +
+                                                                 "</invoice>" +
+                                                                 "</invoices>"), Invoices.class);
+
+        Assert.assertEquals(invoices.size(), 1);
+        final Invoice invoice = invoices.get(0);
+        Assert.assertEquals(invoice.getHref(), "https://api.recurly.com/v2/invoices/1108");
+        Assert.assertEquals(invoice.getUuid(), "421f7b7d414e4c6792938e7c49d552e9");
+        Assert.assertEquals(invoice.getInvoiceNumber(), (Integer) 1108);
+        Assert.assertEquals(invoice.getCreatedAt(), new DateTime(2014, 6, 2, 10, 0, 0, DateTimeZone.UTC));
+        Assert.assertEquals(invoice.getLineItems().size(), 1);
+        Assert.assertEquals(invoice.getLineItems().get(0).getDescription(), "bc7c4d0e-3c0b-4b7a-9a4d-5b9c4c1f2f29");
+        Assert.assertEquals(invoice.getLineItems().get(0).getHref(), "https://api.recurly.com/v2/adjustments/626db120a84102b1809909071c701c60");
+        Assert.assertEquals(invoice.getTransactions().size(), 1);
+        checkTransaction(invoice.getTransactions().get(0));
+    }
+
+    @Test(groups = "fast")
+    public void testTransactions() throws Exception {
+        final Transactions transactions = parser.parsePage(toInputStream("<transactions type=\"array\">" + TRANSACTION + "</transactions>"), Transactions.class);
+
+        Assert.assertEquals(transactions.size(), 1);
+        checkTransaction(transactions.get(0));
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyPage() throws Exception {
+        Assert.assertTrue(parser.parsePage(toInputStream("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<accounts type=\"array\">\n</accounts>"), Accounts.class).isEmpty());
+    }
+
+    private void checkTransaction(final Transaction transaction) {
+        Assert.assertEquals(transaction.getUuid(), "a13acd8fe4294916b79aec87b7ea441f");
+        Assert.assertEquals(transaction.getAction(), "purchase");
+        Assert.assertEquals(transaction.getAmountInCents(), (Integer) 1000);
+        Assert.assertEquals(transaction.getCurrency(), "USD");
+        Assert.assertEquals(transaction.getStatus(), "success");
+        Assert.assertEquals(transaction.getDescription(), "bc7c4d0e-3c0b-4b7a-9a4d-5b9c4c1f2f29");
+        Assert.assertNull(transaction.getReference());
+        Assert.assertTrue(transaction.getVoidable());
+        Assert.assertFalse(transaction.getRefundable());
+        Assert.assertEquals(transaction.getCreatedAt(), new DateTime(2014, 6, 2, 10, 0, 0, DateTimeZone.UTC));
+        // Refunded or voided since its creation
+        Assert.assertEquals(RecurlyObjectFactory.updatedAtFromTransaction(transaction), new DateTime(2014, 6, 5, 8, 30, 0, DateTimeZone.UTC));
+        Assert.assertEquals(transaction.getInvoice().getHref(), "https://api.recurly.com/v2/invoices/1108");
+        // Only linked, the account in the transaction details is skipped
+        Assert.assertEquals(RecurlyObjectFactory.accountCodeFromTransaction(transaction), "1");
+    }
+
+    private InputStream toInputStream(final String xml) {
+        return new ByteArrayInputStream(xml.getBytes());
+    }
+}
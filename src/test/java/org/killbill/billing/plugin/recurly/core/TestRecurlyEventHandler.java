@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.BillingInfo;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class TestRecurlyEventHandler {
+
+    @Test(groups = "fast")
+    public void testWarmingAndInvalidation() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final MetricRegistry registry = new MetricRegistry();
+        final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String accountCode) {
+                nbCalls.incrementAndGet();
+                return Futures.<BillingInfo>immediateFuture(new BillingInfo());
+            }
+        };
+        final RecurlyBillingInfoCache billingInfoCache = new RecurlyBillingInfoCache(asyncClient, 10, 3600);
+        final RecurlyEventHandler eventHandler = new RecurlyEventHandler(billingInfoCache, null, null, metrics, MoreExecutors.sameThreadExecutor());
+
+        // Irrelevant events are ignored
+        eventHandler.handleKillbillEvent(new TestEvent(ExtBusEventType.TAG_CREATION, kbAccountId));
+        Assert.assertEquals(nbCalls.get(), 0);
+
+        // The billing information is retrieved when the account is invoiced...
+        eventHandler.handleKillbillEvent(new TestEvent(ExtBusEventType.INVOICE_CREATION, kbAccountId));
+        Assert.assertEquals(nbCalls.get(), 1);
+        // ...so that the payment run finds it in the cache
+        final BillingInfo billingInfo = billingInfoCache.getBillingInfo(kbAccountId.toString(), Priority.NORMAL);
+        Assert.assertNotNull(billingInfo);
+        Assert.assertEquals(nbCalls.get(), 1);
+
+        // Account changes replace the cached entry
+        eventHandler.handleKillbillEvent(new TestEvent(ExtBusEventType.ACCOUNT_CHANGE, kbAccountId));
+        Assert.assertEquals(nbCalls.get(), 2);
+        Assert.assertNotSame(billingInfoCache.getBillingInfo(kbAccountId.toString(), Priority.NORMAL), billingInfo);
+        Assert.assertEquals(nbCalls.get(), 2);
+
+        Assert.assertEquals(registry.meter(MetricRegistry.name("events", "INVOICE_CREATION")).getCount(), 1);
+        Assert.assertEquals(registry.meter(MetricRegistry.name("events", "ACCOUNT_CHANGE")).getCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testChangeDuringWarming() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final AtomicInteger nbCalls = new AtomicInteger(0);
+        final AtomicReference<RecurlyEventHandler> eventHandlerReference = new AtomicReference<RecurlyEventHandler>();
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String accountCode) {
+                if (nbCalls.incrementAndGet() == 1) {
+                    // The account changes while its billing information is being fetched
+                    eventHandlerReference.get().handleKillbillEvent(new TestEvent(ExtBusEventType.ACCOUNT_CHANGE, kbAccountId));
+                }
+                return Futures.<BillingInfo>immediateFuture(new BillingInfo());
+            }
+        };
+        final RecurlyBillingInfoCache billingInfoCache = new RecurlyBillingInfoCache(asyncClient, 10, 3600);
+        final RecurlyEventHandler eventHandler = new RecurlyEventHandler(billingInfoCache, null, null, metrics, MoreExecutors.sameThreadExecutor());
+        eventHandlerReference.set(eventHandler);
+
+        eventHandler.handleKillbillEvent(new TestEvent(ExtBusEventType.INVOICE_CREATION, kbAccountId));
+        // Warmed again after the change
+        Assert.assertEquals(nbCalls.get(), 2);
+        Assert.assertNotNull(billingInfoCache.getBillingInfo(kbAccountId.toString(), Priority.NORMAL));
+        Assert.assertEquals(nbCalls.get(), 2);
+    }
+
+    private static final class TestEvent implements ExtBusEvent {
+
+        private final ExtBusEventType eventType;
+        private final UUID accountId;
+
+        private TestEvent(final ExtBusEventType eventType, final UUID accountId) {
+            this.eventType = eventType;
+            this.accountId = accountId;
+        }
+
+        @Override
+        public ExtBusEventType getEventType() {
+            return eventType;
+        }
+
+        @Override
+        public ObjectType getObjectType() {
+            return ObjectType.ACCOUNT;
+        }
+
+        @Override
+        public UUID getObjectId() {
+            return accountId;
+        }
+
+        @Override
+        public UUID getAccountId() {
+            return accountId;
+        }
+
+        @Override
+        public UUID getTenantId() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Transaction;
+
+public class TestRecurlyNotificationParser {
+
+    private final RecurlyNotificationParser parser = new RecurlyNotificationParser();
+
+    @Test(groups = "fast")
+    public void testPaymentNotification() throws Exception {
+        final RecurlyNotification notification = parse("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                       "<successful_payment_notification>\n" +
+                                                       "  <account>\n" +
+                                                       "    <account_code>1</account_code>\n" +
+                                                       "    <username nil=\"true\"></username>\n" +
+                                                       "    <email>verena@example.com</email>\n" +
+                                                       "  </account>\n" +
+                                                       "  <transaction>\n" +
+                                                       "    <id>a5143c1d3a6f4a8287d0e2cc1d4c0427</id>\n" +
+                                                       "    <invoice_id>8fjk3sd7j90s0789k</invoice_id>\n" +
+                                                       "    <action>purchase</action>\n" +
+                                                       "    <date type=\"datetime\">2009-11-22T13:10:38Z</date>\n" +
+                                                       "    <amount_in_cents type=\"integer\">1000</amount_in_cents>\n" +
+                                                       "    <currency>USD</currency>\n" +
+                                                       "    <status>success</status>\n" +
+                                                       "    <message>Bogus Gateway: Forced success</message>\n" +
+                                                       "    <reference nil=\"true\"></reference>\n" +
+                                                       "    <source>subscription</source>\n" +
+                                                       "    <cvv_result code=\"\" nil=\"true\"></cvv_result>\n" +
+                                                       "    <avs_result code=\"\" nil=\"true\"></avs_result>\n" +
+                                                       "    <test type=\"boolean\">true</test>\n" +
+                                                       "    <voidable type=\"boolean\">true</voidable>\n" +
+                                                       "    <refundable type=\"boolean\">true</refundable>\n" +
+                                                       "    <details><nested><account_code>2</account_code></nested></details>\n" +
+                                                       "  </transaction>\n" +
+                                                       "</successful_payment_notification>");
+
+        Assert.assertEquals(notification.getName(), RecurlyNotification.SUCCESSFUL_PAYMENT);
+        Assert.assertEquals(notification.getAccountCode(), "1");
+        Assert.assertTrue(notification.isTransactionUpdate());
+        Assert.assertFalse(notification.isBillingInfoUpdate());
+
+        final Transaction transaction = notification.getTransaction();
+        Assert.assertEquals(transaction.getUuid(), "a5143c1d3a6f4a8287d0e2cc1d4c0427");
+        Assert.assertEquals(transaction.getAction(), "purchase");
+        Assert.assertEquals(transaction.getAmountInCents(), (Integer) 1000);
+        Assert.assertEquals(transaction.getCurrency(), "USD");
+        Assert.assertEquals(transaction.getStatus(), "success");
+        Assert.assertNull(transaction.getReference());
+        Assert.assertEquals(transaction.getCreatedAt(), new DateTime(2009, 11, 22, 13, 10, 38, DateTimeZone.UTC));
+        Assert.assertTrue(transaction.getRefundable());
+        Assert.assertTrue(transaction.getVoidable());
+        // Nested elements are skipped
+        Assert.assertEquals(transaction.getAccount().getAccountCode(), "1");
+    }
+
+    @Test(groups = "fast")
+    public void testBillingInfoNotification() throws Exception {
+        final RecurlyNotification notification = parse("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                       "<billing_info_updated_notification>\n" +
+                                                       "  <account>\n" +
+                                                       "    <account_code>1</account_code>\n" +
+                                                       "    <company_name nil=\"true\"></company_name>\n" +
+                                                       "  </account>\n" +
+                                                       "</billing_info_updated_notification>");
+
+        Assert.assertEquals(notification.getName(), RecurlyNotification.BILLING_INFO_UPDATED);
+        Assert.assertEquals(notification.getAccountCode(), "1");
+        Assert.assertNull(notification.getTransaction());
+        Assert.assertTrue(notification.isBillingInfoUpdate());
+        Assert.assertFalse(notification.isTransactionUpdate());
+    }
+
+    @Test(groups = "fast", expectedExceptions = XMLStreamException.class)
+    public void testExternalEntitiesAreRejected() throws Exception {
+        parse("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+              "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>\n" +
+              "<billing_info_updated_notification><account><account_code>&xxe;</account_code></account></billing_info_updated_notification>");
+    }
+
+    private RecurlyNotification parse(final String xml) throws XMLStreamException {
+        final InputStream input = new ByteArrayInputStream(xml.getBytes());
+        return parser.parse(input);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.core;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.killbill.billing.plugin.recurly.dao.RecurlyDao;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Transaction;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TestRecurlyNotificationProcessor {
+
+    @Test(groups = "fast")
+    public void testNotificationsOfOtherSitesAreDropped() throws Exception {
+        final String knownAccountCode = UUID.randomUUID().toString();
+        final String otherSiteAccountCode = UUID.randomUUID().toString();
+
+        final List<String> refreshedAccountCodes = new LinkedList<String>();
+        final RecurlyMetrics metrics = new RecurlyMetrics(new MetricRegistry());
+        final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), RecurlyAsyncClient.DEFAULT_BASE_URL, 200, null, new RecurlyRateLimiter(1000, 1000), metrics) {
+            @Override
+            public ListenableFuture<BillingInfo> getBillingInfo(final Priority priority, final String accountCode) {
+                refreshedAccountCodes.add(accountCode);
+                return Futures.<BillingInfo>immediateFuture(new BillingInfo());
+            }
+        };
+
+        final List<Transaction> updatedTransactions = new LinkedList<Transaction>();
+        final Set<String> updatedBillingInfos = new HashSet<String>();
+        final RecurlyDao dao = new RecurlyDao(null, "test") {
+            @Override
+            public Set<String> getKnownAccountCodes(final Collection<String> accountCodes) {
+                Assert.assertEquals(ImmutableSet.<String>copyOf(accountCodes), ImmutableSet.<String>of(knownAccountCode, otherSiteAccountCode));
+                return ImmutableSet.<String>of(knownAccountCode);
+            }
+
+            @Override
+            public void updateTransactions(final List<Transaction> transactions) {
+                updatedTransactions.addAll(transactions);
+            }
+
+            @Override
+            public void addBillingInfo(final String accountCode, final BillingInfo billingInfo) {
+                updatedBillingInfos.add(accountCode);
+            }
+        };
+        final RecurlyNotificationProcessor processor = new RecurlyNotificationProcessor(dao, new RecurlyBillingInfoCache(asyncClient, 10, 3600), metrics, 10, 10);
+
+        final Transaction transaction = newTransaction();
+        processor.process(ImmutableList.<RecurlyNotification>of(new RecurlyNotification(RecurlyNotification.SUCCESSFUL_PAYMENT, knownAccountCode, transaction),
+                                                                new RecurlyNotification(RecurlyNotification.SUCCESSFUL_PAYMENT, otherSiteAccountCode, newTransaction()),
+                                                                new RecurlyNotification(RecurlyNotification.BILLING_INFO_UPDATED, knownAccountCode, null),
+                                                                new RecurlyNotification(RecurlyNotification.BILLING_INFO_UPDATED, otherSiteAccountCode, null)));
+
+        Assert.assertEquals(updatedTransactions, ImmutableList.<Transaction>of(transaction));
+        Assert.assertEquals(refreshedAccountCodes, ImmutableList.<String>of(knownAccountCode));
+        Assert.assertEquals(updatedBillingInfos, ImmutableSet.<String>of(knownAccountCode));
+    }
+
+    private static Transaction newTransaction() {
+        final Transaction transaction = new Transaction();
+        transaction.setUuid(UUID.randomUUID().toString().replace("-", ""));
+        return transaction;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.simulator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.plugin.api.PaymentInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
+import org.killbill.billing.plugin.recurly.api.RecurlyPaymentMethodPlugin;
+import org.killbill.billing.plugin.recurly.api.RecurlyPaymentPluginApi;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyBillingInfoCache;
+import org.killbill.billing.plugin.recurly.client.RecurlyCallGuard;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.http.client.AsyncHttpClient;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Drive the plugin against a {@link RecurlySimulator} at a target number of payments per second,
+ * and report latency percentiles and Recurly calls per operation.
+ * <p/>
+ * Each payment is followed by a payment lookup, and every tenth payment by a refund.
+ * <p/>
+ * Usage: RecurlyLoadHarness [paymentsPerSecond] [durationSeconds] [minLatencyMillis] [maxLatencyMillis]
+ */
+public class RecurlyLoadHarness {
+
+    private static final int NB_ACCOUNTS = 100;
+    private static final int REFUND_EVERY = 10;
+
+    private final RecurlySimulator simulator;
+    private final double paymentsPerSecond;
+    private final long durationSeconds;
+    private final Random random = new Random();
+
+    private final AtomicLong nbPayments = new AtomicLong(0);
+    private final AtomicLong nbFailures = new AtomicLong(0);
+
+    public RecurlyLoadHarness(final RecurlySimulator simulator, final double paymentsPerSecond, final long durationSeconds) {
+        this.simulator = simulator;
+        this.paymentsPerSecond = paymentsPerSecond;
+        this.durationSeconds = durationSeconds;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final double paymentsPerSecond = args.length > 0 ? Double.valueOf(args[0]) : 50;
+        final long durationSeconds = args.length > 1 ? Long.valueOf(args[1]) : 30;
+        final long minLatencyMillis = args.length > 2 ? Long.valueOf(args[2]) : 50;
+        final long maxLatencyMillis = args.length > 3 ? Long.valueOf(args[3]) : 250;
+
+        final RecurlySimulator simulator = new RecurlySimulator();
+        simulator.setLatency(minLatencyMillis, maxLatencyMillis);
+        simulator.start();
+        try {
+            final Report report = new RecurlyLoadHarness(simulator, paymentsPerSecond, durationSeconds).run();
+            System.out.println(report);
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    public Report run() throws Exception {
+        final AsyncHttpClient httpClient = new AsyncHttpClient();
+        final ExecutorService searchExecutor = Executors.newFixedThreadPool(4);
+        final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("recurly-load-%d")
+                                                                                                .setDaemon(true)
+                                                                                                .build());
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final MetricRegistry registry = new MetricRegistry();
+            final RecurlyMetrics metrics = new RecurlyMetrics(registry);
+            // Don't let the client-side limiter be the bottleneck (the simulator can enforce its own)
+            final RecurlyRateLimiter rateLimiter = new RecurlyRateLimiter(Math.max(100, paymentsPerSecond * 10), Math.max(100, paymentsPerSecond * 10));
+            final RecurlyCallGuard callGuard = new RecurlyCallGuard(rateLimiter, metrics);
+            final RecurlyAsyncClient asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), simulator.getBaseUrl(), 50, RecurlyAsyncClient.DEFAULT_NB_PAGES_TO_PREFETCH, httpClient, callGuard, metrics);
+            final RecurlyBillingInfoCache billingInfoCache = new RecurlyBillingInfoCache(asyncClient, 10000, 300);
+            final PaymentPluginApi pluginApi = metrics.instrument(PaymentPluginApi.class,
+                                                                  new RecurlyPaymentPluginApi(asyncClient, null, searchExecutor, billingInfoCache, 300));
+
+            final List<UUID> kbAccountIds = createAccounts(pluginApi);
+
+            final long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / paymentsPerSecond);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            pay(pluginApi, kbAccountIds.get(random.nextInt(kbAccountIds.size())));
+                        }
+                    });
+                }
+            }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            scheduler.shutdownNow();
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+
+            return new Report(registry, nbPayments.get(), nbFailures.get(), simulator.getNbRequests());
+        } finally {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            searchExecutor.shutdownNow();
+            httpClient.close();
+        }
+    }
+
+    private List<UUID> createAccounts(final PaymentPluginApi pluginApi) throws Exception {
+        final List<UUID> kbAccountIds = new ArrayList<UUID>(NB_ACCOUNTS);
+        for (int i = 0; i < NB_ACCOUNTS; i++) {
+            final UUID kbAccountId = UUID.randomUUID();
+            simulator.createAccount(kbAccountId.toString());
+
+            final Account account = new Account();
+            account.setAccountCode(kbAccountId.toString());
+            final BillingInfo billingInfo = new BillingInfo();
+            billingInfo.setAccount(account);
+            billingInfo.setFirstName("John");
+            billingInfo.setLastName("Doe " + i);
+            billingInfo.setNumber("4111-1111-1111-1111");
+            billingInfo.setVerificationValue(123);
+            billingInfo.setMonth(11);
+            billingInfo.setYear(2030);
+
+            final UUID kbPaymentMethodId = UUID.randomUUID();
+            pluginApi.addPaymentMethod(kbAccountId, kbPaymentMethodId, new RecurlyPaymentMethodPlugin(billingInfo, kbPaymentMethodId), true, null);
+            kbAccountIds.add(kbAccountId);
+        }
+        return kbAccountIds;
+    }
+
+    private void pay(final PaymentPluginApi pluginApi, final UUID kbAccountId) {
+        final long paymentNumber = nbPayments.incrementAndGet();
+        final UUID kbPaymentId = UUID.randomUUID();
+        try {
+            pluginApi.processPayment(kbAccountId, kbPaymentId, null, BigDecimal.TEN, Currency.USD, null);
+            final PaymentInfoPlugin paymentInfo = pluginApi.getPaymentInfo(kbAccountId, kbPaymentId, null);
+            if (paymentInfo == null) {
+                nbFailures.incrementAndGet();
+            } else if (paymentNumber % REFUND_EVERY == 0) {
+                pluginApi.processRefund(kbAccountId, kbPaymentId, BigDecimal.ONE, Currency.USD, null);
+            }
+        } catch (final Exception e) {
+            nbFailures.incrementAndGet();
+        }
+    }
+
+    public static final class Report {
+
+        private final MetricRegistry registry;
+        private final long nbPayments;
+        private final long nbFailures;
+        private final long nbRecurlyRequests;
+
+        private Report(final MetricRegistry registry, final long nbPayments, final long nbFailures, final long nbRecurlyRequests) {
+            this.registry = registry;
+            this.nbPayments = nbPayments;
+            this.nbFailures = nbFailures;
+            this.nbRecurlyRequests = nbRecurlyRequests;
+        }
+
+        public long getNbPayments() {
+            return nbPayments;
+        }
+
+        public long getNbFailures() {
+            return nbFailures;
+        }
+
+        public long getNbRecurlyRequests() {
+            return nbRecurlyRequests;
+        }
+
+        public Timer getLatency(final String operation) {
+            return registry.getTimers().get(MetricRegistry.name("operations", operation, "latency"));
+        }
+
+        public Histogram getRecurlyCalls(final String operation) {
+            return registry.getHistograms().get(MetricRegistry.name("operations", operation, "recurlyCalls"));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("payments=%d failures=%d recurlyRequests=%d%n", nbPayments, nbFailures, nbRecurlyRequests));
+            sb.append(String.format("%-20s %8s %10s %10s %10s %14s%n", "operation", "count", "p50 (ms)", "p99 (ms)", "p999 (ms)", "recurly calls"));
+            for (final Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+                final String operation = entry.getKey().split("\\.")[1];
+                final Snapshot latency = entry.getValue().getSnapshot();
+                final Histogram recurlyCalls = getRecurlyCalls(operation);
+                sb.append(String.format("%-20s %8d %10.1f %10.1f %10.1f %14.2f%n",
+                                        operation,
+                                        entry.getValue().getCount(),
+                                        toMillis(latency.getMedian()),
+                                        toMillis(latency.get99thPercentile()),
+                                        toMillis(latency.get999thPercentile()),
+                                        recurlyCalls == null ? 0 : recurlyCalls.getSnapshot().getMean()));
+            }
+            return sb.toString();
+        }
+
+        private static double toMillis(final double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
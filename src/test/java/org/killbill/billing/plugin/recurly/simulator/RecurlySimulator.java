@@ -0,0 +1,664 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.Transaction;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.common.escape.Escaper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.xml.XmlEscapers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Recurly v2 API, speaking the XML endpoints used by the plugin:
+ * accounts (list), billing info (get, update, clear), account invoices (paginated, newest first, optionally
+ * between begin_time and end_time, with Link next headers) and transactions (paginated, newest first), site transactions
+ * (paginated, oldest first, optionally since begin_time) and transactions (create, get, refund).
+ * <p/>
+ * Latency, server errors, declines and rate-limit responses can be injected to reproduce slow paths.
+ * Each created transaction gets its own invoice, with a single line item carrying the transaction description.
+ */
+public class RecurlySimulator {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String API_VERSION = "/v2";
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+    private final Escaper contentEscaper = XmlEscapers.xmlContentEscaper();
+    private final Escaper attributeEscaper = XmlEscapers.xmlAttributeEscaper();
+    private final Random random = new Random();
+    private final AtomicLong nbRequests = new AtomicLong(0);
+
+    // Guarded by this
+    private final Map<String, SimulatedAccount> accounts = new HashMap<String, SimulatedAccount>();
+    private final List<String> accountCodes = new LinkedList<String>();
+    private final Map<String, SimulatedTransaction> transactions = new HashMap<String, SimulatedTransaction>();
+    // Oldest first
+    private final List<String> transactionUuids = new ArrayList<String>();
+    private int nextInvoiceNumber = 1000;
+
+    private volatile long minLatencyMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile double declineRate = 0;
+
+    // Guarded by this
+    private int rateLimit = 0;
+    private int rateLimitWindowSeconds = 0;
+    private int rateLimitRemaining = 0;
+    private long rateLimitResetMillis = 0;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(API_VERSION + "/", new RecurlyHandler());
+        // Requests sleep to simulate latency: don't let them queue behind each other
+        serverExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("recurly-simulator-%d")
+                                                                                 .setDaemon(true)
+                                                                                 .build());
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + API_VERSION;
+    }
+
+    public long getNbRequests() {
+        return nbRequests.get();
+    }
+
+    // Each response is delayed by a random duration between minMillis and maxMillis
+    public void setLatency(final long minMillis, final long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    // Share of requests failing with a 500
+    public void setErrorRate(final double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    // Share of transactions declined by the gateway (422, with a transaction error)
+    public void setDeclineRate(final double declineRate) {
+        this.declineRate = declineRate;
+    }
+
+    // Number of requests allowed per window (0 to disable), as reported in the X-RateLimit-* headers
+    public synchronized void setRateLimit(final int limit, final int windowSeconds) {
+        this.rateLimit = limit;
+        this.rateLimitWindowSeconds = windowSeconds;
+        this.rateLimitRemaining = limit;
+        this.rateLimitResetMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(windowSeconds);
+    }
+
+    public synchronized void createAccount(final String accountCode) {
+        if (accounts.get(accountCode) == null) {
+            accounts.put(accountCode, new SimulatedAccount(accountCode));
+            accountCodes.add(0, accountCode);
+        }
+    }
+
+    private final class RecurlyHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            nbRequests.incrementAndGet();
+            try {
+                simulateLatency();
+
+                final Map<String, String> rateLimitHeaders = new HashMap<String, String>();
+                if (!consumeRateLimit(rateLimitHeaders)) {
+                    respond(exchange, 429, rateLimitHeaders, error("rate_limited", "You have made too many API requests"));
+                    return;
+                }
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    respond(exchange, 500, rateLimitHeaders, error("internal_server_error", "Simulated failure"));
+                    return;
+                }
+
+                final Response response = route(exchange);
+                respond(exchange, response.statusCode, merge(rateLimitHeaders, response.headers), response.body);
+            } catch (final RuntimeException e) {
+                respond(exchange, 500, new HashMap<String, String>(), error("internal_server_error", String.valueOf(e.getMessage())));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private Response route(final HttpExchange exchange) throws IOException {
+        final URI uri = exchange.getRequestURI();
+        final String method = exchange.getRequestMethod();
+        final String[] path = uri.getPath().substring(API_VERSION.length() + 1).split("/");
+        final Map<String, String> query = parseQuery(uri.getRawQuery());
+
+        if ("accounts".equals(path[0])) {
+            if (path.length == 1 && "GET".equals(method)) {
+                return getAccounts(query);
+            } else if (path.length == 3 && "billing_info".equals(path[2])) {
+                if ("GET".equals(method)) {
+                    return getBillingInfo(path[1]);
+                } else if ("PUT".equals(method)) {
+                    return updateBillingInfo(path[1], xmlMapper.readValue(readBody(exchange), BillingInfo.class));
+                } else if ("DELETE".equals(method)) {
+                    return clearBillingInfo(path[1]);
+                }
+            } else if (path.length == 3 && "invoices".equals(path[2]) && "GET".equals(method)) {
+                return getAccountInvoices(path[1], query);
+            } else if (path.length == 3 && "transactions".equals(path[2]) && "GET".equals(method)) {
+                return getAccountTransactions(path[1], query);
+            }
+        } else if ("transactions".equals(path[0])) {
+            if (path.length == 1 && "GET".equals(method)) {
+                return getTransactions(query);
+            } else if (path.length == 1 && "POST".equals(method)) {
+                return createTransaction(xmlMapper.readValue(readBody(exchange), Transaction.class));
+            } else if (path.length == 2 && "GET".equals(method)) {
+                return getTransaction(path[1]);
+            } else if (path.length == 2 && "DELETE".equals(method)) {
+                return refundTransaction(path[1], query.get("amount_in_cents"));
+            }
+        }
+
+        return notFound("The requested resource " + uri.getPath() + " was not found");
+    }
+
+    private synchronized Response getAccounts(final Map<String, String> query) {
+        final List<String> renderedAccounts = new ArrayList<String>(accountCodes.size());
+        for (final String accountCode : accountCodes) {
+            renderedAccounts.add(renderAccount(accounts.get(accountCode)));
+        }
+        return page("/accounts", "accounts", renderedAccounts, query);
+    }
+
+    private synchronized Response getBillingInfo(final String accountCode) {
+        final SimulatedAccount account = accounts.get(accountCode);
+        if (account == null || account.billingInfo == null) {
+            return notFound("Couldn't find BillingInfo for Account with account_code = " + accountCode);
+        }
+        return ok(200, renderBillingInfo(account));
+    }
+
+    private synchronized Response updateBillingInfo(final String accountCode, final BillingInfo billingInfo) {
+        final SimulatedAccount account = accounts.get(accountCode);
+        if (account == null) {
+            return notFound("Couldn't find Account with account_code = " + accountCode);
+        }
+        // Recurly never returns the full number nor the verification value
+        if (billingInfo.getNumber() != null && billingInfo.getNumber().length() >= 4) {
+            billingInfo.setLastFour(billingInfo.getNumber().substring(billingInfo.getNumber().length() - 4));
+        }
+        account.billingInfo = billingInfo;
+        return ok(200, renderBillingInfo(account));
+    }
+
+    private synchronized Response clearBillingInfo(final String accountCode) {
+        final SimulatedAccount account = accounts.get(accountCode);
+        if (account == null) {
+            return notFound("Couldn't find Account with account_code = " + accountCode);
+        }
+        account.billingInfo = null;
+        return new Response(204, null);
+    }
+
+    private synchronized Response getAccountInvoices(final String accountCode, final Map<String, String> query) {
+        final SimulatedAccount account = accounts.get(accountCode);
+        if (account == null) {
+            return notFound("Couldn't find Account with account_code = " + accountCode);
+        }
+        final DateTime beginTime = query.get("begin_time") == null ? null : new DateTime(query.get("begin_time"), DateTimeZone.UTC);
+        final DateTime endTime = query.get("end_time") == null ? null : new DateTime(query.get("end_time"), DateTimeZone.UTC);
+        final List<String> renderedInvoices = new ArrayList<String>(account.transactionUuids.size());
+        for (final String transactionUuid : account.transactionUuids) {
+            final SimulatedTransaction transaction = transactions.get(transactionUuid);
+            if ((beginTime == null || !transaction.createdAt.isBefore(beginTime)) && (endTime == null || !transaction.createdAt.isAfter(endTime))) {
+                renderedInvoices.add(renderInvoice(transaction));
+            }
+        }
+        // The filters must be kept on the next pages
+        final StringBuilder path = new StringBuilder("/accounts/").append(accountCode).append("/invoices");
+        if (beginTime != null) {
+            path.append("?begin_time=").append(query.get("begin_time"));
+        }
+        if (endTime != null) {
+            path.append(beginTime == null ? '?' : '&').append("end_time=").append(query.get("end_time"));
+        }
+        return page(path.toString(), "invoices", renderedInvoices, query);
+    }
+
+    private synchronized Response getAccountTransactions(final String accountCode, final Map<String, String> query) {
+        final SimulatedAccount account = accounts.get(accountCode);
+        if (account == null) {
+            return notFound("Couldn't find Account with account_code = " + accountCode);
+        }
+        final List<String> renderedTransactions = new ArrayList<String>(account.transactionUuids.size());
+        for (final String transactionUuid : account.transactionUuids) {
+            renderedTransactions.add(renderTransaction(transactions.get(transactionUuid)));
+        }
+        return page("/accounts/" + accountCode + "/transactions", "transactions", renderedTransactions, query);
+    }
+
+    private synchronized Response getTransactions(final Map<String, String> query) {
+        final DateTime beginTime = query.get("begin_time") == null ? null : new DateTime(query.get("begin_time"), DateTimeZone.UTC);
+        // Oldest first, by creation date unless sorted by update date (begin_time applies to the sort field)
+        final boolean byUpdatedAt = "updated_at".equals(query.get("sort"));
+        final List<SimulatedTransaction> sortedTransactions = new ArrayList<SimulatedTransaction>(transactionUuids.size());
+        for (final String transactionUuid : transactionUuids) {
+            sortedTransactions.add(transactions.get(transactionUuid));
+        }
+        if (byUpdatedAt) {
+            Collections.sort(sortedTransactions, new Comparator<SimulatedTransaction>() {
+                @Override
+                public int compare(final SimulatedTransaction first, final SimulatedTransaction second) {
+                    return first.updatedAt.compareTo(second.updatedAt);
+                }
+            });
+        }
+
+        final List<String> renderedTransactions = new ArrayList<String>(sortedTransactions.size());
+        for (final SimulatedTransaction transaction : sortedTransactions) {
+            if (beginTime == null || !(byUpdatedAt ? transaction.updatedAt : transaction.createdAt).isBefore(beginTime)) {
+                renderedTransactions.add(renderTransaction(transaction));
+            }
+        }
+        // The filter and order must be kept on the next pages
+        final StringBuilder path = new StringBuilder("/transactions");
+        if (byUpdatedAt) {
+            path.append("?sort=updated_at");
+        }
+        if (beginTime != null) {
+            path.append(byUpdatedAt ? '&' : '?').append("begin_time=").append(query.get("begin_time"));
+        }
+        return page(path.toString(), "transactions", renderedTransactions, query);
+    }
+
+    private synchronized Response createTransaction(final Transaction transaction) {
+        final String accountCode = transaction.getAccount() == null ? null : transaction.getAccount().getAccountCode();
+        final SimulatedAccount account = accountCode == null ? null : accounts.get(accountCode);
+        if (account == null) {
+            return notFound("Couldn't find Account with account_code = " + accountCode);
+        }
+        if (account.billingInfo == null) {
+            return new Response(422, "<errors>" + errorElement("transaction.account.billing_info", "blank", "can't be blank") + "</errors>");
+        }
+
+        final boolean declined = declineRate > 0 && random.nextDouble() < declineRate;
+        final SimulatedTransaction simulatedTransaction = new SimulatedTransaction(UUID.randomUUID().toString().replace("-", ""),
+                                                                                   accountCode,
+                                                                                   nextInvoiceNumber++,
+                                                                                   transaction.getAmountInCents() == null ? 0 : transaction.getAmountInCents(),
+                                                                                   transaction.getCurrency(),
+                                                                                   transaction.getDescription(),
+                                                                                   declined ? "declined" : "success");
+        transactions.put(simulatedTransaction.uuid, simulatedTransaction);
+        transactionUuids.add(simulatedTransaction.uuid);
+        account.transactionUuids.add(0, simulatedTransaction.uuid);
+
+        if (declined) {
+            return new Response(422, "<errors>" +
+                                     "<transaction_error>" +
+                                     element("error_code", "declined") +
+                                     element("error_category", "soft") +
+                                     element("merchant_message", "The customer's bank has declined their card.") +
+                                     element("customer_message", "Your transaction was declined.") +
+                                     "</transaction_error>" +
+                                     errorElement("transaction", "declined", "was declined") +
+                                     renderTransaction(simulatedTransaction) +
+                                     "</errors>");
+        }
+        return ok(201, renderTransaction(simulatedTransaction));
+    }
+
+    private synchronized Response getTransaction(final String transactionUuid) {
+        final SimulatedTransaction transaction = transactions.get(transactionUuid);
+        if (transaction == null) {
+            return notFound("Couldn't find Transaction with uuid = " + transactionUuid);
+        }
+        return ok(200, renderTransaction(transaction));
+    }
+
+    private synchronized Response refundTransaction(final String transactionUuid, final String amountInCents) {
+        final SimulatedTransaction transaction = transactions.get(transactionUuid);
+        if (transaction == null) {
+            return notFound("Couldn't find Transaction with uuid = " + transactionUuid);
+        }
+        if (!transaction.isRefundable()) {
+            return new Response(422, "<errors>" + errorElement("transaction", "not_refundable", "is not refundable") + "</errors>");
+        }
+        transaction.refundedInCents += amountInCents == null ? transaction.amountInCents - transaction.refundedInCents : Integer.valueOf(amountInCents);
+        transaction.updatedAt = new DateTime(DateTimeZone.UTC);
+        return new Response(204, null);
+    }
+
+    private Response page(final String path, final String rootElement, final List<String> renderedObjects, final Map<String, String> query) {
+        final int cursor = query.get("cursor") == null ? 0 : Integer.valueOf(query.get("cursor"));
+        final int perPage = query.get("per_page") == null ? DEFAULT_PAGE_SIZE : Integer.valueOf(query.get("per_page"));
+        final int end = Math.min(renderedObjects.size(), cursor + perPage);
+
+        final StringBuilder body = new StringBuilder("<").append(rootElement).append(" type=\"array\">");
+        for (int i = Math.min(cursor, end); i < end; i++) {
+            body.append(renderedObjects.get(i));
+        }
+        body.append("</").append(rootElement).append(">");
+
+        final Response response = ok(200, body.toString());
+        response.headers.put("X-Records", String.valueOf(renderedObjects.size()));
+        if (end < renderedObjects.size()) {
+            response.headers.put("Link", "<" + getBaseUrl() + path + (path.contains("?") ? "&" : "?") + "cursor=" + end + "&per_page=" + perPage + ">; rel=\"next\"");
+        }
+        return response;
+    }
+
+    private String renderAccount(final SimulatedAccount account) {
+        return "<account href=\"" + attribute(getBaseUrl() + "/accounts/" + account.accountCode) + "\">" +
+               element("account_code", account.accountCode) +
+               element("state", "active") +
+               typedElement("created_at", "datetime", account.createdAt.toString()) +
+               "</account>";
+    }
+
+    private String renderBillingInfo(final SimulatedAccount account) {
+        final BillingInfo billingInfo = account.billingInfo;
+        return "<billing_info href=\"" + attribute(getBaseUrl() + "/accounts/" + account.accountCode + "/billing_info") + "\" type=\"credit_card\">" +
+               "<account href=\"" + attribute(getBaseUrl() + "/accounts/" + account.accountCode) + "\"/>" +
+               element("first_name", billingInfo.getFirstName()) +
+               element("last_name", billingInfo.getLastName()) +
+               element("company", billingInfo.getCompany()) +
+               element("address1", billingInfo.getAddress1()) +
+               element("address2", billingInfo.getAddress2()) +
+               element("city", billingInfo.getCity()) +
+               element("state", billingInfo.getState()) +
+               element("zip", billingInfo.getZip()) +
+               element("country", billingInfo.getCountry()) +
+               element("phone", billingInfo.getPhone()) +
+               element("vat_number", billingInfo.getVatNumber()) +
+               element("ip_address", billingInfo.getIpAddress()) +
+               element("ip_address_country", billingInfo.getIpAddressCountry()) +
+               element("card_type", billingInfo.getCardType()) +
+               typedElement("year", "integer", billingInfo.getYear()) +
+               typedElement("month", "integer", billingInfo.getMonth()) +
+               element("first_six", billingInfo.getFirstSix()) +
+               element("last_four", billingInfo.getLastFour()) +
+               "</billing_info>";
+    }
+
+    private String renderInvoice(final SimulatedTransaction transaction) {
+        return "<invoice href=\"" + attribute(getInvoiceHref(transaction)) + "\">" +
+               "<account href=\"" + attribute(getBaseUrl() + "/accounts/" + transaction.accountCode) + "\"/>" +
+               element("uuid", transaction.invoiceUuid) +
+               element("state", "success".equals(transaction.status) ? "collected" : "failed") +
+               typedElement("invoice_number", "integer", transaction.invoiceNumber) +
+               typedElement("total_in_cents", "integer", transaction.amountInCents) +
+               element("currency", transaction.currency) +
+               typedElement("created_at", "datetime", transaction.createdAt.toString()) +
+               "<line_items type=\"array\">" +
+               "<adjustment href=\"" + attribute(getBaseUrl() + "/adjustments/" + transaction.adjustmentUuid) + "\" type=\"charge\">" +
+               element("uuid", transaction.adjustmentUuid) +
+               element("description", transaction.description) +
+               typedElement("unit_amount_in_cents", "integer", transaction.amountInCents) +
+               typedElement("quantity", "integer", 1) +
+               typedElement("total_in_cents", "integer", transaction.amountInCents) +
+               element("currency", transaction.currency) +
+               typedElement("created_at", "datetime", transaction.createdAt.toString()) +
+               "</adjustment>" +
+               "</line_items>" +
+               "<transactions type=\"array\">" +
+               renderTransaction(transaction) +
+               "</transactions>" +
+               "</invoice>";
+    }
+
+    private String renderTransaction(final SimulatedTransaction transaction) {
+        return "<transaction href=\"" + attribute(getBaseUrl() + "/transactions/" + transaction.uuid) + "\" type=\"credit_card\">" +
+               "<account href=\"" + attribute(getBaseUrl() + "/accounts/" + transaction.accountCode) + "\"/>" +
+               "<invoice href=\"" + attribute(getInvoiceHref(transaction)) + "\"/>" +
+               element("uuid", transaction.uuid) +
+               element("action", "purchase") +
+               typedElement("amount_in_cents", "integer", transaction.amountInCents) +
+               element("currency", transaction.currency) +
+               element("status", transaction.status) +
+               element("description", transaction.description) +
+               element("reference", transaction.reference) +
+               typedElement("test", "boolean", true) +
+               typedElement("voidable", "boolean", transaction.isRefundable()) +
+               typedElement("refundable", "boolean", transaction.isRefundable()) +
+               typedElement("created_at", "datetime", transaction.createdAt.toString()) +
+               typedElement("updated_at", "datetime", transaction.updatedAt.toString()) +
+               "</transaction>";
+    }
+
+    private String getInvoiceHref(final SimulatedTransaction transaction) {
+        return getBaseUrl() + "/invoices/" + transaction.invoiceNumber;
+    }
+
+    private String element(final String name, final Object value) {
+        if (value == null) {
+            return "<" + name + " nil=\"nil\"></" + name + ">";
+        }
+        return "<" + name + ">" + contentEscaper.escape(value.toString()) + "</" + name + ">";
+    }
+
+    private String typedElement(final String name, final String type, final Object value) {
+        if (value == null) {
+            return "<" + name + " nil=\"nil\"></" + name + ">";
+        }
+        return "<" + name + " type=\"" + type + "\">" + contentEscaper.escape(value.toString()) + "</" + name + ">";
+    }
+
+    private String errorElement(final String field, final String symbol, final String message) {
+        return "<error field=\"" + attribute(field) + "\" symbol=\"" + attribute(symbol) + "\">" + contentEscaper.escape(message) + "</error>";
+    }
+
+    private String error(final String symbol, final String description) {
+        return "<error>" + element("symbol", symbol) + element("description", description) + "</error>";
+    }
+
+    private String attribute(final String value) {
+        return attributeEscaper.escape(value);
+    }
+
+    private Response ok(final int statusCode, final String body) {
+        return new Response(statusCode, body);
+    }
+
+    private Response notFound(final String description) {
+        return new Response(404, error("not_found", description));
+    }
+
+    private void simulateLatency() {
+        final long latencyMillis = minLatencyMillis + (maxLatencyMillis > minLatencyMillis ? (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis)) : 0);
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns false if the request should be rejected
+    private synchronized boolean consumeRateLimit(final Map<String, String> headers) {
+        if (rateLimit <= 0) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now >= rateLimitResetMillis) {
+            rateLimitRemaining = rateLimit;
+            rateLimitResetMillis = now + TimeUnit.SECONDS.toMillis(rateLimitWindowSeconds);
+        }
+        final boolean allowed = rateLimitRemaining > 0;
+        if (allowed) {
+            rateLimitRemaining--;
+        }
+
+        headers.put("X-RateLimit-Limit", String.valueOf(rateLimit));
+        headers.put("X-RateLimit-Remaining", String.valueOf(rateLimitRemaining));
+        headers.put("X-RateLimit-Reset", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(rateLimitResetMillis)));
+        return allowed;
+    }
+
+    private void respond(final HttpExchange exchange, final int statusCode, final Map<String, String> headers, final String body) throws IOException {
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+
+        final byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + body).getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readBody(final HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        try {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(final String rawQuery) {
+        final Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (final String parameter : rawQuery.split("&")) {
+            final int idx = parameter.indexOf('=');
+            if (idx > 0) {
+                query.put(parameter.substring(0, idx), parameter.substring(idx + 1));
+            }
+        }
+        return query;
+    }
+
+    private static Map<String, String> merge(final Map<String, String> first, final Map<String, String> second) {
+        final Map<String, String> merged = new HashMap<String, String>(first);
+        merged.putAll(second);
+        return merged;
+    }
+
+    private static final class Response {
+
+        private final int statusCode;
+        private final String body;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private Response(final int statusCode, final String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+    }
+
+    private static final class SimulatedAccount {
+
+        private final String accountCode;
+        private final DateTime createdAt = new DateTime(DateTimeZone.UTC);
+        // Newest first, as returned by Recurly
+        private final List<String> transactionUuids = new LinkedList<String>();
+        private BillingInfo billingInfo;
+
+        private SimulatedAccount(final String accountCode) {
+            this.accountCode = accountCode;
+        }
+    }
+
+    private static final class SimulatedTransaction {
+
+        private final String uuid;
+        private final String accountCode;
+        private final int invoiceNumber;
+        private final String invoiceUuid = UUID.randomUUID().toString().replace("-", "");
+        private final String adjustmentUuid = UUID.randomUUID().toString().replace("-", "");
+        private final int amountInCents;
+        private final String currency;
+        private final String description;
+        private final String status;
+        private final String reference = String.valueOf(System.nanoTime());
+        private final DateTime createdAt = new DateTime(DateTimeZone.UTC);
+        private DateTime updatedAt = createdAt;
+        private int refundedInCents = 0;
+
+        private SimulatedTransaction(final String uuid, final String accountCode, final int invoiceNumber, final int amountInCents,
+                                     final String currency, final String description, final String status) {
+            this.uuid = uuid;
+            this.accountCode = accountCode;
+            this.invoiceNumber = invoiceNumber;
+            this.amountInCents = amountInCents;
+            this.currency = currency;
+            this.description = description;
+            this.status = status;
+        }
+
+        private boolean isRefundable() {
+            return "success".equals(status) && refundedInCents < amountInCents;
+        }
+    }
+}
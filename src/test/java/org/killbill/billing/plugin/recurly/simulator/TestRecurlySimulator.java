@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.recurly.simulator;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.recurly.client.RecurlyApiException;
+import org.killbill.billing.plugin.recurly.client.RecurlyAsyncClient;
+import org.killbill.billing.plugin.recurly.client.RecurlyFutures;
+import org.killbill.billing.plugin.recurly.client.RecurlyMetrics;
+import org.killbill.billing.plugin.recurly.client.RecurlyPage;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter;
+import org.killbill.billing.plugin.recurly.client.RecurlyRateLimiter.Priority;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.http.client.AsyncHttpClient;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestRecurlySimulator {
+
+    private RecurlySimulator simulator;
+    private AsyncHttpClient httpClient;
+    private RecurlyRateLimiter rateLimiter;
+    private RecurlyAsyncClient asyncClient;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() throws Exception {
+        simulator = new RecurlySimulator();
+        simulator.start();
+        httpClient = new AsyncHttpClient();
+        rateLimiter = new RecurlyRateLimiter(1000, 1000);
+        asyncClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), simulator.getBaseUrl(), 2, httpClient, rateLimiter, new RecurlyMetrics(new MetricRegistry()));
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDown() throws Exception {
+        httpClient.close();
+        simulator.stop();
+    }
+
+    @Test(groups = "slow")
+    public void testPagination() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            simulator.createAccount(UUID.randomUUID().toString());
+        }
+
+        int nbPages = 0;
+        int nbAccounts = 0;
+        RecurlyPage<Accounts> accounts = RecurlyFutures.get(asyncClient.getAccounts(Priority.NORMAL));
+        while (accounts != null) {
+            nbPages++;
+            nbAccounts += accounts.getObjects().size();
+            accounts = RecurlyFutures.get(asyncClient.getNextPage(Priority.NORMAL, accounts, Accounts.class));
+        }
+        Assert.assertEquals(nbPages, 3);
+        Assert.assertEquals(nbAccounts, 5);
+    }
+
+    @Test(groups = "slow")
+    public void testInvoicesTimeRange() throws Exception {
+        final String accountCode = UUID.randomUUID().toString();
+        simulator.createAccount(accountCode);
+
+        final Account account = new Account();
+        account.setAccountCode(accountCode);
+        final BillingInfo billingInfo = new BillingInfo();
+        billingInfo.setAccount(account);
+        billingInfo.setNumber("4111-1111-1111-1111");
+        billingInfo.setVerificationValue(123);
+        billingInfo.setMonth(11);
+        billingInfo.setYear(2030);
+        RecurlyFutures.get(asyncClient.createOrUpdateBillingInfo(Priority.NORMAL, billingInfo));
+
+        final Transaction transaction = new Transaction();
+        transaction.setAccount(account);
+        transaction.setAmountInCents(1000);
+        transaction.setCurrency("USD");
+        final Transaction createdTransaction = RecurlyFutures.get(asyncClient.createTransaction(Priority.NORMAL, transaction));
+
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final Invoices invoices = RecurlyFutures.get(asyncClient.getAccountInvoices(Priority.NORMAL, accountCode, now.minusHours(1), now.plusHours(1))).getObjects();
+        Assert.assertEquals(invoices.size(), 1);
+        // Transactions are embedded in the invoices
+        Assert.assertEquals(invoices.get(0).getTransactions().get(0).getUuid(), createdTransaction.getUuid());
+
+        Assert.assertEquals(RecurlyFutures.get(asyncClient.getAccountInvoices(Priority.NORMAL, accountCode, now.plusHours(1), null)).getObjects().size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testErrorInjection() throws Exception {
+        final String accountCode = UUID.randomUUID().toString();
+        simulator.createAccount(accountCode);
+
+        // No billing info yet
+        Assert.assertNull(RecurlyFutures.get(asyncClient.getBillingInfo(Priority.NORMAL, accountCode)));
+
+        simulator.setErrorRate(1);
+        try {
+            RecurlyFutures.get(asyncClient.getBillingInfo(Priority.NORMAL, accountCode));
+            Assert.fail();
+        } catch (final RecurlyApiException e) {
+            Assert.assertEquals(e.getStatusCode(), 500);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testRateLimit() throws Exception {
+        final String accountCode = UUID.randomUUID().toString();
+        simulator.createAccount(accountCode);
+        simulator.setRateLimit(10, 60);
+
+        // Remaining quota below 20%: the client slows down
+        for (int i = 0; i < 9; i++) {
+            RecurlyFutures.get(asyncClient.getBillingInfo(Priority.NORMAL, accountCode));
+        }
+        Assert.assertTrue(rateLimiter.getCurrentPermitsPerSecond() < 1);
+
+        // Bypass the limiter to exhaust the quota
+        final RecurlyAsyncClient unthrottledClient = new RecurlyAsyncClient(UUID.randomUUID().toString(), simulator.getBaseUrl(), 2, httpClient,
+                                                                            new RecurlyRateLimiter(1000, 1000), new RecurlyMetrics(new MetricRegistry()));
+        RecurlyFutures.get(unthrottledClient.getBillingInfo(Priority.NORMAL, accountCode));
+        try {
+            RecurlyFutures.get(unthrottledClient.getBillingInfo(Priority.NORMAL, accountCode));
+            Assert.fail();
+        } catch (final RecurlyApiException e) {
+            Assert.assertEquals(e.getStatusCode(), 429);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testLoad() throws Exception {
+        simulator.setLatency(1, 5);
+
+        final RecurlyLoadHarness.Report report = new RecurlyLoadHarness(simulator, 20, 2).run();
+        Assert.assertTrue(report.getNbPayments() > 0);
+        Assert.assertEquals(report.getNbFailures(), 0);
+        Assert.assertEquals(report.getLatency("processPayment").getCount(), report.getNbPayments());
+        // One call to create the transaction
+        Assert.assertEquals(report.getRecurlyCalls("processPayment").getSnapshot().getMax(), 1);
+    }
+}